@@ -1,6 +1,15 @@
 package nn1211.http;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * A content.
@@ -38,6 +47,68 @@ public abstract class Content {
      */
     private static final String TEXT = "text/plain";
 
+    /**
+     * Create a content from a byte array and a type.
+     *
+     * @param data a byte array
+     * @param type the type of the content or null for
+     * application/octet-stream
+     * @return a new content
+     * @since 1.1
+     */
+    public static Content from(byte[] data, String type) {
+        return new ByteArrayContent(data, null, type);
+    }
+
+    /**
+     * Create a content from encoded bytes, such as gzip compressed ones.
+     *
+     * @param data the encoded bytes
+     * @param type the type of the decoded content or null for
+     * application/octet-stream
+     * @param encoding the content coding applied to the bytes
+     * @return a new content
+     * @since 1.1
+     */
+    public static Content from(byte[] data, String type, String encoding) {
+        return new ByteArrayContent(data, encoding, type);
+    }
+
+    /**
+     * Create a content from a file. The file is read when the content is
+     * sent, not when it is created.
+     *
+     * @param file a regular file
+     * @param type the type of the content or null for
+     * application/octet-stream
+     * @return a new file content
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    public static FileContent from(Path file, String type) throws IOException {
+        return new FileContent(file, type, 0, Files.size(file), null);
+    }
+
+    /**
+     * Create a content from a file mapped into memory.
+     *
+     * @param file a regular file
+     * @param type the type of the content or null for
+     * application/octet-stream
+     * @return a new file content
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    public static FileContent map(Path file, String type) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+
+            long size = channel.size();
+            return new FileContent(file, type, 0, size,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
     /**
      * Get the encoding of this.
      * <p>
@@ -81,6 +152,20 @@ public abstract class Content {
         return -1;
     }
 
+    /**
+     * Get the length in bytes, which may exceed the range of
+     * {@link #length()}.
+     * <p>
+     * <i>Default value is {@link #length()}</i>
+     * </p>
+     *
+     * @return the length in bytes
+     * @since 1.1
+     */
+    public long size() {
+        return length();
+    }
+
     /**
      * Convert this to a byte array.
      *
@@ -112,6 +197,22 @@ public abstract class Content {
 
         private final byte[] data;
         private final String encoding;
+        private final String type;
+
+        /**
+         * Create an instance with a give byte array, an encoding and a
+         * type.
+         *
+         * @param data
+         * @param encoding
+         * @param type
+         * @since 1.1
+         */
+        ByteArrayContent(byte[] data, String encoding, String type) {
+            this.data = data;
+            this.encoding = encoding;
+            this.type = type;
+        }
 
         /**
          * Create an instance with a give byte array and an encoding.
@@ -121,8 +222,7 @@ public abstract class Content {
          * @since 1.0
          */
         ByteArrayContent(byte[] data, String encoding) {
-            this.data = data;
-            this.encoding = encoding;
+            this(data, encoding, null);
         }
 
         /**
@@ -162,6 +262,218 @@ public abstract class Content {
             return data;
         }
 
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public String type() {
+            return null == type ? super.type() : type;
+        }
+
+    }
+
+    /**
+     * A region of a file, sent without being copied into the heap.
+     * <p>
+     * Servers send a file content with {@link #transferTo}, which lets the
+     * operating system copy the file into the socket. A mapped content is
+     * sent from its mapped buffer instead.
+     * </p>
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    public static final class FileContent extends Content {
+
+        private final Path path;
+        private final String type;
+        private final long position;
+        private final long size;
+
+        /**
+         * The mapped region, or null if not mapped.
+         *
+         * @since 1.1
+         */
+        private final ByteBuffer mapped;
+
+        /**
+         * Create an instance over a region of a file.
+         *
+         * @param path
+         * @param type
+         * @param position
+         * @param size
+         * @param mapped
+         * @since 1.1
+         */
+        private FileContent(Path path, String type, long position, long size,
+                ByteBuffer mapped) {
+
+            this.path = path;
+            this.type = type;
+            this.position = position;
+            this.size = size;
+            this.mapped = mapped;
+        }
+
+        /**
+         * Get a region of this content.
+         *
+         * @param offset the region's offset in this content
+         * @param count the region's length in bytes
+         * @return a content sharing this content's file and mapping
+         * @throws IndexOutOfBoundsException if the region is out of this
+         * content
+         * @since 1.1
+         */
+        public FileContent slice(long offset, long count) {
+            if (offset < 0 || count < 0 || offset + count > size) {
+                throw new IndexOutOfBoundsException("Invalid region: "
+                        + offset + "+" + count);
+            }
+
+            ByteBuffer region = null;
+            if (null != mapped) {
+                region = mapped.duplicate();
+                region.position((int) offset).limit((int) (offset + count));
+                region = region.slice();
+            }
+
+            return new FileContent(path, type, position + offset, count,
+                    region);
+        }
+
+        /**
+         * Get the file of this content.
+         *
+         * @return the file
+         * @since 1.1
+         */
+        public Path path() {
+            return path;
+        }
+
+        /**
+         * Get the position of this content in its file.
+         *
+         * @return the offset of the first byte
+         * @since 1.1
+         */
+        public long position() {
+            return position;
+        }
+
+        /**
+         * Get the mapped bytes of this content.
+         *
+         * @return a new read-only buffer over the mapped bytes, or null if
+         * this content is not mapped
+         * @since 1.1
+         */
+        public ByteBuffer buffer() {
+            return null == mapped ? null : mapped.asReadOnlyBuffer();
+        }
+
+        /**
+         * Write this content to a channel, blocking until it is written.
+         *
+         * @param target a channel in blocking mode
+         * @return the number of bytes written
+         * @throws IOException I/O exception, or {@link EOFException} if the
+         * file was truncated
+         * @since 1.1
+         */
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (null != mapped) {
+                ByteBuffer src = buffer();
+                while (src.hasRemaining()) {
+                    target.write(src);
+                }
+
+                return size;
+            }
+
+            try (FileChannel file = FileChannel.open(path,
+                    StandardOpenOption.READ)) {
+
+                long pos = position;
+                long end = position + size;
+                while (pos < end) {
+                    long n = file.transferTo(pos, end - pos, target);
+                    if (0 == n && pos >= file.size()) {
+                        throw new EOFException("File truncated: " + path);
+                    }
+
+                    pos += n;
+                }
+            }
+
+            return size;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public int length() {
+            return size > Integer.MAX_VALUE ? -1 : (int) size;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Read this content into a new byte array.
+         *
+         * @throws UncheckedIOException if the file cannot be read
+         * @since 1.1
+         */
+        @Override
+        public byte[] toBytes() {
+            if (size > Integer.MAX_VALUE) {
+                throw new UnsupportedOperationException("File too large: "
+                        + path);
+            }
+
+            byte[] data = new byte[(int) size];
+            if (null != mapped) {
+                buffer().get(data);
+                return data;
+            }
+
+            try (FileChannel file = FileChannel.open(path,
+                    StandardOpenOption.READ)) {
+
+                ByteBuffer dst = ByteBuffer.wrap(data);
+                while (dst.hasRemaining()) {
+                    if (file.read(dst, position + dst.position()) < 0) {
+                        throw new EOFException("File truncated: " + path);
+                    }
+                }
+            } catch (IOException ioEx) {
+                throw new UncheckedIOException(ioEx);
+            }
+
+            return data;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public String type() {
+            return null == type ? super.type() : type;
+        }
     }
 
     /**
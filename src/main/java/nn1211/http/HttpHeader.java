@@ -8,6 +8,27 @@ package nn1211.http;
  */
 public final class HttpHeader {
     
+    /**
+     * Accept-Encoding
+     *
+     * @since 1.1
+     */
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+    /**
+     * Accept-Ranges
+     *
+     * @since 1.1
+     */
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+
+    /**
+     * Allow
+     *
+     * @since 1.1
+     */
+    public static final String ALLOW = "Allow";
+
     /**
      * Authorization
      * 
@@ -15,6 +36,13 @@ public final class HttpHeader {
      */
     public static final String AUTHORIZATION = "Authorization";
 
+    /**
+     * Cache-Control
+     *
+     * @since 1.1
+     */
+    public static final String CACHE_CONTROL = "Cache-Control";
+
     /**
      * Connection
      *
@@ -22,6 +50,13 @@ public final class HttpHeader {
      */
     public static final String CONNECTION = "Connection";
 
+    /**
+     * Content-Encoding
+     *
+     * @since 1.1
+     */
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+
     /**
      * Content-Length
      *
@@ -29,6 +64,13 @@ public final class HttpHeader {
      */
     public static final String CONTENT_LENGTH = "Content-Length";
 
+    /**
+     * Content-Range
+     *
+     * @since 1.1
+     */
+    public static final String CONTENT_RANGE = "Content-Range";
+
     /**
      * Content-Type
      *
@@ -36,6 +78,104 @@ public final class HttpHeader {
      */
     public static final String CONTENT_TYPE = "Content-Type";
     
+    /**
+     * ETag
+     *
+     * @since 1.1
+     */
+    public static final String ETAG = "ETag";
+
+    /**
+     * Expect
+     *
+     * @since 1.1
+     */
+    public static final String EXPECT = "Expect";
+
+    /**
+     * HTTP2-Settings
+     *
+     * @since 1.1
+     */
+    public static final String HTTP2_SETTINGS = "HTTP2-Settings";
+
+    /**
+     * If-Modified-Since
+     *
+     * @since 1.1
+     */
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /**
+     * If-None-Match
+     *
+     * @since 1.1
+     */
+    public static final String IF_NONE_MATCH = "If-None-Match";
+
+    /**
+     * Last-Modified
+     *
+     * @since 1.1
+     */
+    public static final String LAST_MODIFIED = "Last-Modified";
+
+    /**
+     * Range
+     *
+     * @since 1.1
+     */
+    public static final String RANGE = "Range";
+
+    /**
+     * Retry-After
+     *
+     * @since 1.1
+     */
+    public static final String RETRY_AFTER = "Retry-After";
+
+    /**
+     * Sec-WebSocket-Accept
+     *
+     * @since 1.1
+     */
+    public static final String SEC_WEBSOCKET_ACCEPT = "Sec-WebSocket-Accept";
+
+    /**
+     * Sec-WebSocket-Key
+     *
+     * @since 1.1
+     */
+    public static final String SEC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+
+    /**
+     * Sec-WebSocket-Version
+     *
+     * @since 1.1
+     */
+    public static final String SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+
+    /**
+     * Transfer-Encoding
+     *
+     * @since 1.1
+     */
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+
+    /**
+     * Upgrade
+     *
+     * @since 1.1
+     */
+    public static final String UPGRADE = "Upgrade";
+
+    /**
+     * Vary
+     *
+     * @since 1.1
+     */
+    public static final String VARY = "Vary";
+
     /**
      * 
      * @since 1.0
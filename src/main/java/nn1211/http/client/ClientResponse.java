@@ -5,6 +5,7 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import nn1211.http.Content;
@@ -42,6 +43,20 @@ public abstract class ClientResponse implements HttpResponse {
      */
     public static class URLResponse extends ClientResponse {
 
+        /**
+         * Initial size of a body of unknown length, and its minimum growth.
+         *
+         * @since 1.1
+         */
+        private static final int CHUNK = 8192;
+
+        /**
+         * Largest declared length allocated upfront.
+         *
+         * @since 1.1
+         */
+        private static final int MAX_PRESIZE = 16 * 1024 * 1024;
+
         private final int statusCode;
         private final HttpURLConnection conn;
 
@@ -88,24 +103,33 @@ public abstract class ClientResponse implements HttpResponse {
                         } else {
                             in = conn.getErrorStream();
                         }
-                        
-                        byte[] data = new byte[1024 * 64];
+
+                        // Read straight into the body, sized by its length
+                        long length = conn.getContentLengthLong();
+                        byte[] data = new byte[length >= 0
+                                && length <= MAX_PRESIZE ? (int) length
+                                : CHUNK];
                         int count = 0;
 
-                        byte[] buf = new byte[1024 * 8];
+                        while (count < data.length || count != length) {
+                            if (count == data.length) {
+                                data = Arrays.copyOf(data,
+                                        Math.max(CHUNK, data.length * 2));
+                            }
+
+                            int read = in.read(data, count,
+                                    data.length - count);
+                            if (read < 0) {
+                                break;
+                            }
 
-                        int read;
-                        while ((read = in.read(buf)) > 0) {
-                            System.arraycopy(buf, 0, data, count, read);
                             count += read;
                         }
-                        
+
                         in.close();
-                        
-                        byte[] stripData = new byte[count];
-                        System.arraycopy(data, 0, stripData, 0, count);
-                        
-                        body = TextContent.from(stripData, 
+
+                        body = TextContent.from(count == data.length ? data
+                                : Arrays.copyOf(data, count),
                                 StandardCharsets.UTF_8);
 
                         isBodyRead = true;
@@ -0,0 +1,550 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous access log written to a file.
+ * <p>
+ * Request threads only append a record to a bounded lock-free ring; when
+ * the ring is full the record is dropped and counted rather than waited
+ * for. A background thread drains the ring in batches, formats each record
+ * as a line of <code>key=value</code> fields and appends them to the file,
+ * which is rotated when it reaches its maximum size.
+ * </p>
+ * <p>
+ * A record's level follows its status: {@link Level#ERROR} for 5xx,
+ * {@link Level#WARN} for 4xx and {@link Level#INFO} otherwise. Only
+ * {@link Level#INFO} records are sampled.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class AccessLog {
+
+    /**
+     * Time the writer sleeps when the ring is empty.
+     *
+     * @since 1.1
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Maximum number of records written at once.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final Path file;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile Level level = Level.INFO;
+
+    /**
+     * Fraction of {@link Level#INFO} records kept.
+     *
+     * @since 1.1
+     */
+    private volatile double sampleRate = 1;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private long maxFileSize = 64L << 20;
+
+    /**
+     * Number of rotated files kept.
+     *
+     * @since 1.1
+     */
+    private int maxFiles = 5;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(
+            8192);
+
+    /**
+     * Sequence of the next record to claim.
+     *
+     * @since 1.1
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Sequence of the next record to write, only advanced by the writer.
+     *
+     * @since 1.1
+     */
+    private volatile long head = 0;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile boolean isRunning = false;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private Thread writer;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private OutputStream out;
+
+    /**
+     * Size of the current file.
+     *
+     * @since 1.1
+     */
+    private long size;
+
+    /**
+     * Create an access log appending to a file.
+     *
+     * @param file the log file
+     * @since 1.1
+     */
+    public AccessLog(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Set the least severe level written.
+     * <p>
+     * <i>Default value is {@link Level#INFO}</i>
+     * </p>
+     *
+     * @param value a level, {@link Level#OFF} to write nothing
+     * @return this
+     * @since 1.1
+     */
+    public AccessLog level(Level value) {
+        level = value;
+        return this;
+    }
+
+    /**
+     * Set the fraction of {@link Level#INFO} records written. Warnings and
+     * errors are always written.
+     * <p>
+     * <i>Default value is 1, every record</i>
+     * </p>
+     *
+     * @param value a rate from 0 to 1
+     * @return this
+     * @throws IllegalArgumentException if value is out of range
+     * @since 1.1
+     */
+    public AccessLog sampleRate(double value) {
+        if (!(value >= 0 && value <= 1)) {
+            throw new IllegalArgumentException("sampleRate out of [0, 1]");
+        }
+
+        sampleRate = value;
+        return this;
+    }
+
+    /**
+     * Set when the file is rotated and how many rotated files are kept, as
+     * <code>file.1</code> (the newest) to <code>file.N</code>.
+     * <p>
+     * <i>Default values are 64 MiB and 5 files</i>
+     * </p>
+     *
+     * @param maxSize maximum size of the file in bytes
+     * @param files number of rotated files kept, 0 to truncate instead
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if maxSize is less than 1 or files is
+     * negative
+     * @since 1.1
+     */
+    public synchronized AccessLog rotation(long maxSize, int files) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (maxSize < 1 || files < 0) {
+            throw new IllegalArgumentException("maxSize < 1 or files < 0");
+        }
+
+        maxFileSize = maxSize;
+        maxFiles = files;
+        return this;
+    }
+
+    /**
+     * Set the number of records buffered before new ones are dropped.
+     * <p>
+     * <i>Default value is 8192</i>
+     * </p>
+     *
+     * @param value a capacity, rounded up to a power of 2
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized AccessLog capacity(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1 || value > 1 << 30) {
+            throw new IllegalArgumentException("capacity out of range");
+        }
+
+        int slots = 1;
+        while (slots < value) {
+            slots <<= 1;
+        }
+
+        ring = new AtomicReferenceArray<>(slots);
+        return this;
+    }
+
+    /**
+     * Get the number of records dropped because the buffer was full.
+     *
+     * @return the number of dropped records
+     * @since 1.1
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Open the file and start the writer.
+     *
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+
+        open();
+        isRunning = true;
+        writer = new Thread(this::run, "http-access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Write the buffered records, then stop the writer and close the file.
+     *
+     * @since 1.1
+     */
+    synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+
+        isRunning = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException intEx) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record a request.
+     *
+     * @param clientIP the client's address
+     * @param method the request method, or null if the request is invalid
+     * @param path the request path without its query, or null
+     * @param status the response status
+     * @param bytes the response body's length, or -1 if unknown
+     * @param nanos the time spent serving the request
+     * @since 1.1
+     */
+    void log(String clientIP, String method, String path, int status,
+            long bytes, long nanos) {
+
+        Level recordLevel = status >= 500 ? Level.ERROR
+                : status >= 400 ? Level.WARN : Level.INFO;
+        if (!isRunning || recordLevel.compareTo(level) > 0) {
+            return;
+        }
+
+        if (Level.INFO == recordLevel && sampleRate < 1
+                && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+
+        Record record = new Record(System.currentTimeMillis(), recordLevel,
+                clientIP, method, path, status, bytes, nanos);
+
+        AtomicReferenceArray<Record> slots = ring;
+        int capacity = slots.length();
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        slots.lazySet((int) seq & (capacity - 1), record);
+    }
+
+    /**
+     * The writer's loop.
+     *
+     * @since 1.1
+     */
+    private void run() {
+        StringBuilder batch = new StringBuilder(16384);
+        while (true) {
+            boolean isStopping = !isRunning;
+            int count = drain(batch);
+            if (count > 0) {
+                write(batch);
+            }
+
+            if (isStopping && tail.get() == head) {
+                break;
+            }
+
+            if (count < MAX_BATCH) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+
+        try {
+            out.close();
+        } catch (IOException ioEx) {
+            ioEx.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Format the published records into a batch.
+     *
+     * @param batch the batch, cleared first
+     * @return the number of records
+     * @since 1.1
+     */
+    private int drain(StringBuilder batch) {
+        batch.setLength(0);
+
+        AtomicReferenceArray<Record> slots = ring;
+        int mask = slots.length() - 1;
+        int count = 0;
+        while (count < MAX_BATCH) {
+            long seq = head;
+            int index = (int) seq & mask;
+            Record record = slots.get(index);
+            if (null == record) {
+                break;
+            }
+
+            slots.lazySet(index, null);
+            head = seq + 1;
+            record.format(batch);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Append a batch to the file, rotating it first if full.
+     *
+     * @param batch formatted records
+     * @since 1.1
+     */
+    private void write(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (size > 0 && size + bytes.length > maxFileSize) {
+                rotate();
+            }
+
+            out.write(bytes);
+            out.flush();
+            size += bytes.length;
+        } catch (IOException ioEx) {
+            ioEx.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Open the file for appending.
+     *
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void open() throws IOException {
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        size = Files.size(file);
+    }
+
+    /**
+     * Shift the rotated files, move the file to <code>file.1</code> and
+     * open a new one.
+     *
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void rotate() throws IOException {
+        out.close();
+
+        if (0 == maxFiles) {
+            Files.delete(file);
+        } else {
+            for (int i = maxFiles - 1; i > 0; i--) {
+                Path from = rotated(i);
+                if (Files.exists(from)) {
+                    Files.move(from, rotated(i + 1),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        open();
+    }
+
+    /**
+     * Get the path of a rotated file.
+     *
+     * @param index the file's index, 1 being the newest
+     * @return the path
+     * @since 1.1
+     */
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    /**
+     * The severity of a record.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    public enum Level {
+
+        /**
+         * Nothing is written.
+         *
+         * @since 1.1
+         */
+        OFF,
+
+        /**
+         * Server errors (5xx).
+         *
+         * @since 1.1
+         */
+        ERROR,
+
+        /**
+         * Client errors (4xx) and invalid requests.
+         *
+         * @since 1.1
+         */
+        WARN,
+
+        /**
+         * Every request.
+         *
+         * @since 1.1
+         */
+        INFO
+    }
+
+    /**
+     * A logged request.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Record {
+
+        private final long time;
+        private final Level level;
+        private final String clientIP;
+        private final String method;
+        private final String path;
+        private final int status;
+        private final long bytes;
+        private final long nanos;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Record(long time, Level level, String clientIP,
+                String method, String path, int status, long bytes,
+                long nanos) {
+
+            this.time = time;
+            this.level = level;
+            this.clientIP = clientIP;
+            this.method = method;
+            this.path = path;
+            this.status = status;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Append this record as a line.
+         *
+         * @param sb a builder
+         * @since 1.1
+         */
+        private void format(StringBuilder sb) {
+            sb.append("time=").append(Instant.ofEpochMilli(time))
+                    .append(" level=").append(level)
+                    .append(" ip=").append(clientIP)
+                    .append(" method=").append(null == method ? "-" : method)
+                    .append(" path=").append(null == path ? "-" : path)
+                    .append(" status=").append(status)
+                    .append(" bytes=").append(bytes)
+                    .append(" us=").append(nanos / 1000)
+                    .append('\n');
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An asynchronous handler for a HTTP request.
+ * <p>
+ * The handler returns as soon as it has started its work, such as a call
+ * to another service, and completes the future with the response later.
+ * Until then, {@link HttpServer.Engine#NIO} keeps the connection parked
+ * without holding a thread. A future completed exceptionally is answered
+ * with a 500 response.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+@FunctionalInterface
+public interface AsyncHandler {
+
+    /**
+     * Start handling a HTTP request.
+     *
+     * @param req User request, valid until the future is completed
+     * @return a future completed with a {@link ServerResponse}
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    CompletableFuture<ServerResponse> handle(ServerRequest req)
+            throws IOException;
+}
@@ -0,0 +1,353 @@
+package nn1211.http.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A lazily read request body, framed either by Content-Length or by chunked
+ * transfer encoding.
+ * <p>
+ * The stream reads from the connection buffer holding the bytes received
+ * after the request head, and asks its {@link Source} for more bytes only
+ * when the buffer is exhausted, so a body of any size is read in the
+ * buffer's memory. It never consumes bytes after the end of the body: once
+ * the body is finished, the buffer holds the next request at index 0.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class BodyInputStream extends InputStream {
+
+    /**
+     * Maximum length of a chunk-size or trailer line.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_LINE = 256;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final ByteBuffer buf;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final Source source;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final boolean isChunked;
+
+    /**
+     * Index of the first unread byte in the buffer.
+     *
+     * @since 1.1
+     */
+    private int start = 0;
+
+    /**
+     * Bytes left in the body, or in the current chunk if chunked.
+     *
+     * @since 1.1
+     */
+    private long remaining;
+
+    /**
+     * True once the first chunk-size line has been read.
+     *
+     * @since 1.1
+     */
+    private boolean isChunkStarted = false;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private boolean isEnd = false;
+
+    /**
+     * Number of body bytes read so far.
+     *
+     * @since 1.1
+     */
+    private long count = 0;
+
+    /**
+     * Start index of the line read by the last {@link #readLine()}.
+     *
+     * @since 1.1
+     */
+    private int lineStart;
+
+    /**
+     * Reusable buffer for {@link #read()}.
+     *
+     * @since 1.1
+     */
+    private final byte[] one = new byte[1];
+
+    /**
+     * Create a body stream over a connection buffer.
+     *
+     * @param buf the connection buffer in write mode, holding the bytes
+     * received after the request head from index 0
+     * @param source the source refilling the buffer
+     * @param contentLength the value of Content-Length, ignored if chunked
+     * @param isChunked true if the body uses chunked transfer encoding
+     * @since 1.1
+     */
+    BodyInputStream(ByteBuffer buf, Source source, long contentLength,
+            boolean isChunked) {
+
+        this.buf = buf;
+        this.source = source;
+        this.isChunked = isChunked;
+        remaining = isChunked ? 0 : Math.max(0, contentLength);
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public int read() throws IOException {
+        return -1 == read(one, 0, 1) ? -1 : one[0] & 0xff;
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) {
+            return 0;
+        }
+
+        if (0 == remaining && !nextChunk()) {
+            return -1;
+        }
+
+        if (start == buf.position()) {
+            fill();
+        }
+
+        int n = (int) Math.min(Math.min(len, remaining),
+                buf.position() - start);
+
+        ByteBuffer src = buf.duplicate();
+        src.limit(start + n).position(start);
+        src.get(b, off, n);
+
+        start += n;
+        remaining -= n;
+        count += n;
+        return n;
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, buf.position() - start);
+    }
+
+    /**
+     * Determine whether the whole body has been read.
+     *
+     * @return true if the whole body has been read, false otherwise
+     * @since 1.1
+     */
+    boolean isEnd() {
+        return isEnd || (!isChunked && 0 == remaining);
+    }
+
+    /**
+     * Get the number of body bytes read so far, excluding chunk framing.
+     *
+     * @return the number of bytes read
+     * @since 1.1
+     */
+    long count() {
+        return count;
+    }
+
+    /**
+     * Skip the unread part of the body and compact the buffer so that it
+     * holds the next request at index 0.
+     *
+     * @param limit maximum number of bytes to skip
+     * @return true if the body was fully consumed, false if it is longer
+     * than the limit
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    boolean finish(long limit) throws IOException {
+        byte[] skip = new byte[1024];
+        long skipped = 0;
+        int read;
+        while (skipped <= limit && -1 != (read = read(skip, 0, skip.length))) {
+            skipped += read;
+        }
+
+        buf.flip().position(start);
+        buf.compact();
+        start = 0;
+
+        return isEnd();
+    }
+
+    /**
+     * Move to the next chunk if chunked.
+     *
+     * @return true if there are more bytes to read, false at the end of the
+     * body
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private boolean nextChunk() throws IOException {
+        if (!isChunked || isEnd) {
+            isEnd = true;
+            return false;
+        }
+
+        if (isChunkStarted && 0 != readLine()) {
+            throw new IOException("Invalid chunk terminator");
+        }
+
+        isChunkStarted = true;
+
+        long size = 0;
+        int digits = 0;
+        int length = readLine();
+        int end = lineStart + length;
+        int i = lineStart;
+        for (; i < end; i++) {
+            int d = Character.digit(buf.get(i), 16);
+            if (-1 == d) {
+                break;
+            }
+
+            if (++digits > 15) {
+                throw new IOException("Chunk size too large");
+            }
+
+            size = size * 16 + d;
+        }
+
+        while (i < end && isWhitespace(buf.get(i))) {
+            i++;
+        }
+
+        if (0 == digits || (i < end && buf.get(i) != ';')) {
+            throw new IOException("Invalid chunk size");
+        }
+
+        if (0 == size) {
+            while (0 != readLine()) {
+                // Skip trailer fields
+            }
+
+            isEnd = true;
+            return false;
+        }
+
+        remaining = size;
+        return true;
+    }
+
+    /**
+     * Read a CRLF terminated line from the buffer.
+     *
+     * @return the length of the line, excluding CRLF
+     * @throws IOException I/O exception, or a line that is too long or not
+     * terminated by CRLF
+     * @since 1.1
+     */
+    private int readLine() throws IOException {
+        int i = start;
+        while (true) {
+            if (i == buf.position()) {
+                i -= start;
+                fill();
+                i += start;
+            }
+
+            if (buf.get(i) == '\n') {
+                break;
+            }
+
+            if (++i - start > MAX_LINE) {
+                throw new IOException("Chunk line too long");
+            }
+        }
+
+        if (i == start || buf.get(i - 1) != '\r') {
+            throw new IOException("Chunk line not terminated by CRLF");
+        }
+
+        lineStart = start;
+        int length = i - start - 1;
+        start = i + 1;
+        return length;
+    }
+
+    /**
+     * Determine whether a byte is a space or horizontal tab.
+     *
+     * @param b a byte
+     * @return true if whitespace, false otherwise
+     * @since 1.1
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Receive more bytes into the buffer, compacting it first if full.
+     *
+     * @throws IOException I/O exception or end of stream
+     * @since 1.1
+     */
+    private void fill() throws IOException {
+        if (!buf.hasRemaining()) {
+            buf.flip().position(start);
+            buf.compact();
+            start = 0;
+        }
+
+        if (source.fill(buf) < 0) {
+            throw new EOFException("Unexpected end of request body");
+        }
+    }
+
+    /**
+     * A source of bytes for a connection buffer.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    @FunctionalInterface
+    interface Source {
+
+        /**
+         * Block until more bytes are received into a buffer.
+         *
+         * @param buf a buffer in write mode, with room for more bytes
+         * @return the number of bytes received, or -1 at end of stream
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        int fill(ByteBuffer buf) throws IOException;
+    }
+}
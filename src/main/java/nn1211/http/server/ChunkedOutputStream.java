@@ -0,0 +1,166 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An output stream writing a response body with chunked transfer encoding.
+ * <p>
+ * Written bytes are buffered up to a flush threshold and sent as a single
+ * chunk, so the memory held by a streamed body is bounded by the threshold.
+ * Closing the stream sends the last chunk but leaves the connection open.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class ChunkedOutputStream extends OutputStream {
+
+    /**
+     * CRLF
+     *
+     * @since 1.1
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * The last chunk with an empty trailer.
+     *
+     * @since 1.1
+     */
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final OutputStream out;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final byte[] buf;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int count = 0;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private boolean isClosed = false;
+
+    /**
+     * Create a chunked stream over a connection's output stream.
+     *
+     * @param out the connection's output stream
+     * @param threshold number of buffered bytes sent as one chunk
+     * @since 1.1
+     */
+    ChunkedOutputStream(OutputStream out, int threshold) {
+        this.out = out;
+        buf = new byte[threshold];
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public void write(int b) throws IOException {
+        if (isClosed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (count == buf.length) {
+            writeChunk(buf, 0, count);
+            count = 0;
+        }
+
+        buf[count++] = (byte) b;
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (isClosed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (count + len > buf.length) {
+            if (count > 0) {
+                writeChunk(buf, 0, count);
+                count = 0;
+            }
+
+            if (len >= buf.length) {
+                writeChunk(b, off, len);
+                return;
+            }
+        }
+
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Send the buffered bytes as a chunk and flush the connection.
+     *
+     * @since 1.1
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk(buf, 0, count);
+            count = 0;
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Send the buffered bytes and the last chunk. The connection's stream is
+     * flushed but not closed.
+     *
+     * @since 1.1
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+
+        if (count > 0) {
+            writeChunk(buf, 0, count);
+            count = 0;
+        }
+
+        out.write(LAST_CHUNK);
+        out.flush();
+        isClosed = true;
+    }
+
+    /**
+     * Write a non-empty chunk.
+     *
+     * @param b the data
+     * @param off the start offset in the data
+     * @param len the number of bytes to write
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        out.write(Integer.toHexString(len).getBytes(StandardCharsets.US_ASCII));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+}
@@ -0,0 +1,479 @@
+package nn1211.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import nn1211.http.Content;
+import nn1211.http.Content.FileContent;
+import static nn1211.http.HttpHeader.*;
+
+/**
+ * A policy compressing response bodies with gzip or deflate.
+ * <p>
+ * A body is compressed when the client accepts one of these codings, its
+ * type is allowed and it is at least the minimum size. A streamed body, or a
+ * file that is not mapped into memory, is compressed while it is written.
+ * The compressed bytes of any other {@link Content} are kept as long as the
+ * content itself, so a content returned by several responses is compressed
+ * only once.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class Compression {
+
+    /**
+     * gzip
+     *
+     * @since 1.1
+     */
+    static final String GZIP = "gzip";
+
+    /**
+     * deflate
+     *
+     * @since 1.1
+     */
+    static final String DEFLATE = "deflate";
+
+    /**
+     * Size of the compressor's buffer.
+     *
+     * @since 1.1
+     */
+    private static final int BUFFER = 8192;
+
+    /**
+     * Marks a content that does not shrink when compressed.
+     *
+     * @since 1.1
+     */
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int minSize = 1024;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Allowed types, a type ending with "/*" allowing all its subtypes.
+     *
+     * @since 1.1
+     */
+    private final Set<String> types = new HashSet<>();
+
+    /**
+     * gzip compressed bytes per content.
+     *
+     * @since 1.1
+     */
+    private final Map<Content, byte[]> gzipCache
+            = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * deflate compressed bytes per content.
+     *
+     * @since 1.1
+     */
+    private final Map<Content, byte[]> deflateCache
+            = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Create a policy compressing text, JSON, JavaScript, XML and SVG
+     * bodies of at least 1024 bytes.
+     *
+     * @since 1.1
+     */
+    public Compression() {
+        types("text/*", "application/json", "application/javascript",
+                "application/xml", "image/svg+xml");
+    }
+
+    /**
+     * Set the minimum size of a compressed body. It does not apply to
+     * streamed bodies, whose size is unknown.
+     * <p>
+     * <i>Default value is 1024 bytes</i>
+     * </p>
+     *
+     * @param value the minimum size in bytes
+     * @return this
+     * @throws IllegalArgumentException if value is negative
+     * @since 1.1
+     */
+    public Compression minSize(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("minSize < 0");
+        }
+
+        minSize = value;
+        return this;
+    }
+
+    /**
+     * Set the compression level.
+     * <p>
+     * <i>Default value is {@link Deflater#DEFAULT_COMPRESSION}</i>
+     * </p>
+     *
+     * @param value a level from 1 to 9, or
+     * {@link Deflater#DEFAULT_COMPRESSION}
+     * @return this
+     * @throws IllegalArgumentException if value is not a valid level
+     * @since 1.1
+     */
+    public Compression level(int value) {
+        if ((value < 1 || value > 9)
+                && Deflater.DEFAULT_COMPRESSION != value) {
+            throw new IllegalArgumentException("Invalid level: " + value);
+        }
+
+        level = value;
+        gzipCache.clear();
+        deflateCache.clear();
+        return this;
+    }
+
+    /**
+     * Replace the allowed content types.
+     *
+     * @param values content types such as <code>application/json</code>,
+     * or <code>text/*</code> to allow all subtypes
+     * @return this
+     * @since 1.1
+     */
+    public Compression types(String... values) {
+        types.clear();
+        for (String value : values) {
+            types.add(value.toLowerCase());
+        }
+
+        return this;
+    }
+
+    /**
+     * Compress a response if its request accepts it.
+     *
+     * @param req a request
+     * @param resp the request's response
+     * @return a compressed response, or resp if not compressed
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    ServerResponse apply(ServerRequest req, ServerResponse resp)
+            throws IOException {
+
+        int status = resp.statusCode().asInt();
+        if (304 == status && null != resp.validated()) {
+            // Repeat the Vary of the response the client holds
+            if (isCompressible(resp.validated())) {
+                resp.header(VARY, ACCEPT_ENCODING);
+            }
+
+            return resp;
+        }
+
+        if (status < 200 || 204 == status || 206 == status || 304 == status
+                || !isCompressible(resp)) {
+            return resp;
+        }
+
+        Content body = resp.body();
+        boolean isStream = null != resp.writer();
+        resp.header(VARY, ACCEPT_ENCODING);
+        String coding = negotiate(req.header(ACCEPT_ENCODING));
+        if (null == coding) {
+            return resp;
+        }
+
+        if (isStream) {
+            ServerResponse.BodyWriter writer = resp.writer();
+            int threshold = ((ServerResponse.StreamingResponse) resp)
+                    .flushThreshold();
+            return stream(resp, coding, out -> {
+                try (OutputStream zip = compressor(out, coding)) {
+                    writer.write(zip);
+                }
+            }).flushThreshold(threshold);
+        }
+
+        if (body instanceof FileContent
+                && null == ((FileContent) body).buffer()) {
+            FileContent file = (FileContent) body;
+            return stream(resp, coding, out -> {
+                try (OutputStream zip = compressor(out, coding)) {
+                    copy(file, zip);
+                }
+            });
+        }
+
+        Map<Content, byte[]> cache = GZIP.equals(coding) ? gzipCache
+                : deflateCache;
+        byte[] data = cache.get(body);
+        if (null == data) {
+            data = compress(body.toBytes(), coding);
+            cache.put(body, data);
+        }
+
+        if (INCOMPRESSIBLE == data) {
+            return resp;
+        }
+
+        ServerResponse compressed = new ServerResponse.DefaultResponse(
+                resp.statusCode(), Content.from(data, body.type(), coding));
+        copyHeaders(resp, compressed);
+        return compressed;
+    }
+
+    /**
+     * Determine whether the body of a response may be compressed, so that
+     * it varies on Accept-Encoding.
+     *
+     * @param resp a response
+     * @return true if compressible, false otherwise
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private boolean isCompressible(ServerResponse resp) throws IOException {
+        String[] head = new String[2];
+        resp.forEachHeader((k, v) -> {
+            if (CONTENT_TYPE.equalsIgnoreCase(k)) {
+                head[0] = v;
+            } else if (CONTENT_ENCODING.equalsIgnoreCase(k)
+                    || CONTENT_RANGE.equalsIgnoreCase(k)) {
+                head[1] = v;
+            }
+        });
+
+        if (null != head[1] || !isAllowed(head[0])) {
+            return false;
+        }
+
+        Content body = resp.body();
+        return null != resp.writer() || (null != body
+                && null == body.encoding() && body.size() >= minSize);
+    }
+
+    /**
+     * Determine whether a content type may be compressed.
+     *
+     * @param type a content type, possibly with parameters
+     * @return true if allowed, false otherwise
+     * @since 1.1
+     */
+    private boolean isAllowed(String type) {
+        if (null == type) {
+            return false;
+        }
+
+        int end = type.indexOf(';');
+        String mime = (-1 == end ? type : type.substring(0, end)).trim()
+                .toLowerCase();
+        int slash = mime.indexOf('/');
+
+        return types.contains(mime) || (slash > 0
+                && types.contains(mime.substring(0, slash) + "/*"));
+    }
+
+    /**
+     * Create a streaming response with the headers of another response.
+     *
+     * @param resp a response
+     * @param coding the content coding
+     * @param writer the writer of the compressed body
+     * @return a streaming response
+     * @since 1.1
+     */
+    private static ServerResponse.StreamingResponse stream(
+            ServerResponse resp, String coding,
+            ServerResponse.BodyWriter writer) {
+
+        ServerResponse.StreamingResponse stream
+                = new ServerResponse.StreamingResponse(resp.statusCode(),
+                        null, writer);
+        copyHeaders(resp, stream);
+        stream.header(CONTENT_ENCODING, coding);
+        return stream;
+    }
+
+    /**
+     * Copy the headers of a response but its Content-Length. A strong ETag
+     * becomes weak, as the compressed bytes differ from the original ones.
+     *
+     * @param from the source response
+     * @param to the target response
+     * @since 1.1
+     */
+    private static void copyHeaders(ServerResponse from, ServerResponse to) {
+        from.forEachHeader((k, v) -> {
+            if (ETAG.equalsIgnoreCase(k) && v.startsWith("\"")) {
+                to.header(k, "W/" + v);
+            } else if (!CONTENT_LENGTH.equalsIgnoreCase(k)) {
+                to.header(k, v);
+            }
+        });
+    }
+
+    /**
+     * Create a compressing stream.
+     *
+     * @param out the target stream
+     * @param coding the content coding
+     * @return a stream whose flush sends all bytes written so far
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private OutputStream compressor(OutputStream out, String coding)
+            throws IOException {
+
+        if (GZIP.equals(coding)) {
+            return new GZIPOutputStream(out, BUFFER, true) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+
+        return new DeflaterOutputStream(out, new Deflater(level), BUFFER,
+                true) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Compress a byte array.
+     *
+     * @param data the bytes
+     * @param coding the content coding
+     * @return the compressed bytes, or {@link #INCOMPRESSIBLE} if they are
+     * not smaller
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private byte[] compress(byte[] data, String coding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                data.length / 2 + 64);
+        try (OutputStream zip = compressor(out, coding)) {
+            zip.write(data);
+        }
+
+        return out.size() < data.length ? out.toByteArray() : INCOMPRESSIBLE;
+    }
+
+    /**
+     * Copy a file content into a stream.
+     *
+     * @param file a file content
+     * @param out a stream
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private static void copy(FileContent file, OutputStream out)
+            throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.path(),
+                StandardOpenOption.READ)) {
+
+            channel.position(file.position());
+            InputStream in = Channels.newInputStream(channel);
+            byte[] buf = new byte[BUFFER];
+            long remaining = file.size();
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    break;
+                }
+
+                out.write(buf, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Choose a content coding from an Accept-Encoding header, preferring
+     * gzip.
+     *
+     * @param accept the header's value or null
+     * @return {@link #GZIP}, {@link #DEFLATE} or null
+     * @since 1.1
+     */
+    static String negotiate(String accept) {
+        if (null == accept) {
+            return null;
+        }
+
+        float gzip = 0;
+        float deflate = 0;
+        float any = 0;
+        for (String item : accept.split(",")) {
+            int semi = item.indexOf(';');
+            String coding = (-1 == semi ? item : item.substring(0, semi))
+                    .trim().toLowerCase();
+            float q = 1;
+            if (-1 != semi) {
+                String param = item.substring(semi + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException numEx) {
+                        q = 0;
+                    }
+                }
+            }
+
+            switch (coding) {
+                case GZIP:
+                case "x-gzip":
+                    gzip = q;
+                    break;
+                case DEFLATE:
+                    deflate = q;
+                    break;
+                case "*":
+                    any = q;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (0 == gzip && 0 == deflate && any > 0
+                && !accept.toLowerCase().contains(GZIP)) {
+            gzip = any;
+        }
+
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+
+        return deflate > 0 ? DEFLATE : null;
+    }
+}
@@ -0,0 +1,161 @@
+package nn1211.http.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A flat, case-insensitive table of request header fields.
+ * <p>
+ * The table keeps a copy of the raw request head and the offsets of each
+ * field, so a value is only decoded to a {@link String} when it is looked
+ * up. A connection loads every request into the same table, so its arrays
+ * are allocated once and only grow for unusually large heads. A table is
+ * therefore valid until the next request of its connection is parsed.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class HeaderTable {
+
+    /**
+     *
+     * @since 1.1
+     */
+    private byte[] data = new byte[1024];
+
+    /**
+     * Offsets of the fields, 4 per field: name start, name end, value start
+     * and value end.
+     *
+     * @since 1.1
+     */
+    private int[] fields = new int[32];
+
+    /**
+     * Values decoded so far, per field.
+     *
+     * @since 1.1
+     */
+    private String[] values = new String[8];
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int count = 0;
+
+    /**
+     * Load the header fields of a parsed request head.
+     *
+     * @param buf the connection buffer holding the request head at index 0
+     * @param parser a parser whose head is complete
+     * @since 1.1
+     */
+    void load(ByteBuffer buf, RequestParser parser) {
+        int length = parser.headLength();
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+
+        ByteBuffer src = buf.duplicate();
+        src.position(0);
+        src.get(data, 0, length);
+
+        count = parser.fieldCount();
+        if (fields.length < count * 4) {
+            fields = new int[count * 4];
+        }
+
+        System.arraycopy(parser.fields(), 0, fields, 0, count * 4);
+
+        if (values.length < count) {
+            values = new String[count];
+        } else {
+            Arrays.fill(values, null);
+        }
+    }
+
+    /**
+     * Get the number of fields.
+     *
+     * @return the number of fields
+     * @since 1.1
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Get the value of the first field with a given name, ignoring case.
+     *
+     * @param name a field's name
+     * @return the field's value or null if absent
+     * @since 1.1
+     */
+    String get(String name) {
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                return value(i);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the name of a field.
+     *
+     * @param index the field's index
+     * @return the field's name
+     * @since 1.1
+     */
+    String name(int index) {
+        int f = index * 4;
+        return new String(data, fields[f], fields[f + 1] - fields[f],
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get the value of a field.
+     *
+     * @param index the field's index
+     * @return the field's value
+     * @since 1.1
+     */
+    String value(int index) {
+        if (null == values[index]) {
+            int f = index * 4;
+            values[index] = new String(data, fields[f + 2],
+                    fields[f + 3] - fields[f + 2], StandardCharsets.ISO_8859_1);
+        }
+
+        return values[index];
+    }
+
+    /**
+     * Compare the name of a field with a given name, ignoring case.
+     *
+     * @param index the field's index
+     * @param name a name
+     * @return true if equal, false otherwise
+     * @since 1.1
+     */
+    private boolean nameEquals(int index, String name) {
+        int start = fields[index * 4];
+        if (fields[index * 4 + 1] - start != name.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char a = (char) (data[start + i] & 0xff);
+            char b = name.charAt(i);
+            if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
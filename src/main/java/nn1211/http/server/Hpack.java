@@ -0,0 +1,764 @@
+package nn1211.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The HPACK header compression of HTTP/2, as of RFC 7541.
+ * <p>
+ * A header block refers to fields of a static table and of a dynamic
+ * table filled by the previous blocks of the connection, in each direction.
+ * A {@link Decoder} and an {@link Encoder} thus each hold the dynamic table
+ * of one direction and must see the blocks in the order they are sent.
+ * Strings are decoded from Huffman or raw octets as ISO-8859-1, and encoded
+ * with Huffman when shorter.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class Hpack {
+
+    /**
+     * Default maximum size of a dynamic table.
+     *
+     * @since 1.1
+     */
+    static final int TABLE_SIZE = 4096;
+
+    /**
+     * Size of a table entry on top of its name and value.
+     *
+     * @since 1.1
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /**
+     * Names of the static table, from index 1.
+     *
+     * @since 1.1
+     */
+    private static final String[] STATIC_NAMES = {null,
+        ":authority", ":method", ":method", ":path", ":path", ":scheme",
+        ":scheme", ":status", ":status", ":status", ":status", ":status",
+        ":status", ":status", "accept-charset", "accept-encoding",
+        "accept-language", "accept-ranges", "accept",
+        "access-control-allow-origin", "age", "allow", "authorization",
+        "cache-control", "content-disposition", "content-encoding",
+        "content-language", "content-length", "content-location",
+        "content-range", "content-type", "cookie", "date", "etag", "expect",
+        "expires", "from", "host", "if-match", "if-modified-since",
+        "if-none-match", "if-range", "if-unmodified-since", "last-modified",
+        "link", "location", "max-forwards", "proxy-authenticate",
+        "proxy-authorization", "range", "referer", "refresh", "retry-after",
+        "server", "set-cookie", "strict-transport-security",
+        "transfer-encoding", "user-agent", "vary", "via", "www-authenticate"
+    };
+
+    /**
+     * Values of the static table, from index 1.
+     *
+     * @since 1.1
+     */
+    private static final String[] STATIC_VALUES = new String[62];
+
+    /**
+     * Index of each field of the static table with a value, keyed by name
+     * and value separated by a NUL.
+     *
+     * @since 1.1
+     */
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    /**
+     * Lowest index of each name of the static table.
+     *
+     * @since 1.1
+     */
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<>();
+
+    /**
+     * Huffman codes of each octet and of EOS (256), aligned to the right.
+     *
+     * @since 1.1
+     */
+    private static final int[] CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+        0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+        0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+        0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+        0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8,
+        0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1,
+        0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc,
+        0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61,
+        0x62, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c,
+        0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb,
+        0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+        0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7, 0x2b,
+        0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe,
+        0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7,
+        0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+        0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+        0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+        0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9,
+        0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde, 0x7fffea,
+        0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb,
+        0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed,
+        0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+        0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1,
+        0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5,
+        0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0,
+        0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5,
+        0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8,
+        0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4,
+        0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec,
+        0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb,
+        0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0,
+        0x3ffffee, 0x3fffffff
+    };
+
+    /**
+     * Bit lengths of the Huffman codes.
+     *
+     * @since 1.1
+     */
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28,
+        28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10,
+        10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6,
+        6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6,
+        7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23,
+        22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23,
+        21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22,
+        22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22,
+        22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27,
+        27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28,
+        27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24,
+        26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27,
+        26, 30
+    };
+
+    /**
+     * Huffman decoding tree. The children of node n are at 2n for bit 0
+     * and 2n + 1 for bit 1, holding either the index of a node or, for a
+     * leaf, -1 - its symbol.
+     *
+     * @since 1.1
+     */
+    private static final int[] TREE = new int[2 * 256];
+
+    /**
+     * The symbol ending a Huffman string, never valid in it.
+     *
+     * @since 1.1
+     */
+    private static final int EOS = 256;
+
+    static {
+        String[] values = {"GET", "POST", "/", "/index.html", "http",
+            "https", "200", "204", "206", "304", "400", "404", "500"};
+        System.arraycopy(values, 0, STATIC_VALUES, 2, values.length);
+        STATIC_VALUES[16] = "gzip, deflate";
+
+        for (int i = STATIC_NAMES.length - 1; i > 0; i--) {
+            if (null == STATIC_VALUES[i]) {
+                STATIC_VALUES[i] = "";
+            } else {
+                STATIC_FIELDS.put(STATIC_NAMES[i] + '\0' + STATIC_VALUES[i],
+                        i);
+            }
+
+            STATIC_INDEX.put(STATIC_NAMES[i], i);
+        }
+
+        int nodes = 1;
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int child = 2 * node + (CODES[symbol] >>> bit & 1);
+                if (0 == TREE[child]) {
+                    TREE[child] = nodes++;
+                }
+
+                node = TREE[child];
+            }
+
+            TREE[2 * node + (CODES[symbol] & 1)] = -1 - symbol;
+        }
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    private Hpack() {
+    }
+
+    /**
+     * Get the size of a field in a dynamic table.
+     *
+     * @param name the field's name
+     * @param value the field's value
+     * @return the size of the field
+     * @since 1.1
+     */
+    private static int size(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * The dynamic table of one direction of a connection, a ring of fields
+     * where index 0 is the newest.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Table {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private String[] names = new String[16];
+
+        /**
+         *
+         * @since 1.1
+         */
+        private String[] values = new String[16];
+
+        /**
+         * Position of the newest field in the ring.
+         *
+         * @since 1.1
+         */
+        private int head;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private int count;
+
+        /**
+         * Sum of the sizes of the fields.
+         *
+         * @since 1.1
+         */
+        private int size;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private int maxSize = TABLE_SIZE;
+
+        /**
+         * Get the name of a field.
+         *
+         * @param index 0 for the newest field
+         * @return the field's name
+         * @since 1.1
+         */
+        private String name(int index) {
+            return names[(head + index) & (names.length - 1)];
+        }
+
+        /**
+         * Get the value of a field.
+         *
+         * @param index 0 for the newest field
+         * @return the field's value
+         * @since 1.1
+         */
+        private String value(int index) {
+            return values[(head + index) & (names.length - 1)];
+        }
+
+        /**
+         * Insert a field, evicting the oldest ones to make room. A field
+         * larger than the table empties it.
+         *
+         * @param name the field's name
+         * @param value the field's value
+         * @since 1.1
+         */
+        private void add(String name, String value) {
+            int entry = size(name, value);
+            evict(maxSize - entry);
+            if (entry > maxSize) {
+                return;
+            }
+
+            if (count == names.length) {
+                String[] grownNames = new String[names.length * 2];
+                String[] grownValues = new String[names.length * 2];
+                for (int i = 0; i < count; i++) {
+                    grownNames[i] = name(i);
+                    grownValues[i] = value(i);
+                }
+
+                names = grownNames;
+                values = grownValues;
+                head = 0;
+            }
+
+            head = (head - 1) & (names.length - 1);
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entry;
+        }
+
+        /**
+         * Change the maximum size, evicting the oldest fields beyond it.
+         *
+         * @param value the new maximum size
+         * @since 1.1
+         */
+        private void maxSize(int value) {
+            maxSize = value;
+            evict(value);
+        }
+
+        /**
+         * Evict the oldest fields until the table fits a size.
+         *
+         * @param limit the size to fit
+         * @since 1.1
+         */
+        private void evict(int limit) {
+            while (count > 0 && size > limit) {
+                int last = (head + count - 1) & (names.length - 1);
+                size -= size(names[last], values[last]);
+                names[last] = null;
+                values[last] = null;
+                count--;
+            }
+        }
+    }
+
+    /**
+     * A decoder of the header blocks received on a connection.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class Decoder {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Table table = new Table();
+
+        /**
+         * The maximum size the peer may set, as advertised to it.
+         *
+         * @since 1.1
+         */
+        private final int maxTableSize;
+
+        /**
+         * Position in the block being decoded.
+         *
+         * @since 1.1
+         */
+        private int pos;
+
+        /**
+         * Create a decoder.
+         *
+         * @param maxTableSize the table size advertised to the peer
+         * @since 1.1
+         */
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table.maxSize(maxTableSize);
+        }
+
+        /**
+         * Decode a complete header block.
+         *
+         * @param block the block
+         * @param off offset of the block
+         * @param len length of the block
+         * @param sink receiver of each field in order
+         * @throws IOException if the block is malformed, a connection error
+         * @since 1.1
+         */
+        void decode(byte[] block, int off, int len,
+                BiConsumer<String, String> sink) throws IOException {
+
+            int end = off + len;
+            pos = off;
+            boolean isFirst = true;
+            while (pos < end) {
+                int b = block[pos] & 0xff;
+                if (0 != (b & 0x80)) {
+                    // Indexed field
+                    int index = integer(block, end, 7);
+                    sink.accept(name(index), value(index));
+                } else if (0x20 == (b & 0xe0)) {
+                    // Table size update, only ahead of the fields
+                    int size = integer(block, end, 5);
+                    if (!isFirst || size > maxTableSize) {
+                        throw new IOException("Bad table size update");
+                    }
+
+                    table.maxSize(size);
+                    continue;
+                } else {
+                    // Literal, with incremental indexing if 01xxxxxx
+                    boolean isIndexed = 0x40 == (b & 0xc0);
+                    int index = integer(block, end, isIndexed ? 6 : 4);
+                    String name = 0 == index ? string(block, end)
+                            : name(index);
+                    String value = string(block, end);
+                    if (isIndexed) {
+                        table.add(name, value);
+                    }
+
+                    sink.accept(name, value);
+                }
+
+                isFirst = false;
+            }
+        }
+
+        /**
+         * Get the name of a field of the static or dynamic table.
+         *
+         * @param index an index from 1
+         * @return the field's name
+         * @throws IOException if the index is out of both tables
+         * @since 1.1
+         */
+        private String name(int index) throws IOException {
+            if (index < STATIC_NAMES.length) {
+                if (0 == index) {
+                    throw new IOException("Index 0");
+                }
+
+                return STATIC_NAMES[index];
+            }
+
+            index -= STATIC_NAMES.length;
+            if (index >= table.count) {
+                throw new IOException("Index out of table");
+            }
+
+            return table.name(index);
+        }
+
+        /**
+         * Get the value of a field of the static or dynamic table.
+         *
+         * @param index a valid index from 1
+         * @return the field's value
+         * @since 1.1
+         */
+        private String value(int index) {
+            return index < STATIC_NAMES.length ? STATIC_VALUES[index]
+                    : table.value(index - STATIC_NAMES.length);
+        }
+
+        /**
+         * Decode an integer with a prefix of n bits.
+         *
+         * @param block the block
+         * @param end end of the block
+         * @param n the prefix's length
+         * @return the integer
+         * @throws IOException if truncated or too large
+         * @since 1.1
+         */
+        private int integer(byte[] block, int end, int n) throws IOException {
+            int max = (1 << n) - 1;
+            int value = block[pos++] & max;
+            if (value < max) {
+                return value;
+            }
+
+            for (int shift = 0;; shift += 7) {
+                if (pos == end || shift > 21) {
+                    throw new IOException("Bad integer");
+                }
+
+                int b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if (value < 0) {
+                    throw new IOException("Bad integer");
+                }
+
+                if (0 == (b & 0x80)) {
+                    return value;
+                }
+            }
+        }
+
+        /**
+         * Decode a string literal.
+         *
+         * @param block the block
+         * @param end end of the block
+         * @return the string
+         * @throws IOException if truncated or badly encoded
+         * @since 1.1
+         */
+        private String string(byte[] block, int end) throws IOException {
+            if (pos == end) {
+                throw new IOException("Missing string");
+            }
+
+            boolean isHuffman = 0 != (block[pos] & 0x80);
+            int len = integer(block, end, 7);
+            if (len > end - pos) {
+                throw new IOException("Truncated string");
+            }
+
+            int start = pos;
+            pos += len;
+            if (!isHuffman) {
+                char[] chars = new char[len];
+                for (int i = 0; i < len; i++) {
+                    chars[i] = (char) (block[start + i] & 0xff);
+                }
+
+                return new String(chars);
+            }
+
+            StringBuilder sb = new StringBuilder(len * 8 / 5);
+            int node = 0;
+            // Bits since the last symbol, all 1 if a valid padding
+            int pending = 0;
+            boolean isPadding = true;
+            for (int i = start; i < pos; i++) {
+                int b = block[i] & 0xff;
+                for (int bit = 7; bit >= 0; bit--) {
+                    int child = TREE[2 * node + (b >>> bit & 1)];
+                    pending++;
+                    isPadding &= 0 != (b >>> bit & 1);
+                    if (child < 0) {
+                        if (-1 - child == EOS) {
+                            throw new IOException("EOS in string");
+                        }
+
+                        sb.append((char) (-1 - child));
+                        node = 0;
+                        pending = 0;
+                        isPadding = true;
+                    } else {
+                        node = child;
+                    }
+                }
+            }
+
+            if (pending > 7 || !isPadding) {
+                throw new IOException("Bad Huffman padding");
+            }
+
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An encoder of the header blocks sent on a connection. Fields are
+     * indexed in its dynamic table, except lengths and credentials.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class Encoder {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Table table = new Table();
+
+        /**
+         * Smallest maximum size set since the last block, or -1 if none.
+         *
+         * @since 1.1
+         */
+        private int minSize = -1;
+
+        /**
+         * Maximum size set since the last block, or -1 if none.
+         *
+         * @since 1.1
+         */
+        private int newSize = -1;
+
+        /**
+         * Apply the table size allowed by the peer, at most the default.
+         *
+         * @param value the peer's SETTINGS_HEADER_TABLE_SIZE
+         * @since 1.1
+         */
+        void maxTableSize(int value) {
+            int size = Math.min(value, TABLE_SIZE);
+            if (size != table.maxSize || -1 != newSize) {
+                minSize = -1 == minSize ? size : Math.min(minSize, size);
+                newSize = size;
+            }
+        }
+
+        /**
+         * Start a header block, signalling the table size changes since the
+         * previous one.
+         *
+         * @param out the block
+         * @since 1.1
+         */
+        void start(ByteArrayOutputStream out) {
+            if (-1 == newSize) {
+                return;
+            }
+
+            if (minSize < newSize) {
+                integer(out, 0x20, 5, minSize);
+            }
+
+            integer(out, 0x20, 5, newSize);
+            table.maxSize(newSize);
+            minSize = -1;
+            newSize = -1;
+        }
+
+        /**
+         * Encode a field.
+         *
+         * @param out the block
+         * @param name the field's name, in lower case
+         * @param value the field's value
+         * @since 1.1
+         */
+        void encode(ByteArrayOutputStream out, String name, String value) {
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (null != exact) {
+                integer(out, 0x80, 7, exact);
+                return;
+            }
+
+            int nameIndex = 0;
+            for (int i = 0; i < table.count; i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        integer(out, 0x80, 7, STATIC_NAMES.length + i);
+                        return;
+                    }
+
+                    if (0 == nameIndex) {
+                        nameIndex = STATIC_NAMES.length + i;
+                    }
+                }
+            }
+
+            Integer staticIndex = STATIC_INDEX.get(name);
+            if (null != staticIndex) {
+                nameIndex = staticIndex;
+            }
+
+            boolean isSensitive = "authorization".equals(name)
+                    || "set-cookie".equals(name);
+            if (isSensitive) {
+                // Never indexed
+                integer(out, 0x10, 4, nameIndex);
+            } else if ("content-length".equals(name)
+                    || size(name, value) > table.maxSize / 2) {
+                // Without indexing
+                integer(out, 0x00, 4, nameIndex);
+            } else {
+                integer(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+
+            if (0 == nameIndex) {
+                string(out, name);
+            }
+
+            string(out, value);
+        }
+
+        /**
+         * Encode an integer with a prefix of n bits.
+         *
+         * @param out the block
+         * @param flags the bits above the prefix
+         * @param n the prefix's length
+         * @param value the integer
+         * @since 1.1
+         */
+        private static void integer(ByteArrayOutputStream out, int flags,
+                int n, int value) {
+
+            int max = (1 << n) - 1;
+            if (value < max) {
+                out.write(flags | value);
+                return;
+            }
+
+            out.write(flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                out.write(value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+
+            out.write(value);
+        }
+
+        /**
+         * Encode a string literal, with Huffman if shorter.
+         *
+         * @param out the block
+         * @param s the string, in ISO-8859-1
+         * @since 1.1
+         */
+        private static void string(ByteArrayOutputStream out, String s) {
+            long bits = 0;
+            for (int i = 0; i < s.length(); i++) {
+                bits += LENGTHS[s.charAt(i) & 0xff];
+            }
+
+            int len = (int) ((bits + 7) / 8);
+            if (len >= s.length()) {
+                integer(out, 0x00, 7, s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    out.write(s.charAt(i));
+                }
+
+                return;
+            }
+
+            integer(out, 0x80, 7, len);
+            long acc = 0;
+            int count = 0;
+            for (int i = 0; i < s.length(); i++) {
+                int symbol = s.charAt(i) & 0xff;
+                acc = acc << LENGTHS[symbol] | CODES[symbol];
+                count += LENGTHS[symbol];
+                while (count >= 8) {
+                    count -= 8;
+                    out.write((int) (acc >>> count));
+                }
+            }
+
+            if (count > 0) {
+                // Pad with the most significant bits of EOS
+                out.write((int) (acc << (8 - count) | 0xff >>> count));
+            }
+        }
+    }
+}
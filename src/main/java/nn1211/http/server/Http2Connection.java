@@ -0,0 +1,1977 @@
+package nn1211.http.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import nn1211.http.Content;
+import nn1211.http.Content.FileContent;
+import nn1211.io.BufferPool;
+import static nn1211.http.HttpHeader.*;
+
+/**
+ * A HTTP/2 connection over cleartext TCP (h2c), as of RFC 9113.
+ * <p>
+ * A connection enters HTTP/2 either with the client preface, the client
+ * knowing in advance that the server speaks it, or by upgrading from a
+ * HTTP/1.1 request without body, which becomes stream 1. Its channel is in
+ * blocking mode: the thread calling {@link #serve} reads the frames, while
+ * each stream is dispatched to a worker and writes its response frames
+ * under a lock, so that the requests of a connection neither wait for one
+ * another nor for their reading.
+ * </p>
+ * <p>
+ * Sent DATA frames are limited by the windows of the connection and of
+ * their stream, a worker waiting up to the write timeout for the client to
+ * open them. The window of a stream reopens as its handler reads the body,
+ * so that a slow handler pushes back on its client only, while the window
+ * of the connection reopens as soon as bytes are received.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class Http2Connection {
+
+    /**
+     * The client connection preface.
+     *
+     * @since 1.1
+     */
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * The response switching an upgraded connection to h2c.
+     *
+     * @since 1.1
+     */
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101"
+            + " Switching Protocols\r\nConnection: Upgrade\r\n"
+            + "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Maximum size of a frame payload, the protocol's minimum.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_FRAME = 16384;
+
+    /**
+     * Initial flow control window.
+     *
+     * @since 1.1
+     */
+    private static final int WINDOW = 65535;
+
+    /**
+     * Largest flow control window.
+     *
+     * @since 1.1
+     */
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    /**
+     * Maximum number of concurrent streams per connection.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_STREAMS = 100;
+
+    /**
+     * Maximum size of the decoded header fields of a request.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_HEADER_LIST = 2 * HttpServer.MAX_HEAD;
+
+    /**
+     * Frame types.
+     *
+     * @since 1.1
+     */
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2,
+            RST_STREAM = 0x3, SETTINGS = 0x4, PUSH_PROMISE = 0x5,
+            PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8,
+            CONTINUATION = 0x9;
+
+    /**
+     * Frame flags.
+     *
+     * @since 1.1
+     */
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4,
+            PADDED = 0x8, PRIORITY_FLAG = 0x20;
+
+    /**
+     * Error codes.
+     *
+     * @since 1.1
+     */
+    private static final int NO_ERROR = 0x0, PROTOCOL_ERROR = 0x1,
+            INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+            STREAM_CLOSED = 0x5, FRAME_SIZE_ERROR = 0x6,
+            REFUSED_STREAM = 0x7, COMPRESSION_ERROR = 0x9,
+            ENHANCE_YOUR_CALM = 0xb;
+
+    /**
+     * Settings identifiers.
+     *
+     * @since 1.1
+     */
+    private static final int HEADER_TABLE_SIZE = 0x1, ENABLE_PUSH = 0x2,
+            MAX_CONCURRENT_STREAMS = 0x3, INITIAL_WINDOW_SIZE = 0x4,
+            MAX_FRAME_SIZE = 0x5, MAX_HEADER_LIST_SIZE = 0x6;
+
+    /**
+     * Header fields specific to a HTTP/1.x connection, never sent.
+     *
+     * @since 1.1
+     */
+    private static final String[] HOP_BY_HOP = {"connection", "keep-alive",
+        "proxy-connection", "transfer-encoding", "upgrade"};
+
+    /**
+     * Lower case header names of responses.
+     *
+     * @since 1.1
+     */
+    private static final Map<String, String> NAMES = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final HttpServer server;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The connection's timeout, armed while waiting for frames without any
+     * stream open.
+     *
+     * @since 1.1
+     */
+    private final TimerWheel.Timeout timeout;
+
+    /**
+     * The pool running the streams.
+     *
+     * @since 1.1
+     */
+    private final WorkerPool workers;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final String clientIP;
+
+    /**
+     * The frames written, guarding the encoder and the block.
+     *
+     * @since 1.1
+     */
+    private final TimedOutputStream out;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+    /**
+     * Header block being encoded.
+     *
+     * @since 1.1
+     */
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.TABLE_SIZE);
+
+    /**
+     * Header block being received.
+     *
+     * @since 1.1
+     */
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+
+    /**
+     * Open streams, until their response is written.
+     *
+     * @since 1.1
+     */
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * Payload of the frame being read.
+     *
+     * @since 1.1
+     */
+    private final byte[] payload = new byte[MAX_FRAME];
+
+    /**
+     * The bytes read, from index 0.
+     *
+     * @since 1.1
+     */
+    private ByteBuffer in;
+
+    /**
+     * Highest stream opened by the client.
+     *
+     * @since 1.1
+     */
+    private volatile int lastStreamId;
+
+    /**
+     * Stream whose header block continues, or 0.
+     *
+     * @since 1.1
+     */
+    private int continued;
+
+    /**
+     * Whether the stream of the header block being received ends with it.
+     *
+     * @since 1.1
+     */
+    private boolean isBlockEnd;
+
+    /**
+     * Window of the connection for received DATA.
+     *
+     * @since 1.1
+     */
+    private int receiveWindow = WINDOW;
+
+    /**
+     * Window of the connection for sent DATA, guarded by this.
+     *
+     * @since 1.1
+     */
+    private long sendWindow = WINDOW;
+
+    /**
+     * Initial window of the streams for sent DATA, guarded by this.
+     *
+     * @since 1.1
+     */
+    private long initialWindow = WINDOW;
+
+    /**
+     * Maximum size of a sent frame, guarded by this.
+     *
+     * @since 1.1
+     */
+    private int maxFrame = MAX_FRAME;
+
+    /**
+     * Whether a GOAWAY was sent or received, no more stream being opened.
+     *
+     * @since 1.1
+     */
+    private volatile boolean isGoingAway = false;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile boolean isClosed = false;
+
+    /**
+     * Create a connection over a channel in blocking mode.
+     *
+     * @param server the server
+     * @param channel the connection's channel
+     * @param timeout the connection's timeout, closing it when expired
+     * @param workers the pool running the streams; the calling thread of
+     * {@link WorkerPool#direct()} is needed to read, so that a thread is
+     * started for each stream instead
+     * @since 1.1
+     */
+    Http2Connection(HttpServer server, SocketChannel channel,
+            TimerWheel.Timeout timeout, WorkerPool workers) {
+
+        this.server = server;
+        this.channel = channel;
+        this.timeout = timeout;
+        this.workers = workers instanceof WorkerPool.DirectPool
+                ? WorkerPool.unbounded() : workers;
+        clientIP = channel.socket().getInetAddress().toString();
+        out = new TimedOutputStream(channel,
+                server.timer().timeout(this::close), server.writeTimeout());
+    }
+
+    /**
+     * Determine whether a request head that failed to parse as HTTP/1.x is
+     * the start of the client preface.
+     *
+     * @param buf the connection buffer holding the head from index 0
+     * @return true if the bytes received are a prefix of the preface
+     * @since 1.1
+     */
+    static boolean isPreface(ByteBuffer buf) {
+        int length = Math.min(buf.position(), PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (buf.get(i) != PREFACE[i]) {
+                return false;
+            }
+        }
+
+        return length > 0;
+    }
+
+    /**
+     * Determine whether a request asks to upgrade its connection to h2c.
+     * Requests with a body are served as HTTP/1.1.
+     *
+     * @param req a request
+     * @return true to upgrade
+     * @since 1.1
+     */
+    static boolean isUpgrade(ServerRequest.BufferRequest req) {
+        String upgrade = req.header(UPGRADE);
+        return req.isHttp11() && !req.hasBody() && null != upgrade
+                && null != req.header(HTTP2_SETTINGS)
+                && upgrade.toLowerCase(Locale.ROOT).matches("(.*,)? *h2c *(,.*)?");
+    }
+
+    /**
+     * Serve the streams of this connection until it is closed by either
+     * side, by its timeout or by a drain.
+     *
+     * @param received the connection buffer, holding the bytes received
+     * after the HTTP/1.1 head of an upgrade, or else the start of the
+     * preface, from index 0
+     * @param upgrade the request of an upgrade, counted as started by the
+     * caller, or null
+     * @since 1.1
+     */
+    void serve(ByteBuffer received, ServerRequest.BufferRequest upgrade) {
+
+        in = BufferPool.shared().acquire(9 + MAX_FRAME);
+        received.flip();
+        in.put(received);
+        received.clear();
+
+        try {
+            if (null != upgrade) {
+                synchronized (out) {
+                    out.write(SWITCHING_PROTOCOLS);
+                }
+
+                byte[] settings = Base64.getUrlDecoder()
+                        .decode(upgrade.header(HTTP2_SETTINGS).trim());
+                settings(settings, settings.length);
+            }
+
+            writeSettings();
+
+            fill(PREFACE.length);
+            for (int i = 0; i < PREFACE.length; i++) {
+                if (in.get(i) != PREFACE[i]) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "Preface");
+                }
+            }
+
+            consume(PREFACE.length);
+
+            if (null != upgrade) {
+                lastStreamId = 1;
+                Stream stream = new Stream(1, upgrade, initialWindow);
+                stream.isEnded = true;
+                streams.put(1, stream);
+                dispatch(stream);
+            }
+
+            server.http2Opened(this);
+            while (!isClosed) {
+                read();
+            }
+        } catch (ProtocolException protocolEx) {
+            abort(protocolEx.code);
+        } catch (IllegalArgumentException argEx) {
+            // Bad HTTP2-Settings
+            abort(PROTOCOL_ERROR);
+        } catch (IOException ioEx) {
+            // Unless closed by either side, its timeout, a drain or stop
+            if (!isClosed && !(ioEx instanceof EOFException)
+                    && !(ioEx instanceof ClosedChannelException)) {
+                ioEx.printStackTrace(System.err);
+            }
+        } finally {
+            close();
+            server.http2Closed(this);
+            BufferPool.shared().release(in);
+            synchronized (out) {
+                out.release();
+            }
+        }
+    }
+
+    /**
+     * Stop opening streams, as part of a drain: send a GOAWAY and close
+     * this connection once its open streams are answered.
+     *
+     * @since 1.1
+     */
+    void goAway() {
+        try {
+            goAway(NO_ERROR);
+        } catch (IOException ioEx) {
+            close();
+        }
+
+        if (streams.isEmpty()) {
+            close();
+        }
+    }
+
+    /**
+     * Send a GOAWAY for a connection error, before closing.
+     *
+     * @param code the error code
+     * @since 1.1
+     */
+    private void abort(int code) {
+        try {
+            goAway(code);
+        } catch (IOException ioEx) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Close the channel, waking the reader and the workers waiting on it.
+     * Open streams are reset.
+     *
+     * @since 1.1
+     */
+    private void close() {
+        isClosed = true;
+        try {
+            channel.close();
+        } catch (IOException ioEx) {
+            ioEx.printStackTrace(System.err);
+        }
+
+        for (Stream stream : streams.values()) {
+            stream.reset();
+        }
+
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Read and handle a frame.
+     *
+     * @throws IOException I/O exception or connection error
+     * @since 1.1
+     */
+    private void read() throws IOException {
+        fill(9);
+        int length = (in.get(0) & 0xff) << 16 | (in.get(1) & 0xff) << 8
+                | in.get(2) & 0xff;
+        int type = in.get(3) & 0xff;
+        int flags = in.get(4) & 0xff;
+        int id = in.getInt(5) & Integer.MAX_VALUE;
+        if (length > MAX_FRAME) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "Frame size");
+        }
+
+        fill(9 + length);
+        for (int i = 0; i < length; i++) {
+            payload[i] = in.get(9 + i);
+        }
+
+        consume(9 + length);
+
+        if (0 != continued && (CONTINUATION != type || id != continued)) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Continuation");
+        }
+
+        switch (type) {
+            case DATA:
+                data(id, flags, length);
+                break;
+            case HEADERS:
+                headers(id, flags, length);
+                break;
+            case PRIORITY:
+                if (5 != length) {
+                    reset(id, FRAME_SIZE_ERROR);
+                }
+                break;
+            case RST_STREAM:
+                if (0 == id || id > lastStreamId) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "Reset");
+                } else if (4 != length) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "Reset");
+                }
+
+                Stream stream = streams.get(id);
+                if (null != stream) {
+                    stream.reset();
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+                break;
+            case SETTINGS:
+                if (0 != id) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "Settings");
+                }
+
+                if (0 == (flags & ACK)) {
+                    settings(payload, length);
+                    writeFrame(SETTINGS, ACK, 0, payload, 0, 0, true);
+                } else if (0 != length) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "Settings");
+                }
+                break;
+            case PUSH_PROMISE:
+                throw new ProtocolException(PROTOCOL_ERROR, "Push");
+            case PING:
+                if (0 != id) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "Ping");
+                } else if (8 != length) {
+                    throw new ProtocolException(FRAME_SIZE_ERROR, "Ping");
+                }
+
+                if (0 == (flags & ACK)) {
+                    writeFrame(PING, ACK, 0, payload, 0, 8, true);
+                }
+                break;
+            case GOAWAY:
+                if (0 != id) {
+                    throw new ProtocolException(PROTOCOL_ERROR, "Goaway");
+                }
+
+                // The client opens no more streams
+                isGoingAway = true;
+                if (streams.isEmpty()) {
+                    close();
+                }
+                break;
+            case WINDOW_UPDATE:
+                windowUpdate(id, length);
+                break;
+            case CONTINUATION:
+                if (0 == continued) {
+                    throw new ProtocolException(PROTOCOL_ERROR,
+                            "Continuation");
+                }
+
+                block.write(payload, 0, length);
+                if (block.size() > MAX_HEADER_LIST) {
+                    throw new ProtocolException(ENHANCE_YOUR_CALM, "Headers");
+                }
+
+                if (0 != (flags & END_HEADERS)) {
+                    continued = 0;
+                    request(id);
+                }
+                break;
+            default:
+                // Unknown frames are ignored
+        }
+    }
+
+    /**
+     * Handle a DATA frame.
+     *
+     * @param id the stream
+     * @param flags the frame's flags
+     * @param length the payload's length
+     * @throws IOException I/O exception or connection error
+     * @since 1.1
+     */
+    private void data(int id, int flags, int length) throws IOException {
+        if (0 == id || id > lastStreamId) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Data");
+        }
+
+        int pad = padding(flags, length);
+        int off = 0 == pad ? 0 : 1;
+
+        // The window of the connection counts padding and frames of closed
+        // streams, and reopens at once
+        receiveWindow -= length;
+        if (receiveWindow < 0) {
+            throw new ProtocolException(FLOW_CONTROL_ERROR, "Window");
+        }
+
+        if (receiveWindow <= WINDOW / 2) {
+            writeWindowUpdate(0, WINDOW - receiveWindow);
+            receiveWindow = WINDOW;
+        }
+
+        Stream stream = streams.get(id);
+        if (null == stream || stream.isReset) {
+            // Reset by this side, its last frames may still come
+            return;
+        }
+
+        if (stream.isEnded) {
+            reset(id, STREAM_CLOSED);
+            return;
+        }
+
+        if (!stream.receive(payload, off, length - off - pad, length,
+                0 != (flags & END_STREAM))) {
+            reset(id, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Get the padding of a DATA or HEADERS frame.
+     *
+     * @param flags the frame's flags
+     * @param length the payload's length
+     * @return the number of padding bytes, excluding the pad length field
+     * @throws ProtocolException if the padding exceeds the payload
+     * @since 1.1
+     */
+    private int padding(int flags, int length) throws ProtocolException {
+        if (0 == (flags & PADDED)) {
+            return 0;
+        }
+
+        int pad = 0 == length ? -1 : payload[0] & 0xff;
+        if (pad < 0 || pad >= length) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Padding");
+        }
+
+        return pad;
+    }
+
+    /**
+     * Handle a HEADERS frame, which opens a stream or ends it with
+     * trailers.
+     *
+     * @param id the stream
+     * @param flags the frame's flags
+     * @param length the payload's length
+     * @throws IOException I/O exception or connection error
+     * @since 1.1
+     */
+    private void headers(int id, int flags, int length) throws IOException {
+        if (0 == id || 0 == (id & 1)) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Stream id");
+        }
+
+        int off = 0 == (flags & PADDED) ? 0 : 1;
+        int end = length - padding(flags, length);
+        if (0 != (flags & PRIORITY_FLAG)) {
+            off += 5;
+        }
+
+        if (off > end) {
+            throw new ProtocolException(PROTOCOL_ERROR, "Headers");
+        }
+
+        block.reset();
+        block.write(payload, off, end - off);
+        isBlockEnd = 0 != (flags & END_STREAM);
+        if (0 == (flags & END_HEADERS)) {
+            continued = id;
+        } else {
+            request(id);
+        }
+    }
+
+    /**
+     * Decode a complete header block and open its stream, or end the
+     * stream receiving trailers.
+     *
+     * @param id the stream
+     * @throws IOException I/O exception or connection error
+     * @since 1.1
+     */
+    private void request(int id) throws IOException {
+        long received = System.nanoTime();
+        Http2Request req = new Http2Request(clientIP, received,
+                server.maxBodySize());
+        try {
+            byte[] bytes = block.toByteArray();
+            decoder.decode(bytes, 0, bytes.length, req::field);
+        } catch (IOException ioEx) {
+            throw new ProtocolException(COMPRESSION_ERROR, ioEx.getMessage());
+        }
+
+        if (id <= lastStreamId) {
+            Stream stream = streams.get(id);
+            if (null == stream || stream.isEnded) {
+                throw new ProtocolException(STREAM_CLOSED, "Headers");
+            } else if (!isBlockEnd) {
+                reset(id, PROTOCOL_ERROR);
+            } else {
+                // Trailers are dropped
+                stream.receive(payload, 0, 0, 0, true);
+            }
+
+            return;
+        }
+
+        lastStreamId = id;
+        if (isGoingAway) {
+            return;
+        }
+
+        if (streams.size() >= MAX_STREAMS) {
+            reset(id, REFUSED_STREAM);
+            return;
+        }
+
+        if (!req.isValid()) {
+            server.log(clientIP, 400);
+            reset(id, PROTOCOL_ERROR);
+            return;
+        }
+
+        Stream stream = new Stream(id, req, initialWindow());
+        req.stream = stream;
+        stream.isEnded = isBlockEnd;
+        streams.put(id, stream);
+        dispatch(stream);
+    }
+
+    /**
+     * Apply the settings of the client.
+     *
+     * @param settings the settings' payload
+     * @param length the payload's length
+     * @throws ProtocolException if a setting is invalid
+     * @since 1.1
+     */
+    private void settings(byte[] settings, int length)
+            throws ProtocolException {
+
+        if (0 != length % 6) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "Settings");
+        }
+
+        for (int i = 0; i < length; i += 6) {
+            int id = (settings[i] & 0xff) << 8 | settings[i + 1] & 0xff;
+            long value = ((settings[i + 2] & 0xffL) << 24
+                    | (settings[i + 3] & 0xff) << 16
+                    | (settings[i + 4] & 0xff) << 8 | settings[i + 5] & 0xff);
+
+            switch (id) {
+                case HEADER_TABLE_SIZE:
+                    synchronized (out) {
+                        encoder.maxTableSize((int) Math.min(value,
+                                Integer.MAX_VALUE));
+                    }
+                    break;
+                case ENABLE_PUSH:
+                    if (value > 1) {
+                        throw new ProtocolException(PROTOCOL_ERROR, "Push");
+                    }
+                    break;
+                case INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        throw new ProtocolException(FLOW_CONTROL_ERROR,
+                                "Window");
+                    }
+
+                    synchronized (this) {
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += value - initialWindow;
+                        }
+
+                        initialWindow = value;
+                        notifyAll();
+                    }
+                    break;
+                case MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME || value > 0xffffff) {
+                        throw new ProtocolException(PROTOCOL_ERROR, "Frame");
+                    }
+
+                    synchronized (this) {
+                        maxFrame = (int) value;
+                    }
+                    break;
+                default:
+                    // Ignored
+            }
+        }
+    }
+
+    /**
+     * Handle a WINDOW_UPDATE frame.
+     *
+     * @param id the stream, or 0 for the connection
+     * @param length the payload's length
+     * @throws IOException I/O exception or connection error
+     * @since 1.1
+     */
+    private void windowUpdate(int id, int length) throws IOException {
+        if (4 != length) {
+            throw new ProtocolException(FRAME_SIZE_ERROR, "Window");
+        }
+
+        int increment = ((payload[0] & 0x7f) << 24 | (payload[1] & 0xff) << 16
+                | (payload[2] & 0xff) << 8 | payload[3] & 0xff);
+        if (0 == increment) {
+            if (0 == id) {
+                throw new ProtocolException(PROTOCOL_ERROR, "Window");
+            }
+
+            reset(id, PROTOCOL_ERROR);
+            return;
+        }
+
+        synchronized (this) {
+            if (0 == id) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) {
+                    throw new ProtocolException(FLOW_CONTROL_ERROR, "Window");
+                }
+            } else {
+                Stream stream = streams.get(id);
+                if (null != stream) {
+                    stream.sendWindow += increment;
+                    if (stream.sendWindow > MAX_WINDOW) {
+                        stream.reset();
+                        reset(id, FLOW_CONTROL_ERROR);
+                    }
+                }
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Serve a stream on a worker.
+     *
+     * @param stream a stream whose request is complete
+     * @since 1.1
+     */
+    private void dispatch(Stream stream) {
+        server.requestStarted();
+        if (!workers.execute(() -> run(stream))) {
+            ServerResponse resp = ServerResponse.serviceUnavailable();
+            server.log(Metrics.NO_ROUTE, stream.req, resp, System.nanoTime());
+            try {
+                reset(stream.id, REFUSED_STREAM);
+            } catch (IOException ioEx) {
+                close();
+            }
+
+            finish(stream);
+        }
+    }
+
+    /**
+     * Dispatch the request of a stream and write its response. It runs on a
+     * worker thread.
+     *
+     * @param stream a stream
+     * @since 1.1
+     */
+    private void run(Stream stream) {
+        CompletableFuture<ServerResponse> future;
+        try {
+            future = server.dispatchAsync(stream.req);
+        } catch (IOException | RuntimeException ex) {
+            fail(stream, ex);
+            finish(stream);
+            return;
+        }
+
+        if (future.isDone()) {
+            respond(stream, future.join());
+            return;
+        }
+
+        future.thenAccept(resp -> {
+            Runnable task = () -> respond(stream, resp);
+            if (!workers.execute(task)) {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Write the response of a stream.
+     *
+     * @param stream a stream
+     * @param resp its response
+     * @since 1.1
+     */
+    private void respond(Stream stream, ServerResponse resp) {
+        try {
+            FileContent file = ResponseEncoder.transfer(resp);
+            byte[] data = null;
+            if (null == resp.writer() && null == file) {
+                data = resp.body().toBytes();
+            }
+
+            int status = resp.statusCode().asInt();
+            boolean hasBody = !"HEAD".equals(stream.req.method())
+                    && 204 != status && 304 != status
+                    && (null == data || data.length > 0);
+
+            writeHeaders(stream, resp, !hasBody);
+            if (!hasBody) {
+                return;
+            }
+
+            try (DataOutputStream body = new DataOutputStream(stream)) {
+                if (null != data) {
+                    body.write(data);
+                } else if (null != file) {
+                    WritableByteChannel target = Channels.newChannel(body);
+                    long size = file.size();
+                    for (long sent = 0; sent < size;
+                            sent += HttpServer.WRITE_CHUNK) {
+                        file.slice(sent, Math.min(HttpServer.WRITE_CHUNK,
+                                size - sent)).transferTo(target);
+                    }
+                } else {
+                    int threshold = ((ServerResponse.StreamingResponse) resp)
+                            .flushThreshold();
+                    OutputStream buffered = new BufferedOutputStream(body,
+                            threshold) {
+                        @Override
+                        public void close() throws IOException {
+                            flush();
+                        }
+                    };
+                    resp.writer().write(buffered);
+                    buffered.flush();
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            fail(stream, ex);
+        } finally {
+            finish(stream);
+        }
+    }
+
+    /**
+     * Reset a stream whose response failed, unless closed meanwhile.
+     *
+     * @param stream a stream
+     * @param ex the failure
+     * @since 1.1
+     */
+    private void fail(Stream stream, Exception ex) {
+        if (isClosed || stream.isReset) {
+            return;
+        }
+
+        ex.printStackTrace(System.err);
+        stream.reset();
+        try {
+            reset(stream.id, INTERNAL_ERROR);
+        } catch (IOException ioEx) {
+            close();
+        }
+    }
+
+    /**
+     * Close a stream once its response is written, resetting it if its
+     * request was not fully received. The last stream of a connection going
+     * away closes it.
+     *
+     * @param stream a stream
+     * @since 1.1
+     */
+    private void finish(Stream stream) {
+        if (!stream.isEnded && !stream.isReset) {
+            stream.reset();
+            try {
+                reset(stream.id, NO_ERROR);
+            } catch (IOException ioEx) {
+                close();
+            }
+        }
+
+        streams.remove(stream.id);
+        server.requestsFinished(1);
+        if (isGoingAway && streams.isEmpty()) {
+            close();
+        }
+    }
+
+    /**
+     * Write the header block of a response, in a HEADERS frame followed by
+     * CONTINUATION frames if larger than a frame.
+     *
+     * @param stream the stream
+     * @param resp the response
+     * @param isEnd true if the response has no body
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void writeHeaders(Stream stream, ServerResponse resp,
+            boolean isEnd) throws IOException {
+
+        int frame = maxFrame();
+        synchronized (out) {
+            encoded.reset();
+            encoder.start(encoded);
+            encoder.encode(encoded, ":status",
+                    Integer.toString(resp.statusCode().asInt()));
+            resp.forEachHeader((name, value) -> {
+                String lower = lowerCase(name);
+                for (String hop : HOP_BY_HOP) {
+                    if (hop.equals(lower)) {
+                        return;
+                    }
+                }
+
+                encoder.encode(encoded, lower, value);
+            });
+
+            byte[] bytes = encoded.toByteArray();
+            int off = 0;
+            do {
+                int len = Math.min(frame, bytes.length - off);
+                int flags = off + len == bytes.length ? END_HEADERS : 0;
+                if (0 == off && isEnd) {
+                    flags |= END_STREAM;
+                }
+
+                writeFrame(0 == off ? HEADERS : CONTINUATION, flags,
+                        stream.id, bytes, off, len, isEnd
+                        && off + len == bytes.length);
+                off += len;
+            } while (off < bytes.length);
+        }
+    }
+
+    /**
+     * Write a frame.
+     *
+     * @param type the frame's type
+     * @param flags the frame's flags
+     * @param id the stream, or 0
+     * @param b the payload's array
+     * @param off the payload's offset
+     * @param len the payload's length
+     * @param isFlushed true to send the frames written so far
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void writeFrame(int type, int flags, int id, byte[] b, int off,
+            int len, boolean isFlushed) throws IOException {
+
+        synchronized (out) {
+            if (isClosed) {
+                throw new ClosedChannelException();
+            }
+
+            out.write(len >>> 16);
+            out.write(len >>> 8);
+            out.write(len);
+            out.write(type);
+            out.write(flags);
+            out.write(id >>> 24);
+            out.write(id >>> 16);
+            out.write(id >>> 8);
+            out.write(id);
+            out.write(b, off, len);
+            if (isFlushed) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Write the settings of this side.
+     *
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void writeSettings() throws IOException {
+        byte[] settings = new byte[12];
+        setting(settings, 0, MAX_CONCURRENT_STREAMS, MAX_STREAMS);
+        setting(settings, 6, MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length, true);
+    }
+
+    /**
+     * Encode a setting.
+     *
+     * @param settings the settings' payload
+     * @param off the setting's offset
+     * @param id the setting's identifier
+     * @param value the setting's value
+     * @since 1.1
+     */
+    private static void setting(byte[] settings, int off, int id, int value) {
+        settings[off] = (byte) (id >>> 8);
+        settings[off + 1] = (byte) id;
+        settings[off + 2] = (byte) (value >>> 24);
+        settings[off + 3] = (byte) (value >>> 16);
+        settings[off + 4] = (byte) (value >>> 8);
+        settings[off + 5] = (byte) value;
+    }
+
+    /**
+     * Write a WINDOW_UPDATE frame.
+     *
+     * @param id the stream, or 0 for the connection
+     * @param increment the window's increment
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void writeWindowUpdate(int id, int increment) throws IOException {
+        byte[] frame = {(byte) (increment >>> 24), (byte) (increment >>> 16),
+            (byte) (increment >>> 8), (byte) increment};
+        writeFrame(WINDOW_UPDATE, 0, id, frame, 0, 4, true);
+    }
+
+    /**
+     * Write a RST_STREAM frame.
+     *
+     * @param id the stream
+     * @param code the error code
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void reset(int id, int code) throws IOException {
+        byte[] frame = {(byte) (code >>> 24), (byte) (code >>> 16),
+            (byte) (code >>> 8), (byte) code};
+        writeFrame(RST_STREAM, 0, id, frame, 0, 4, true);
+    }
+
+    /**
+     * Write a GOAWAY frame with the last stream opened by the client.
+     *
+     * @param code the error code
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void goAway(int code) throws IOException {
+        isGoingAway = true;
+        int id = lastStreamId;
+        byte[] frame = {(byte) (id >>> 24), (byte) (id >>> 16),
+            (byte) (id >>> 8), (byte) id, (byte) (code >>> 24),
+            (byte) (code >>> 16), (byte) (code >>> 8), (byte) code};
+        writeFrame(GOAWAY, 0, 0, frame, 0, frame.length, true);
+    }
+
+    /**
+     * Reserve room in the send windows of a stream and of the connection,
+     * waiting up to the write timeout for the client to open them.
+     *
+     * @param stream the stream
+     * @param wanted the number of bytes to send
+     * @return the number of bytes that may be sent in a frame, at least 1
+     * @throws IOException if the stream is reset, the connection closed or
+     * the window stays closed
+     * @since 1.1
+     */
+    private int reserve(Stream stream, int wanted) throws IOException {
+        synchronized (this) {
+            long n = Math.min(Math.min(wanted, maxFrame),
+                    Math.min(stream.sendWindow, sendWindow));
+            if (n > 0 && !stream.isReset && !isClosed) {
+                stream.sendWindow -= n;
+                sendWindow -= n;
+                return (int) n;
+            }
+        }
+
+        // Send what is buffered before waiting for the client
+        synchronized (out) {
+            if (!isClosed) {
+                out.flush();
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                server.writeTimeout());
+        synchronized (this) {
+            while (true) {
+                if (stream.isReset || isClosed) {
+                    throw new ClosedChannelException();
+                }
+
+                long n = Math.min(Math.min(wanted, maxFrame),
+                        Math.min(stream.sendWindow, sendWindow));
+                if (n > 0) {
+                    stream.sendWindow -= n;
+                    sendWindow -= n;
+                    return (int) n;
+                }
+
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) {
+                    throw new InterruptedIOException("Window closed");
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } catch (InterruptedException intEx) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Account for body bytes read by a handler, reopening the window of
+     * their stream once half of it was read.
+     *
+     * @param stream the stream
+     * @param count the number of bytes read
+     * @since 1.1
+     */
+    private void consumed(Stream stream, int count) {
+        int increment;
+        synchronized (stream) {
+            stream.unacked += count;
+            if (stream.isEnded || stream.unacked < WINDOW / 2) {
+                return;
+            }
+
+            increment = stream.unacked;
+            stream.receiveWindow += increment;
+            stream.unacked = 0;
+        }
+
+        try {
+            writeWindowUpdate(stream.id, increment);
+        } catch (IOException ioEx) {
+            close();
+        }
+    }
+
+    /**
+     *
+     * @return the window of new streams for sent DATA
+     * @since 1.1
+     */
+    private synchronized long initialWindow() {
+        return initialWindow;
+    }
+
+    /**
+     *
+     * @return the maximum size of a sent frame
+     * @since 1.1
+     */
+    private synchronized int maxFrame() {
+        return maxFrame;
+    }
+
+    /**
+     * Read until the buffer holds a number of bytes. The timeout is armed
+     * while no stream is open.
+     *
+     * @param n the number of bytes
+     * @throws IOException I/O exception, or EOFException at end of stream
+     * @since 1.1
+     */
+    private void fill(int n) throws IOException {
+        while (in.position() < n) {
+            if (streams.isEmpty()) {
+                timeout.schedule(0 == in.position() ? server.idleTimeout()
+                        : server.headerTimeout());
+            } else {
+                timeout.cancel();
+            }
+
+            try {
+                if (channel.read(in) < 0) {
+                    throw new EOFException();
+                }
+            } finally {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * Drop bytes read from the buffer.
+     *
+     * @param n the number of bytes
+     * @since 1.1
+     */
+    private void consume(int n) {
+        in.flip();
+        in.position(n);
+        in.compact();
+    }
+
+    /**
+     * Get the lower case form of a header name.
+     *
+     * @param name a header name
+     * @return the name in lower case
+     * @since 1.1
+     */
+    private static String lowerCase(String name) {
+        String lower = NAMES.get(name);
+        if (null == lower) {
+            lower = name.toLowerCase(Locale.ROOT);
+            if (NAMES.size() < 256) {
+                NAMES.put(name, lower);
+            }
+        }
+
+        return lower;
+    }
+
+    /**
+     * A connection error, answered with a GOAWAY.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class ProtocolException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The error code.
+         *
+         * @since 1.1
+         */
+        private final int code;
+
+        /**
+         * Create an exception.
+         *
+         * @param code the error code
+         * @param message the failed check
+         * @since 1.1
+         */
+        private ProtocolException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * The state of a stream.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private final class Stream {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final int id;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final ServerRequest req;
+
+        /**
+         * Received body bytes not read yet, guarded by this.
+         *
+         * @since 1.1
+         */
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+
+        /**
+         * Position in the first chunk, guarded by this.
+         *
+         * @since 1.1
+         */
+        private int offset;
+
+        /**
+         * Number of body bytes received, guarded by this.
+         *
+         * @since 1.1
+         */
+        private long received;
+
+        /**
+         * Window of the stream for received DATA, guarded by this.
+         *
+         * @since 1.1
+         */
+        private int receiveWindow = WINDOW;
+
+        /**
+         * Bytes read by the handler and not yet granted back to the client,
+         * guarded by this.
+         *
+         * @since 1.1
+         */
+        private int unacked;
+
+        /**
+         * Window of the stream for sent DATA, guarded by the connection.
+         *
+         * @since 1.1
+         */
+        private long sendWindow;
+
+        /**
+         * Whether the client ended the stream.
+         *
+         * @since 1.1
+         */
+        private volatile boolean isEnded = false;
+
+        /**
+         * Whether the stream was reset by either side.
+         *
+         * @since 1.1
+         */
+        private volatile boolean isReset = false;
+
+        /**
+         * Create a stream.
+         *
+         * @param id the stream's identifier
+         * @param req the request
+         * @param sendWindow the initial window for sent DATA
+         * @since 1.1
+         */
+        private Stream(int id, ServerRequest req, long sendWindow) {
+            this.id = id;
+            this.req = req;
+            this.sendWindow = sendWindow;
+        }
+
+        /**
+         * Receive body bytes. Padding counts against the window only.
+         *
+         * @param b the bytes' array
+         * @param off the bytes' offset
+         * @param len the number of bytes
+         * @param length the size of the frame's payload
+         * @param isEnd true if the client ended the stream
+         * @return false if the client exceeded the window
+         * @since 1.1
+         */
+        private synchronized boolean receive(byte[] b, int off, int len,
+                int length, boolean isEnd) {
+
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                reset();
+                return false;
+            }
+
+            if (len > 0) {
+                byte[] chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+                chunks.add(chunk);
+                received += len;
+            }
+
+            unacked += length - len;
+            isEnded |= isEnd;
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Mark this stream as reset, waking its readers.
+         *
+         * @since 1.1
+         */
+        private synchronized void reset() {
+            isReset = true;
+            notifyAll();
+        }
+
+        /**
+         * Read body bytes, waiting for the client.
+         *
+         * @param b the destination
+         * @param off the destination's offset
+         * @param len the maximum number of bytes
+         * @return the number of bytes read, or -1 at end of body
+         * @throws IOException if the stream was reset
+         * @since 1.1
+         */
+        private int read(byte[] b, int off, int len) throws IOException {
+            int read;
+            synchronized (this) {
+                while (chunks.isEmpty()) {
+                    if (isEnded) {
+                        return -1;
+                    } else if (isReset) {
+                        throw new EOFException("Stream reset");
+                    }
+
+                    try {
+                        wait();
+                    } catch (InterruptedException intEx) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+
+                byte[] chunk = chunks.peek();
+                read = Math.min(len, chunk.length - offset);
+                System.arraycopy(chunk, offset, b, off, read);
+                offset += read;
+                if (offset == chunk.length) {
+                    chunks.poll();
+                    offset = 0;
+                }
+            }
+
+            consumed(this, read);
+            return read;
+        }
+    }
+
+    /**
+     * The DATA frames of a response, the last one ending the stream when
+     * closed.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private final class DataOutputStream extends OutputStream {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Stream stream;
+
+        /**
+         * Create the body stream of a response.
+         *
+         * @param stream the stream
+         * @since 1.1
+         */
+        private DataOutputStream(Stream stream) {
+            this.stream = stream;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = reserve(stream, len);
+                writeFrame(DATA, 0, stream.id, b, off, n, false);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                if (isClosed) {
+                    throw new ClosedChannelException();
+                }
+
+                out.flush();
+            }
+        }
+
+        /**
+         * End the stream with an empty DATA frame, unless it was reset,
+         * such as when closed after a failed write.
+         *
+         * @since 1.1
+         */
+        @Override
+        public void close() throws IOException {
+            if (!stream.isReset) {
+                writeFrame(DATA, END_STREAM, stream.id, payload, 0, 0, true);
+            }
+        }
+    }
+
+    /**
+     * A request received on a stream.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Http2Request extends ServerRequest {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final String clientIP;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final long received;
+
+        /**
+         * Default limit of {@link #body()}.
+         *
+         * @since 1.1
+         */
+        private final int maxBodySize;
+
+        /**
+         * Header fields by lower case name.
+         *
+         * @since 1.1
+         */
+        private final Map<String, String> headers = new HashMap<>();
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Stream stream;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private String method;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private String uri;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private String query;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private boolean hasPath;
+
+        /**
+         * Whether a regular field was received, after which pseudo-header
+         * fields are invalid.
+         *
+         * @since 1.1
+         */
+        private boolean hasFields;
+
+        /**
+         * Whether the fields are well formed so far.
+         *
+         * @since 1.1
+         */
+        private boolean isValid = true;
+
+        /**
+         * Sum of the sizes of the fields.
+         *
+         * @since 1.1
+         */
+        private int size;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Map<String, String> params;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private String[] pathNames;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private int[] pathOffsets;
+
+        /**
+         * Create an empty request.
+         *
+         * @param clientIP the client's IP
+         * @param received the value of {@link System#nanoTime()} when its
+         * head was received
+         * @param maxBodySize default limit of {@link #body()}
+         * @since 1.1
+         */
+        private Http2Request(String clientIP, long received,
+                int maxBodySize) {
+
+            this.clientIP = clientIP;
+            this.received = received;
+            this.maxBodySize = maxBodySize;
+        }
+
+        /**
+         * Add a decoded header field. Pseudo-header fields must come first.
+         *
+         * @param name the field's name
+         * @param value the field's value
+         * @since 1.1
+         */
+        private void field(String name, String value) {
+            size += name.length() + value.length() + 32;
+            if (name.startsWith(":")) {
+                isValid &= !hasFields;
+                switch (name) {
+                    case ":method":
+                        isValid &= null == method;
+                        method = value;
+                        break;
+                    case ":path":
+                        isValid &= !hasPath && !value.isEmpty();
+                        hasPath = true;
+                        int qi = value.indexOf('?');
+                        uri = -1 == qi ? value : value.substring(0, qi);
+                        query = -1 == qi ? null : value.substring(qi + 1);
+                        break;
+                    case ":authority":
+                        headers.put("host", value);
+                        break;
+                    case ":scheme":
+                        break;
+                    default:
+                        isValid = false;
+                }
+
+                return;
+            }
+
+            hasFields = true;
+            for (String hop : HOP_BY_HOP) {
+                isValid &= !hop.equals(name);
+            }
+
+            isValid &= name.equals(name.toLowerCase(Locale.ROOT));
+            String previous = headers.get(name);
+            headers.put(name, null == previous ? value
+                    : previous + ("cookie".equals(name) ? "; " : ", ")
+                    + value);
+        }
+
+        /**
+         * Determine whether this request is complete and well formed.
+         *
+         * @return true if valid
+         * @since 1.1
+         */
+        private boolean isValid() {
+            return isValid && null != method && hasPath
+                    && size <= MAX_HEADER_LIST;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public Content body() throws IOException {
+            return body(maxBodySize);
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public Content body(int maxSize) throws IOException {
+            if (stream.isEnded && 0 == stream.received) {
+                return null;
+            }
+
+            String length = header(CONTENT_LENGTH);
+            if (null != length && Long.parseLong(length.trim()) > maxSize) {
+                throw new BodyTooLargeException(maxSize);
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while (-1 != (read = stream.read(chunk, 0, chunk.length))) {
+                if (data.size() + read > maxSize) {
+                    throw new BodyTooLargeException(maxSize);
+                }
+
+                data.write(chunk, 0, read);
+            }
+
+            return Content.from(data.toByteArray(), header(CONTENT_TYPE));
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public InputStream bodyStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return -1 == read(b, 0, 1) ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len)
+                        throws IOException {
+                    return 0 == len ? 0 : stream.read(b, off, len);
+                }
+            };
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public String clientIP() {
+            return clientIP;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public String method() {
+            return method;
+        }
+
+        /**
+         * The query string is parsed on the first call.
+         *
+         * @since 1.1
+         */
+        @Override
+        public String param(String name) {
+            if (null != pathNames) {
+                for (int i = 0; i < pathNames.length; i++) {
+                    if (pathNames[i].equals(name)) {
+                        return uri.substring(pathOffsets[i * 2],
+                                pathOffsets[i * 2 + 1]);
+                    }
+                }
+            }
+
+            if (null == query) {
+                return null;
+            }
+
+            if (null == params) {
+                params = new HashMap<>();
+                parseQuery(query, params);
+            }
+
+            return params.get(name);
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public String uri() {
+            return uri;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        void pathParams(String[] names, int[] offsets) {
+            pathNames = names;
+            pathOffsets = offsets;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        String query() {
+            return query;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        long received() {
+            return received;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        long bodySize() {
+            synchronized (stream) {
+                return stream.received;
+            }
+        }
+    }
+}
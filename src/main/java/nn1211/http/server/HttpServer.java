@@ -1,17 +1,34 @@
 package nn1211.http.server;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
-import nn1211.http.Content;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import nn1211.http.Content.FileContent;
+import nn1211.io.BufferPool;
 import static nn1211.http.HttpHeader.*;
 
 /**
- * A simple HTTP/1.0 server.
+ * A simple HTTP/1.1 server.
  *
  * @author nn1211
  * @since 1.0
@@ -19,206 +36,2130 @@ import static nn1211.http.HttpHeader.*;
 public final class HttpServer {
 
     /**
+     * Maximum size of a request head.
+     *
+     * @since 1.1
+     */
+    static final int MAX_HEAD = 8192;
+
+    /**
+     * close
+     *
+     * @since 1.1
+     */
+    static final String CLOSE = "close";
+
+    /**
+     * keep-alive
+     *
+     * @since 1.1
+     */
+    static final String KEEP_ALIVE = "keep-alive";
+
+    /**
+     * chunked
+     *
+     * @since 1.1
+     */
+    static final String CHUNKED = "chunked";
+
+    /**
+     * Size of the buffer coalescing pipelined responses.
+     *
+     * @since 1.1
+     */
+    static final int OUT_BUFFER = 8192;
+
+    /**
+     * Maximum number of bytes written by a single blocking write, so that
+     * the write timeout bounds the time a client takes to accept them.
+     *
+     * @since 1.1
+     */
+    static final int WRITE_CHUNK = 256 * 1024;
+
+    /**
+     * Default maximum size of a request body read into memory.
+     *
+     * @since 1.1
+     */
+    static final int MAX_BODY = 1024 * 1024;
+
+    /**
+     * An interim 100 response.
+     *
+     * @since 1.1
+     */
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+    /**
+     * The 400 response to an invalid request head, closing the connection.
+     *
+     * @since 1.1
+     */
+    static final byte[] BAD_REQUEST = ("HTTP/1.1 400 Bad Request\r\n"
+            + "Connection: close\r\nContent-Length: 0\r\n\r\n").getBytes();
+
+    /**
+     * Interval between two checks of a drain in nanoseconds.
+     *
+     * @since 1.1
+     */
+    private static final long DRAIN_POLL = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The SO_REUSEPORT option, or null if the running JDK has none.
+     *
+     * @since 1.1
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePort();
+
+    /**
+     * The listening sockets of {@link Engine#BLOCKING}.
+     *
+     * @since 1.0
+     */
+    private ServerSocketChannel[] listeners;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int acceptors = 1;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int backlog = 1024;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private boolean tcpNoDelay = true;
+
+    /**
+     * Whether connections may switch to HTTP/2 over cleartext TCP.
+     *
+     * @since 1.1
+     */
+    private boolean http2 = false;
+
+    /**
+     * TLS settings of HTTPS, or null for plain HTTP.
+     *
+     * @since 1.1
+     */
+    private Tls tls;
+
+    /**
+     * Size of the socket receive buffers, 0 for the system default.
+     *
+     * @since 1.1
+     */
+    private int receiveBufferSize = 0;
+
+    /**
+     * Size of the socket send buffers, 0 for the system default.
+     *
+     * @since 1.1
+     */
+    private int sendBufferSize = 0;
+
+    /**
+     *
+     * @since 1.0
+     */
+    private volatile boolean isRunning = false;
+
+    /**
+     * True from the start of a drain until stopped.
+     *
+     * @since 1.1
+     */
+    private volatile boolean isDraining = false;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int drainTimeout = 5000;
+
+    /**
+     * The hook draining this server when the JVM exits, registered while
+     * running.
+     *
+     * @since 1.1
+     */
+    private Thread shutdownHook;
+
+    /**
+     * Number of requests whose response is not written yet.
+     *
+     * @since 1.1
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Open connections of {@link Engine#BLOCKING}, mapped to true while
+     * waiting for their next request.
+     *
+     * @since 1.1
+     */
+    private final Map<Socket, Boolean> sockets = new ConcurrentHashMap<>();
+
+    /**
+     * Open HTTP/2 connections of either engine, told to go away on drain.
+     *
+     * @since 1.1
+     */
+    private final Set<Http2Connection> http2Connections
+            = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Open WebSockets of either engine, closed with
+     * {@link WebSocket#GOING_AWAY} on drain.
+     *
+     * @since 1.1
+     */
+    private final Set<WebSocket> webSockets = ConcurrentHashMap.newKeySet();
+
+    /**
+     *
+     * @since 1.0
+     */
+    private int port = 12183;
+
+    /**
+     *
+     * @since 1.0
+     */
+    private final Router router = new Router();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private Engine engine = Engine.BLOCKING;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private NioEngine nio;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private WorkerPool workers;
+
+    /**
+     * The pool created by {@link #start()} when none is set, shut down by
+     * {@link #stop()}
+     *
+     * @since 1.1
+     */
+    private WorkerPool defaultWorkers;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int maxRequestsPerConnection = 100;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int idleTimeout = 5000;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int headerTimeout = 10000;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int bodyTimeout = 30000;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int writeTimeout = 30000;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int asyncTimeout = 30000;
+
+    /**
+     * The timer enforcing the timeouts of all connections.
+     *
+     * @since 1.1
+     */
+    private TimerWheel timer;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int maxBodySize = MAX_BODY;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private Compression compression;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private AccessLog accessLog;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private Metrics metrics;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private RateLimiter rateLimiter;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private LoadShedder loadShedder;
+    
+    /**
+     * Return the listening port.
+     * 
+     * @return the listening port
+     * @since 1.0
+     */
+    public int port() {
+        return port;
+    }
+
+    /**
+     * Set the listening port of this server.
+     *
+     * @param value
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.0
+     */
+    public synchronized HttpServer port(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        port = value;
+        return this;
+    }
+
+    /**
+     * Set the I/O engine of this server.
+     *
+     * @param value an {@link Engine}
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer engine(Engine value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        engine = value;
+        return this;
+    }
+
+    /**
+     * Set the number of event-loop threads used by {@link Engine#NIO}.
+     *
+     * @param value number of event-loop threads
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer eventLoops(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("eventLoops < 1");
+        }
+
+        eventLoops = value;
+        return this;
+    }
+
+    /**
+     * Set the number of listening sockets, each with its own acceptor
+     * thread. They share the port with SO_REUSEPORT, so the kernel spreads
+     * new connections across them. With {@link Engine#NIO}, each acceptor
+     * hands its connections to its own share of the event loops, and there
+     * are at least as many event loops as acceptors.
+     * <p>
+     * <i>Default value is 1. Where SO_REUSEPORT is not supported, a single
+     * listening socket is opened</i>
+     * </p>
+     *
+     * @param value number of listening sockets
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer acceptors(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("acceptors < 1");
+        }
+
+        acceptors = value;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of connections waiting to be accepted by each
+     * listening socket. The operating system may cap it.
+     * <p>
+     * <i>Default value is 1024</i>
+     * </p>
+     *
+     * @param value the backlog
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer backlog(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("backlog < 1");
+        }
+
+        backlog = value;
+        return this;
+    }
+
+    /**
+     * Set whether small writes are sent at once rather than coalesced by
+     * Nagle's algorithm (TCP_NODELAY).
+     * <p>
+     * <i>Default value is true</i>
+     * </p>
+     *
+     * @param value true to disable Nagle's algorithm
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer tcpNoDelay(boolean value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        tcpNoDelay = value;
+        return this;
+    }
+
+    /**
+     * Set whether connections may switch to HTTP/2 over cleartext TCP
+     * (h2c), either by starting with the HTTP/2 client preface or by
+     * upgrading from a HTTP/1.1 request. The requests of a HTTP/2
+     * connection are multiplexed as streams, each dispatched to a worker,
+     * and its header fields are compressed with HPACK. It is not offered
+     * to HTTPS connections.
+     * <p>
+     * <i>Default value is false</i>
+     * </p>
+     *
+     * @param value true to accept HTTP/2
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer http2(boolean value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        http2 = value;
+        return this;
+    }
+
+    /**
+     * Determine whether connections may switch to HTTP/2.
+     *
+     * @return true if HTTP/2 is accepted
+     * @since 1.1
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * Set the TLS settings making this server speak HTTPS instead of plain
+     * HTTP. The handshake and the records are handled by the event loops of
+     * {@link Engine#NIO}, which this requires. HTTP/2 is not offered over
+     * TLS.
+     * <p>
+     * <i>Default value is null, plain HTTP</i>
+     * </p>
+     *
+     * @param value a {@link Tls} or null
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer tls(Tls value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        tls = value;
+        return this;
+    }
+
+    /**
+     * Set the size of the socket receive buffer of each connection
+     * (SO_RCVBUF). It is set on the listening sockets, so that accepted
+     * connections negotiate a matching TCP window.
+     * <p>
+     * <i>Default value is 0, the system default</i>
+     * </p>
+     *
+     * @param value the buffer size in bytes, 0 for the system default
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is negative
+     * @since 1.1
+     */
+    public synchronized HttpServer receiveBufferSize(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 0) {
+            throw new IllegalArgumentException("receiveBufferSize < 0");
+        }
+
+        receiveBufferSize = value;
+        return this;
+    }
+
+    /**
+     * Set the size of the socket send buffer of each connection (SO_SNDBUF).
+     * <p>
+     * <i>Default value is 0, the system default</i>
+     * </p>
+     *
+     * @param value the buffer size in bytes, 0 for the system default
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is negative
+     * @since 1.1
+     */
+    public synchronized HttpServer sendBufferSize(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 0) {
+            throw new IllegalArgumentException("sendBufferSize < 0");
+        }
+
+        sendBufferSize = value;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of requests served on a persistent connection.
+     * <p>
+     * <i>Default value is 100, 1 disables keep-alive</i>
+     * </p>
+     *
+     * @param value maximum number of requests per connection
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer maxRequestsPerConnection(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("maxRequestsPerConnection < 1");
+        }
+
+        maxRequestsPerConnection = value;
+        return this;
+    }
+
+    /**
+     * Return the idle timeout of a persistent connection.
+     *
+     * @return the idle timeout in milliseconds
+     * @since 1.1
+     */
+    public int idleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set how long a connection may wait for its next request, including
+     * its first one.
+     * <p>
+     * <i>Default value is 5000 milliseconds</i>
+     * </p>
+     *
+     * @param value the idle timeout in milliseconds
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer idleTimeout(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("idleTimeout < 1");
+        }
+
+        idleTimeout = value;
+        return this;
+    }
+
+    /**
+     * Return the header timeout of a request.
+     *
+     * @return the header timeout in milliseconds
+     * @since 1.1
+     */
+    public int headerTimeout() {
+        return headerTimeout;
+    }
+
+    /**
+     * Set how long a client may take to send a whole request head, from
+     * its first byte. It protects the server from clients sending their
+     * head slowly to hold connections open.
+     * <p>
+     * <i>Default value is 10000 milliseconds</i>
+     * </p>
+     *
+     * @param value the header timeout in milliseconds
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer headerTimeout(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("headerTimeout < 1");
+        }
+
+        headerTimeout = value;
+        return this;
+    }
+
+    /**
+     * Return the body timeout of a request.
+     *
+     * @return the body timeout in milliseconds
+     * @since 1.1
+     */
+    public int bodyTimeout() {
+        return bodyTimeout;
+    }
+
+    /**
+     * Set how long a handler may wait for the next bytes of a request body.
+     * <p>
+     * <i>Default value is 30000 milliseconds</i>
+     * </p>
+     *
+     * @param value the body timeout in milliseconds
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer bodyTimeout(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("bodyTimeout < 1");
+        }
+
+        bodyTimeout = value;
+        return this;
+    }
+
+    /**
+     * Return the write timeout of a response.
+     *
+     * @return the write timeout in milliseconds
+     * @since 1.1
+     */
+    public int writeTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Set how long a client may take to accept the next bytes of a
+     * response, at most 256 KiB.
+     * <p>
+     * <i>Default value is 30000 milliseconds</i>
+     * </p>
+     *
+     * @param value the write timeout in milliseconds
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer writeTimeout(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("writeTimeout < 1");
+        }
+
+        writeTimeout = value;
+        return this;
+    }
+
+    /**
+     * Return the time an asynchronous handler has to complete its response.
+     *
+     * @return the asynchronous timeout in milliseconds
+     * @since 1.1
+     */
+    public int asyncTimeout() {
+        return asyncTimeout;
+    }
+
+    /**
+     * Set how long an asynchronous handler may take to complete its
+     * response. Past it the request is answered with a 504 response, and the
+     * late response is dropped.
+     * <p>
+     * <i>Default value is 30000 milliseconds</i>
+     * </p>
+     *
+     * @param value the asynchronous timeout in milliseconds
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public synchronized HttpServer asyncTimeout(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 1) {
+            throw new IllegalArgumentException("asyncTimeout < 1");
+        }
+
+        asyncTimeout = value;
+        return this;
+    }
+
+    /**
+     * Return the time a drain waits for in-flight requests.
+     *
+     * @return the drain timeout in milliseconds
+     * @since 1.1
+     */
+    public int drainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Set how long the shutdown hook drains this server when the JVM exits.
+     * <p>
+     * <i>Default value is 5000 milliseconds</i>
+     * </p>
+     *
+     * @param value the drain timeout in milliseconds, 0 to stop at once
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is negative
+     * @since 1.1
+     * @see #drain(long)
+     */
+    public synchronized HttpServer drainTimeout(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 0) {
+            throw new IllegalArgumentException("drainTimeout < 0");
+        }
+
+        drainTimeout = value;
+        return this;
+    }
+
+    /**
+     * Return the maximum size of a request body read into memory.
+     *
+     * @return the maximum size of a request body in bytes
+     * @since 1.1
+     */
+    public int maxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Set the maximum size of a request body read into memory by
+     * {@link ServerRequest#body()}. Unread bodies up to this size are skipped
+     * to keep the connection open, larger ones close it.
+     * <p>
+     * <i>Default value is 1 MiB</i>
+     * </p>
+     *
+     * @param value the maximum size of a request body in bytes
+     * @return this
+     * @throws IllegalStateException if running
+     * @throws IllegalArgumentException if value is negative
+     * @since 1.1
+     */
+    public synchronized HttpServer maxBodySize(int value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        if (value < 0) {
+            throw new IllegalArgumentException("maxBodySize < 0");
+        }
+
+        maxBodySize = value;
+        return this;
+    }
+
+    /**
+     * Return the worker pool running the handlers.
+     *
+     * @return the worker pool or null if not started and not set
+     * @since 1.1
+     */
+    public WorkerPool workers() {
+        return null != workers ? workers : defaultWorkers;
+    }
+
+    /**
+     * Set the worker pool running the handlers.
+     * <p>
+     * <i>Default value is {@link WorkerPool#unbounded()} for
+     * {@link Engine#BLOCKING} and {@link WorkerPool#direct()}, the event loop
+     * itself, for {@link Engine#NIO}</i>
+     * </p>
+     * <p>
+     * A pool set here belongs to the caller: {@link #stop()} leaves it
+     * running, so that it can serve a restart, and the caller shuts it down
+     * when done.
+     * </p>
+     *
+     * @param value a {@link WorkerPool} or null for the default
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer workers(WorkerPool value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        workers = value;
+        return this;
+    }
+
+    /**
+     * Set the compression of response bodies.
+     * <p>
+     * <i>Default value is null, no compression</i>
+     * </p>
+     *
+     * @param value a {@link Compression} or null
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer compression(Compression value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        compression = value;
+        return this;
+    }
+
+    /**
+     * Set the access log of this server.
+     * <p>
+     * <i>Default value is null, no access log</i>
+     * </p>
+     *
+     * @param value an {@link AccessLog} or null
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer accessLog(AccessLog value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        accessLog = value;
+        return this;
+    }
+
+    /**
+     * Set the metrics recorded by this server.
+     * <p>
+     * <i>Default value is null, no metrics</i>
+     * </p>
+     *
+     * @param value a {@link Metrics} or null
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer metrics(Metrics value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        metrics = value;
+        return this;
+    }
+
+    /**
+     * Set the limit of the request rate of each client. Requests over it
+     * are answered with a 429 response before their handler runs.
+     * <p>
+     * <i>Default value is null, no limit</i>
+     * </p>
+     *
+     * @param value a {@link RateLimiter} or null
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer rateLimiter(RateLimiter value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        rateLimiter = value;
+        return this;
+    }
+
+    /**
+     * Set the controller shedding requests that waited too long for a
+     * worker. Shed requests are answered with a 503 response before their
+     * handler runs.
+     * <p>
+     * <i>Default value is null, no shedding</i>
+     * </p>
+     *
+     * @param value a {@link LoadShedder} or null
+     * @return this
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public synchronized HttpServer loadShedder(LoadShedder value) {
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        loadShedder = value;
+        return this;
+    }
+
+    /**
+     * Register an handler for a specific path.
+     * <p>
+     * The path is a method and a pattern separated by a space, such as
+     * <code>GET /users/{id}</code>. A pattern segment in braces matches any
+     * segment and binds it to a parameter, a trailing <code>*</code> matches
+     * the rest of the path. Both are available through
+     * {@link ServerRequest#param(String)}.
+     * </p>
+     * <p>
+     * Handlers are registered before the server starts. A request whose
+     * path only has routes for other methods is answered with a 405
+     * response, any other request without a route with a 404 response.
+     * </p>
+     *
+     * @param path request method and path pattern
+     * @param handler a {@link Handler}
+     * @return this
+     * @throws IllegalArgumentException if the path is invalid
+     * @throws IllegalStateException if running
+     * @since 1.0
+     */
+    public HttpServer registerHandler(String path, Handler handler) {
+        return register(path, new Router.Route(handler));
+    }
+
+    /**
+     * Register an asynchronous handler for a specific path, as
+     * {@link #registerHandler(String, Handler)} does.
+     *
+     * @param path request method and path pattern
+     * @param handler an {@link AsyncHandler}
+     * @return this
+     * @throws IllegalArgumentException if the path is invalid
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public HttpServer registerAsyncHandler(String path, AsyncHandler handler) {
+        return register(path, new Router.Route(handler));
+    }
+
+    /**
+     * Register a handler for the WebSockets of a specific path, as
+     * {@link #registerHandler(String, Handler)} does for GET requests. A
+     * request of the path is answered with a 426 response unless it is a
+     * valid handshake over HTTP/1.1.
+     *
+     * @param path path pattern, such as <code>/chat/{room}</code>
+     * @param handler a {@link WebSocketHandler}
+     * @return this
+     * @throws IllegalArgumentException if the path is invalid
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    public HttpServer registerWebSocket(String path,
+            WebSocketHandler handler) {
+
+        return registerHandler("GET " + path,
+                req -> WebSocket.upgrade(this, req, handler));
+    }
+
+    /**
+     * Add a route for a specific path.
+     *
+     * @param path request method and path pattern
+     * @param route a route
+     * @return this
+     * @throws IllegalArgumentException if the path is invalid
+     * @throws IllegalStateException if running
+     * @since 1.1
+     */
+    private synchronized HttpServer register(String path,
+            Router.Route route) {
+
+        if (isRunning) {
+            throw new IllegalStateException();
+        }
+
+        int si = path.indexOf(' ');
+        if (si < 1) {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+
+        router.add(path.substring(0, si), path.substring(si + 1), route);
+        return this;
+    }
+
+    /**
+     * Start this HTTP server.
+     *
+     * @throws IOException I/O exception
+     * @throws IllegalStateException if running
+     * @since 1.0
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            throw new IllegalStateException("Already running");
+        }
+
+        if (null != tls && Engine.NIO != engine) {
+            throw new IllegalStateException("TLS requires Engine.NIO");
+        }
+
+        if (null != accessLog) {
+            accessLog.start();
+        }
+
+        timer = new TimerWheel();
+        timer.start();
+
+        if (null != rateLimiter) {
+            timer.every(RateLimiter.SWEEP_MILLIS, rateLimiter::sweep);
+        }
+
+        if (null == workers) {
+            defaultWorkers = Engine.NIO == engine
+                    ? WorkerPool.direct() : WorkerPool.unbounded();
+        }
+
+        try {
+            if (Engine.NIO == engine) {
+                nio = new NioEngine(this, eventLoops);
+                nio.start();
+            } else {
+                listeners = listen();
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Such as a port in use, release what was started
+            nio = null;
+            if (null != defaultWorkers) {
+                defaultWorkers.shutdown();
+                defaultWorkers = null;
+            }
+
+            timer.stop();
+            if (null != accessLog) {
+                accessLog.stop();
+            }
+
+            throw ex;
+        }
+
+        if (Engine.NIO != engine) {
+            for (int i = 0; i < listeners.length; i++) {
+                ServerSocketChannel socket = listeners[i];
+                new Thread(() -> {
+                    while (socket.isOpen()) {
+                        accept(socket);
+                    }
+                }, "http-acceptor-" + i).start();
+            }
+        }
+
+        isRunning = true;
+
+        shutdownHook = new Thread(() -> drain(drainTimeout), "http-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Stop this HTTP server at once, closing all its connections.
      *
      * @since 1.0
      */
-    private ServerSocket listener;
+    public synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+
+        isRunning = false;
+
+        if (null != nio) {
+            nio.stop();
+            nio = null;
+        } else {
+            closeListener();
+            sockets.keySet().forEach(this::close);
+        }
+
+        if (null != defaultWorkers) {
+            defaultWorkers.shutdown();
+            defaultWorkers = null;
+        }
+
+        timer.stop();
+
+        if (null != accessLog) {
+            accessLog.stop();
+        }
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException stateEx) {
+            // Stopped by the hook itself
+        }
+
+        isDraining = false;
+    }
+
+    /**
+     * Stop this HTTP server gracefully.
+     * <p>
+     * The server stops accepting connections and closes the persistent ones
+     * waiting for their next request. The others are closed once their
+     * current response is written, until none is left or the timeout
+     * elapses. The server is then stopped, closing the remaining
+     * connections. {@link #inFlight()} and {@link #openConnections()}
+     * report the progress of a drain.
+     * </p>
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if all connections closed in time, false if some were
+     * cut
+     * @since 1.1
+     */
+    public boolean drain(long timeout) {
+        NioEngine engine;
+        synchronized (this) {
+            if (!isRunning) {
+                return true;
+            }
+
+            isDraining = true;
+            engine = nio;
+        }
+
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        if (null != engine) {
+            engine.drain();
+        } else {
+            closeListener();
+            sockets.forEach((socket, isIdle) -> {
+                if (isIdle) {
+                    close(socket);
+                }
+            });
+        }
+
+        http2Connections.forEach(Http2Connection::goAway);
+        webSockets.forEach(socket -> socket.close(WebSocket.GOING_AWAY, ""));
+
+        boolean isDrained;
+        while (!(isDrained = 0 == openConnections())
+                && deadline - System.nanoTime() > 0) {
+            LockSupport.parkNanos(DRAIN_POLL);
+        }
+
+        stop();
+        return isDrained;
+    }
+
+    /**
+     * Determine whether this server is draining.
+     *
+     * @return true from the start of a drain until stopped
+     * @since 1.1
+     */
+    public boolean isDraining() {
+        return isDraining;
+    }
+
+    /**
+     * Get the number of requests received whose response is not written
+     * yet.
+     *
+     * @return the number of in-flight requests
+     * @since 1.1
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the number of open connections.
+     *
+     * @return the number of open connections
+     * @since 1.1
+     */
+    public int openConnections() {
+        NioEngine engine = nio;
+        return null == engine ? sockets.size() : engine.openConnections();
+    }
+
+    /**
+     * Register an open HTTP/2 connection.
+     *
+     * @param conn the connection
+     * @since 1.1
+     */
+    void http2Opened(Http2Connection conn) {
+        http2Connections.add(conn);
+        if (isDraining) {
+            conn.goAway();
+        }
+    }
+
+    /**
+     * Deregister a closed HTTP/2 connection.
+     *
+     * @param conn the connection
+     * @since 1.1
+     */
+    void http2Closed(Http2Connection conn) {
+        http2Connections.remove(conn);
+    }
 
     /**
+     * Register an open WebSocket.
      *
-     * @since 1.0
+     * @param socket the socket
+     * @since 1.1
      */
-    private volatile boolean isRunning = false;
+    void webSocketOpened(WebSocket socket) {
+        webSockets.add(socket);
+        if (isDraining) {
+            socket.close(WebSocket.GOING_AWAY, "");
+        }
+    }
 
     /**
+     * Deregister a closed WebSocket.
      *
-     * @since 1.0
+     * @param socket the socket
+     * @since 1.1
      */
-    private int port = 12183;
+    void webSocketClosed(WebSocket socket) {
+        webSockets.remove(socket);
+    }
 
     /**
+     * Count a request whose head was received.
      *
-     * @since 1.0
+     * @since 1.1
      */
-    private final Map<String, Handler> handlers = new HashMap<>();
-    
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
     /**
-     * Return the listening port.
-     * 
-     * @return the listening port
-     * @since 1.0
+     * Count requests whose response was written, or whose connection was
+     * closed.
+     *
+     * @param count number of requests
+     * @since 1.1
      */
-    public int port() {
-        return port;
+    void requestsFinished(int count) {
+        if (count > 0) {
+            inFlight.addAndGet(-count);
+        }
     }
 
     /**
-     * Set the listening port of this server.
+     * Open the listening sockets of this server, bound to its port.
      *
-     * @param value
-     * @return this
-     * @throws IllegalStateException if running
-     * @since 1.0
+     * @return as many listening sockets as acceptors, or a single one if
+     * SO_REUSEPORT is not supported
+     * @throws IOException I/O exception
+     * @since 1.1
      */
-    public synchronized HttpServer port(int value) {
-        if (isRunning) {
-            throw new IllegalStateException();
+    ServerSocketChannel[] listen() throws IOException {
+        ServerSocketChannel[] sockets = new ServerSocketChannel[acceptors];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                ServerSocketChannel socket = ServerSocketChannel.open();
+                sockets[i] = socket;
+
+                if (sockets.length > 1) {
+                    if (null == SO_REUSEPORT || !socket.supportedOptions()
+                            .contains(SO_REUSEPORT)) {
+                        return new ServerSocketChannel[]{bind(socket)};
+                    }
+
+                    socket.setOption(SO_REUSEPORT, true);
+                }
+
+                bind(socket);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (ServerSocketChannel socket : sockets) {
+                if (null != socket) {
+                    socket.close();
+                }
+            }
+
+            throw ex;
         }
 
-        port = value;
-        return this;
+        return sockets;
     }
 
     /**
-     * Register an handler for a specific path.
+     * Set the socket options of an accepted connection.
      *
-     * @param path request path
-     * @param handler a {@link Handler}
-     * @return this
-     * @since 1.0
+     * @param ch an accepted connection
+     * @throws IOException I/O exception
+     * @since 1.1
      */
-    public HttpServer registerHandler(String path, Handler handler) {
-        handlers.put(path, handler);
-        return this;
+    void configure(SocketChannel ch) throws IOException {
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+        if (sendBufferSize > 0) {
+            ch.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
     }
 
     /**
-     * Start this HTTP server.
+     * Bind a listening socket to the port of this server.
      *
+     * @param socket an unbound listening socket
+     * @return the socket
      * @throws IOException I/O exception
-     * @throws IllegalStateException if running
-     * @since 1.0
+     * @since 1.1
      */
-    public synchronized void start() throws IOException {
-        if (isRunning) {
-            throw new IllegalStateException("Already running");
-        }
+    private ServerSocketChannel bind(ServerSocketChannel socket)
+            throws IOException {
 
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> stop()));
+        socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (receiveBufferSize > 0) {
+            socket.setOption(StandardSocketOptions.SO_RCVBUF,
+                    receiveBufferSize);
+        }
 
-        listener = new ServerSocket(port);
-        isRunning = true;
+        socket.bind(new InetSocketAddress(port), backlog);
+        return socket;
+    }
 
-        new Thread(() -> {
-            while (isRunning) {
-                accept();
+    /**
+     * Close the listening sockets of {@link Engine#BLOCKING}.
+     *
+     * @since 1.1
+     */
+    private void closeListener() {
+        for (ServerSocketChannel socket : listeners) {
+            try {
+                socket.close();
+            } catch (IOException ioEx) {
+                ioEx.printStackTrace(System.err);
             }
-        }).start();
+        }
     }
 
     /**
-     * Stop this HTTP server.
+     * Look up the SO_REUSEPORT option, added to the JDK after Java 8.
      *
-     * @since 1.0
+     * @return the option or null if not available
+     * @since 1.1
      */
-    public void stop() {
-        if (!isRunning) {
-            return;
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
         }
+    }
 
-        isRunning = false;
+    /**
+     * Return the TLS settings of HTTPS.
+     *
+     * @return the settings, or null for plain HTTP
+     * @since 1.1
+     */
+    Tls tls() {
+        return tls;
+    }
 
-        try {
-            listener.close();
-        } catch (IOException ioEx) {
-            ioEx.printStackTrace(System.err);
-        }
+    /**
+     * Return the timer enforcing the timeouts of connections.
+     *
+     * @return the timer
+     * @since 1.1
+     */
+    TimerWheel timer() {
+        return timer;
     }
 
     /**
      *
+     * @param socket a listening socket
      * @since 1.0
      */
-    private void accept() {
+    private void accept(ServerSocketChannel socket) {
         try {
-            Socket conn = listener.accept();
-            new Thread(() -> handle(conn)).start();
+            SocketChannel ch = socket.accept();
+            configure(ch);
+
+            Socket conn = ch.socket();
+            long accepted = System.nanoTime();
+            if (!workers().execute(() -> handle(conn, accepted))) {
+                reject(conn);
+            }
         } catch (IOException ioEx) {
-            ioEx.printStackTrace(System.err);
+            // Closed by stop or drain
+            if (socket.isOpen()) {
+                ioEx.printStackTrace(System.err);
+            }
         }
     }
 
     /**
+     * Serve the requests of a connection until it is closed by either side,
+     * or by its timeout.
      *
+     * @param conn a connection
+     * @param accepted the value of {@link System#nanoTime()} when the
+     * connection was accepted
      * @since 1.0
      */
-    private void handle(Socket conn) {
+    private void handle(Socket conn, long accepted) {
+        long waited = System.nanoTime() - accepted;
+        sockets.put(conn, false);
+        TimerWheel.Timeout timeout = timer.timeout(() -> close(conn));
+        SocketChannel ch = conn.getChannel();
+        TimedOutputStream out = new TimedOutputStream(ch, timeout,
+                writeTimeout);
+        ByteBuffer buf = BufferPool.shared().acquire(MAX_HEAD);
         try {
-            ServerRequest req = ServerRequest.from(conn);
-            if (null == req.method() || null == req.uri()) {
-                System.out.println("Rejected an invalid request from "
-                        + conn.getLocalAddress() + "\r\n");
+            String clientIP = conn.getInetAddress().toString();
 
-                close(conn);
+            RequestParser parser = new RequestParser();
+            HeaderTable headers = new HeaderTable();
+
+            // The request upgrading the connection to HTTP/2, if any
+            ServerRequest.BufferRequest upgrade = null;
+            // The WebSocket the connection switched to, if any
+            WebSocket webSocket = null;
+            for (int served = 1;; served++) {
+                // Bytes of a pipelined request already started its head
+                boolean isIdle = 0 == buf.position();
+                if (isIdle && served > 1) {
+                    // A drain closes the persistent connections it finds idle
+                    sockets.put(conn, true);
+                    if (isDraining) {
+                        close(conn);
+                        return;
+                    }
+                }
+
+                timeout.schedule(isIdle ? idleTimeout : headerTimeout);
+
+                while (!parser.parse(buf)) {
+                    if (parser.isError()) {
+                        if (http2 && 1 == served
+                                && Http2Connection.isPreface(buf)) {
+                            timeout.cancel();
+                            new Http2Connection(this, ch, timeout, workers())
+                                    .serve(buf, null);
+                            return;
+                        }
+
+                        log(clientIP, 400);
+                        out.write(BAD_REQUEST);
+                        out.flush();
+                        close(conn);
+                        return;
+                    }
+
+                    if (!buf.hasRemaining() || ch.read(buf) < 0) {
+                        close(conn);
+                        return;
+                    }
+
+                    if (isIdle) {
+                        isIdle = false;
+                        sockets.put(conn, false);
+                        timeout.schedule(headerTimeout);
+                    }
+                }
+
+                timeout.cancel();
+                requestStarted();
+                try {
+                    ServerRequest.BufferRequest req = ServerRequest.from(
+                            clientIP, buf, parser, headers);
+                    if (1 == served) {
+                        req.waited(waited);
+                    }
+
+                    parser.consume(buf);
+                    if (http2 && 1 == served
+                            && Http2Connection.isUpgrade(req)) {
+                        // Counted again as stream 1
+                        upgrade = req;
+                        break;
+                    }
+
+                    req.openBody(buf, timeout.guard(ch::read, bodyTimeout),
+                            maxBodySize);
+                    req.continueHook(() -> {
+                        try {
+                            out.write(CONTINUE);
+                            out.flush();
+                        } catch (IOException ioEx) {
+                            ioEx.printStackTrace(System.err);
+                        }
+                    });
+
+                    ServerResponse resp = head(req, dispatch(req));
+                    boolean keepAlive = frame(resp, req.isHttp11(),
+                            req.finishBody(maxBodySize)
+                            && keepAlive(req, served));
+
+                    writeResponse(out, resp, req.isHttp11());
+
+                    if (null != resp.webSocket()) {
+                        out.flush();
+                        webSocket = resp.webSocket();
+                        break;
+                    }
+
+                    if (!keepAlive) {
+                        out.flush();
+                        close(conn);
+                        return;
+                    }
+
+                    // Pipelined requests already buffered share a single
+                    // flush
+                    if (!parser.parse(buf)) {
+                        out.flush();
+                    }
+                } finally {
+                    requestsFinished(1);
+                }
+            }
+
+            if (null == webSocket) {
+                new Http2Connection(this, ch, timeout, workers())
+                        .serve(buf, upgrade);
                 return;
             }
 
-            System.out.println(req);
+            // Frames are read on this thread and written by their senders
+            try {
+                webSocket.open(transport(conn, out));
+                int need;
+                while ((need = webSocket.receive(buf)) >= 0) {
+                    if (need > buf.capacity()) {
+                        ByteBuffer grown = BufferPool.shared().acquire(need);
+                        buf.flip();
+                        grown.put(buf);
+                        BufferPool.shared().release(buf);
+                        buf = grown;
+                    }
 
-            ServerResponse resp;
-            Handler handler = handlers.get(req.method() + " " + req.uri());
-            if (null == handler) {
-                resp = ServerResponse.badRequest();
-            } else {
-                resp = handler.handle(req);
+                    if (ch.read(buf) < 0) {
+                        break;
+                    }
+                }
+            } finally {
+                close(conn);
+                webSocket.closed();
+            }
+        } catch (IOException ioEx) {
+            // Unless closed by its timeout, a drain or stop, which may wake
+            // a blocked write before the socket reports being closed
+            if (!(ioEx instanceof ClosedChannelException)
+                    && !conn.isClosed()) {
+                ioEx.printStackTrace(System.err);
             }
 
-            writeResponse(conn.getOutputStream(), resp);
             close(conn);
+        } catch (RuntimeException | Error failure) {
+            // Never leave the client waiting on a dead connection
+            close(conn);
+            throw failure;
+        } finally {
+            timeout.cancel();
+            sockets.remove(conn);
+            out.release();
+            BufferPool.shared().release(buf);
+        }
+    }
+
+    /**
+     * Create the side of a blocking connection switched to a WebSocket.
+     * Frames are written by the thread sending them, within the write
+     * timeout.
+     *
+     * @param conn the connection
+     * @param out the connection's output stream
+     * @return the transport of the socket
+     * @since 1.1
+     */
+    private WebSocket.Transport transport(Socket conn, TimedOutputStream out) {
+        return new WebSocket.Transport() {
+            @Override
+            public void send(ByteBuffer frame) {
+                synchronized (out) {
+                    try {
+                        out.write(frame.array(), frame.arrayOffset()
+                                + frame.position(), frame.remaining());
+                        out.flush();
+                    } catch (IOException ioEx) {
+                        // Reported to the handler once its reader fails
+                        HttpServer.this.close(conn);
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                HttpServer.this.close(conn);
+            }
+        };
+    }
+
+    /**
+     * Answer a connection refused by the worker pool with a 503 response.
+     *
+     * @param conn a connection
+     * @since 1.1
+     */
+    private void reject(Socket conn) {
+        log(conn.getInetAddress().toString(), 503);
+
+        TimedOutputStream out = new TimedOutputStream(conn.getChannel(),
+                timer.timeout(() -> close(conn)), writeTimeout);
+        try {
+            writeResponse(out, ServerResponse.serviceUnavailable()
+                    .header(CONNECTION, CLOSE), false);
+            out.flush();
         } catch (IOException ioEx) {
             ioEx.printStackTrace(System.err);
+        } finally {
+            out.release();
         }
+
+        close(conn);
     }
 
     /**
-     * Write the server's response to client.
+     * Determine whether a connection stays open after a request.
      *
-     * @param out the output stream
-     * @param resp server response
+     * @param req a valid request
+     * @param served number of requests served on the connection, including
+     * this one
+     * @return true if the connection may be reused, false otherwise
+     * @since 1.1
+     */
+    boolean keepAlive(ServerRequest req, int served) {
+        return isRunning && !isDraining && served < maxRequestsPerConnection
+                && req.keepAlive();
+    }
+
+    /**
+     * Serve a request, then log and measure it. The response of an
+     * asynchronous handler is waited for, at most {@link #asyncTimeout()}.
+     *
+     * @param req a valid request
+     * @return the response
      * @throws IOException I/O exception
-     * @since 1.0
+     * @since 1.1
      */
-    private void writeResponse(OutputStream out, ServerResponse resp)
+    ServerResponse dispatch(ServerRequest req) throws IOException {
+        CompletableFuture<ServerResponse> future = dispatchAsync(req);
+        try {
+            return future.get(asyncTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException timeoutEx) {
+            expire(future, req);
+            return future.join();
+        } catch (InterruptedException intEx) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException execEx) {
+            // Unexpected, failed handlers complete with a 500 response
+            throw new IOException(execEx.getCause());
+        }
+    }
+
+    /**
+     * Serve a request, then log and measure it. A synchronous handler runs
+     * on the calling thread and its response is returned completed.
+     *
+     * @param req a valid request
+     * @return the response, completed when an asynchronous handler
+     * completes
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    CompletableFuture<ServerResponse> dispatchAsync(ServerRequest req)
             throws IOException {
 
-        resp.header(CONNECTION, "close");
+        long start = System.nanoTime();
+        Router.Route route = router.find(req);
+        String name = null == route ? Metrics.NO_ROUTE : route.name();
+
+        if (null != loadShedder && -1 != req.received() && !loadShedder
+                .admit(name, start - req.received(), start)) {
+            ServerResponse resp = ServerResponse.serviceUnavailable();
+            log(name, req, resp, start);
+            return CompletableFuture.completedFuture(resp);
+        }
+
+        if (null != rateLimiter) {
+            long wait = rateLimiter.acquire(name, req.clientIP());
+            if (wait > 0) {
+                ServerResponse resp = ServerResponse.tooManyRequests()
+                        .header(RETRY_AFTER, Long.toString(
+                                TimeUnit.NANOSECONDS.toSeconds(wait - 1) + 1));
+                log(name, req, resp, start);
+                return CompletableFuture.completedFuture(resp);
+            }
+        }
+
+        if (null == route || null == route.asyncHandler()) {
+            ServerResponse resp = null == route ? unrouted(req)
+                    : handle(route, req);
+            log(name, req, resp, start);
+            return CompletableFuture.completedFuture(resp);
+        }
+
+        CompletableFuture<ServerResponse> future;
+        try {
+            future = Objects.requireNonNull(route.asyncHandler().handle(req),
+                    "Null future");
+        } catch (IOException | RuntimeException ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
 
-        StringBuilder sb = new StringBuilder().append("HTTP/1.1 ")
-                .append(resp.statusCode())
-                .append("\r\n");
+        return future.handle((resp, ex) -> {
+            try {
+                if (null != ex) {
+                    throw ex;
+                }
 
-        resp.forEachHeader((k, v) -> sb.append(k).append(": ")
-                .append(v).append("\r\n"));
+                resp = compress(req, resp);
+            } catch (Throwable failure) {
+                resp = recover(failure);
+            }
 
-        sb.append("\r\n");
+            log(name, req, resp, start);
+            return resp;
+        });
+    }
 
-        out.write(sb.toString().getBytes());
+    /**
+     * Answer a request whose asynchronous response took longer than
+     * {@link #asyncTimeout()} with a 504 response, unless it completed
+     * meanwhile. The late response of the handler is dropped.
+     *
+     * @param future the response returned by {@link #dispatchAsync}
+     * @param req the request
+     * @return true if answered with a 504 response, false if completed
+     * @since 1.1
+     */
+    boolean expire(CompletableFuture<ServerResponse> future,
+            ServerRequest req) {
 
-        Content respBody = resp.body();
-        if (null != respBody) {
-            out.write(respBody.toBytes());
+        ServerResponse resp = ServerResponse.gatewayTimeout();
+        if (!future.complete(resp)) {
+            return false;
         }
 
-        out.flush();
+        log(Metrics.NO_ROUTE, req, resp,
+                -1 == req.received() ? System.nanoTime() : req.received());
+        return true;
+    }
+
+    /**
+     * Record a request in the access log and the metrics, if any.
+     *
+     * @param route the name of the matched route, or
+     * {@link Metrics#NO_ROUTE}
+     * @param req a valid request
+     * @param resp the request's response
+     * @param start the value of {@link System#nanoTime()} when serving
+     * started
+     * @since 1.1
+     */
+    void log(String route, ServerRequest req, ServerResponse resp,
+            long start) {
+
+        long nanos = System.nanoTime() - start;
+        int status = resp.statusCode().asInt();
+        if (null != accessLog) {
+            accessLog.log(req.clientIP(), req.method(), req.uri(), status,
+                    resp.bodySize(), nanos);
+        }
 
-        System.out.println(resp.statusCode() + "\r\n");
+        if (null != metrics) {
+            metrics.record(route, status, req.bodySize(), resp.bodySize(),
+                    nanos);
+        }
     }
 
     /**
-     * Try to read all request data and close the socket.
+     * Record a request without a valid head, or refused before being
+     * parsed, in the access log and the metrics, if any.
      *
-     * @param socket
+     * @param clientIP the client's address
+     * @param status the response status
+     * @since 1.1
+     */
+    void log(String clientIP, int status) {
+        if (null != accessLog) {
+            accessLog.log(clientIP, null, null, status, -1, 0);
+        }
+
+        if (null != metrics) {
+            metrics.record(Metrics.NO_ROUTE, status, 0, -1, 0);
+        }
+    }
+
+    /**
+     * Answer a request without a route: with a 405 response if its path
+     * has routes for other methods, a 404 response otherwise.
+     *
+     * @param req a request without a route
+     * @return a 405 or 404 response
+     * @since 1.1
+     */
+    private ServerResponse unrouted(ServerRequest req) {
+        String allowed = router.allowed(req);
+        return null == allowed ? ServerResponse.badRequest()
+                : ServerResponse.methodNotAllowed(allowed);
+    }
+
+    /**
+     * Invoke the handler of a route, then compress its response if
+     * enabled.
+     *
+     * @param route the route of a request
+     * @param req the request
+     * @return the handler's response, or an error response if it failed,
+     * as for an asynchronous handler
+     * @since 1.1
+     */
+    private ServerResponse handle(Router.Route route, ServerRequest req) {
+        try {
+            return compress(req, route.handler().handle(req));
+        } catch (IOException | RuntimeException ex) {
+            return recover(ex);
+        }
+    }
+
+    /**
+     * Compress a response if enabled.
+     *
+     * @param req a request
+     * @param resp the request's response
+     * @return the response, compressed or not
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private ServerResponse compress(ServerRequest req, ServerResponse resp)
+            throws IOException {
+
+        return null == compression ? resp : compression.apply(req, resp);
+    }
+
+    /**
+     * Answer the failure of an asynchronous handler.
+     *
+     * @param failure the failure, possibly wrapped
+     * @return a 413 response if the body was too large, a 500 response
+     * otherwise
+     * @since 1.1
+     */
+    private static ServerResponse recover(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException
+                && null != failure.getCause() ? failure.getCause() : failure;
+        if (cause instanceof ServerRequest.BodyTooLargeException) {
+            return ServerResponse.payloadTooLarge();
+        }
+
+        cause.printStackTrace(System.err);
+        return ServerResponse.internalServerError();
+    }
+
+    /**
+     * Write the server's response to client. Only a streamed body is
+     * flushed; otherwise the head and a small body are written as a single
+     * segment. A file is sent straight from the file system to the
+     * connection's channel.
+     *
+     * @param out the connection's output stream
+     * @param resp server response
+     * @param isHttp11 true if the client supports chunked encoding
      * @throws IOException I/O exception
      * @since 1.0
      */
-    private void close(Socket socket) throws IOException {
-        try (InputStream in = socket.getInputStream()) {
-            int b;
-            while (-1 != (b = in.read())) {
+    private void writeResponse(TimedOutputStream out, ServerResponse resp,
+            boolean isHttp11) throws IOException {
+
+        for (ByteBuffer segment : ResponseEncoder.encode(resp)) {
+            if (segment.hasArray()) {
+                out.write(segment.array(), segment.arrayOffset()
+                        + segment.position(), segment.remaining());
+            } else {
+                out.write(segment);
+            }
+        }
+
+        FileContent file = ResponseEncoder.transfer(resp);
+        if (null != file) {
+            out.transfer(file);
+        }
+
+        if (null != resp.writer()) {
+            writeStream(out, resp, isHttp11);
+        }
+    }
+
+    /**
+     * Strip the body of the response to a HEAD request, which would
+     * otherwise be read as the start of the next response.
+     *
+     * @param req a request
+     * @param resp the request's response
+     * @return resp, or a response without body if req is a HEAD request
+     * @since 1.1
+     */
+    static ServerResponse head(ServerRequest.BufferRequest req,
+            ServerResponse resp) {
+
+        return "HEAD".equals(req.method())
+                ? ResponseEncoder.withoutBody(resp, req.isHttp11()) : resp;
+    }
+
+    /**
+     * Set the framing headers of a response.
+     * <p>
+     * A streamed body is sent with chunked encoding to HTTP/1.1 clients.
+     * HTTP/1.0 clients read it until the connection is closed. A 101
+     * response keeps its connection for the WebSocket it switches to, and a
+     * 504 response closes it, as its handler may still be running.
+     * </p>
+     *
+     * @param resp server response
+     * @param isHttp11 true if the client supports chunked encoding
+     * @param keepAlive true if the connection may stay open
+     * @return true if the connection stays open after this response
+     * @since 1.1
+     */
+    static boolean frame(ServerResponse resp, boolean isHttp11,
+            boolean keepAlive) {
+
+        if (null != resp.webSocket()) {
+            resp.header(CONNECTION, UPGRADE);
+            return true;
+        }
+
+        if (null != resp.writer()) {
+            if (isHttp11) {
+                resp.header(TRANSFER_ENCODING, CHUNKED);
+            } else {
+                keepAlive = false;
             }
+        }
+
+        if (ServerResponse.StatusCode.GATEWAY_TIMEOUT == resp.statusCode()) {
+            keepAlive = false;
+        }
+
+        resp.header(CONNECTION, keepAlive ? KEEP_ALIVE : CLOSE);
+        return keepAlive;
+    }
+
+    /**
+     * Run the writer of a streamed body.
+     *
+     * @param out the connection's output stream
+     * @param resp a streaming response
+     * @param isHttp11 true if the body is sent with chunked encoding
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    static void writeStream(OutputStream out, ServerResponse resp,
+            boolean isHttp11) throws IOException {
+
+        if (!isHttp11) {
+            resp.writer().write(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            });
+
+            out.flush();
+            return;
+        }
+
+        int threshold = ((ServerResponse.StreamingResponse) resp)
+                .flushThreshold();
+        try (OutputStream body = new ChunkedOutputStream(out, threshold)) {
+            resp.writer().write(body);
+        }
+    }
+
+    /**
+     * Close a socket, ignoring errors.
+     *
+     * @param socket
+     * @since 1.0
+     */
+    private void close(Socket socket) {
+        try {
+            socket.shutdownOutput();
+        } catch (IOException ioEx) {
+            // Already closed by the client
+        }
 
+        try {
             socket.close();
+        } catch (IOException ioEx) {
+            ioEx.printStackTrace(System.err);
         }
     }
 
+    /**
+     * An I/O engine of a {@link HttpServer}.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    public enum Engine {
+
+        /**
+         * One blocking thread per accepted connection.
+         *
+         * @since 1.1
+         */
+        BLOCKING,
+
+        /**
+         * A small fixed set of event-loop threads doing non-blocking reads
+         * and writes on a {@link java.nio.channels.Selector}.
+         *
+         * @since 1.1
+         */
+        NIO
+    }
 }
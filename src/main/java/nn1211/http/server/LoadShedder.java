@@ -0,0 +1,195 @@
+package nn1211.http.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A controller shedding requests waiting too long for a worker, after the
+ * CoDel queue management algorithm.
+ * <p>
+ * The queueing delay of a request is the time between its arrival, when its
+ * head is read or its connection accepted, and the start of its dispatch.
+ * While some requests get through the queue within the target delay, a
+ * request is shed only if it waited longer than the interval, which absorbs
+ * bursts. Once even the fastest request of a whole interval waited longer
+ * than the target, the queue is standing and the server overloaded: requests
+ * waiting longer than the target are then answered with a 503 response
+ * without running their handler, until the queue drains. The requests left
+ * thus wait at most about the target, which bounds latency at overload.
+ * </p>
+ * <p>
+ * Requests of routes marked critical are only shed beyond the interval, even
+ * at overload, so they keep being served while the other routes are shed.
+ * Requests matching no route are never critical.
+ * </p>
+ * <p>
+ * The delay mostly builds in the queue of a {@link WorkerPool#bounded}
+ * pool; with a pool starting a thread per task, it only measures the time
+ * to start the thread.
+ * </p>
+ * <pre>
+ * server.loadShedder(new LoadShedder()
+ *         .critical("GET /health"));
+ * </pre>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class LoadShedder {
+
+    /**
+     * Target queueing delay in nanoseconds.
+     *
+     * @since 1.1
+     */
+    private volatile long target = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Interval in nanoseconds.
+     *
+     * @since 1.1
+     */
+    private volatile long interval = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final Set<String> critical
+            = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Minimum delay seen in the current interval.
+     *
+     * @since 1.1
+     */
+    private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * End of the current interval.
+     *
+     * @since 1.1
+     */
+    private final AtomicLong intervalEnd = new AtomicLong(System.nanoTime());
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile boolean isOverloaded = false;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * Set the queueing delay tolerated at overload.
+     * <p>
+     * <i>Default value is 5 milliseconds</i>
+     * </p>
+     *
+     * @param millis the target delay in milliseconds
+     * @return this
+     * @throws IllegalArgumentException if millis is less than 1
+     * @since 1.1
+     */
+    public LoadShedder target(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("millis < 1");
+        }
+
+        target = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * Set the period over which the minimum delay is measured, which is also
+     * the delay tolerated without overload.
+     * <p>
+     * <i>Default value is 100 milliseconds</i>
+     * </p>
+     *
+     * @param millis the interval in milliseconds
+     * @return this
+     * @throws IllegalArgumentException if millis is less than 1
+     * @since 1.1
+     */
+    public LoadShedder interval(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("millis < 1");
+        }
+
+        interval = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * Mark a route as critical, shed last.
+     *
+     * @param route a route such as <code>GET /health</code>
+     * @return this
+     * @since 1.1
+     */
+    public LoadShedder critical(String route) {
+        critical.add(route);
+        return this;
+    }
+
+    /**
+     * Tell whether the last interval ended with a standing queue.
+     *
+     * @return true if overloaded
+     * @since 1.1
+     */
+    public boolean isOverloaded() {
+        return isOverloaded;
+    }
+
+    /**
+     * Get the number of requests shed.
+     *
+     * @return the number of 503 responses
+     * @since 1.1
+     */
+    public long shed() {
+        return shed.sum();
+    }
+
+    /**
+     * Record the queueing delay of a request and tell whether to serve it.
+     *
+     * @param route the name of the matched route, or
+     * {@link Metrics#NO_ROUTE}
+     * @param delay the request's queueing delay in nanoseconds
+     * @param now the value of {@link System#nanoTime()}
+     * @return true to serve the request, false to shed it
+     * @since 1.1
+     */
+    boolean admit(String route, long delay, long now) {
+        long end = intervalEnd.get();
+        if (now - end >= 0 && intervalEnd.compareAndSet(end, now + interval)) {
+            // An interval without requests has no queue
+            long min = minDelay.getAndSet(Long.MAX_VALUE);
+            isOverloaded = Long.MAX_VALUE != min && min > target;
+        }
+
+        if (delay < minDelay.get()) {
+            minDelay.accumulateAndGet(delay, Math::min);
+        }
+
+        long limit = isOverloaded && !critical.contains(route) ? target
+                : interval;
+        if (delay > limit) {
+            shed.increment();
+            return false;
+        }
+
+        return true;
+    }
+}
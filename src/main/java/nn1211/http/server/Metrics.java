@@ -0,0 +1,346 @@
+package nn1211.http.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import nn1211.http.Content;
+
+/**
+ * Request metrics per route and status code.
+ * <p>
+ * For each registered route and status code, the server counts requests,
+ * request and response body bytes, and records the time spent producing the
+ * response in a histogram with buckets of logarithmic width, so its
+ * quantiles are exact within 12.5%. Recording only updates striped counters
+ * and atomic buckets and never locks. Requests matching no route are
+ * recorded under the route <code>none</code>.
+ * </p>
+ * <p>
+ * {@link #handler()} exports the metrics in the Prometheus text format:
+ * </p>
+ * <pre>
+ * server.metrics(metrics)
+ *         .registerHandler("GET /metrics", metrics.handler());
+ * </pre>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class Metrics {
+
+    /**
+     * The route of requests matching no route.
+     *
+     * @since 1.1
+     */
+    static final String NO_ROUTE = "none";
+
+    /**
+     * Exported quantiles.
+     *
+     * @since 1.1
+     */
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * Series per route, indexed by status code - 100.
+     *
+     * @since 1.1
+     */
+    private final Map<String, AtomicReferenceArray<Series>> routes
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Record a request.
+     *
+     * @param route the name of the matched route, or {@link #NO_ROUTE}
+     * @param status the response's status code
+     * @param bytesIn the request body's length
+     * @param bytesOut the response body's length, or -1 if unknown
+     * @param nanos the time spent producing the response
+     * @since 1.1
+     */
+    void record(String route, int status, long bytesIn, long bytesOut,
+            long nanos) {
+
+        AtomicReferenceArray<Series> statuses = routes.get(route);
+        if (null == statuses) {
+            statuses = routes.computeIfAbsent(route,
+                    r -> new AtomicReferenceArray<>(500));
+        }
+
+        int index = Math.min(Math.max(status - 100, 0), 499);
+        Series series = statuses.get(index);
+        if (null == series) {
+            statuses.compareAndSet(index, null, new Series());
+            series = statuses.get(index);
+        }
+
+        series.count.increment();
+        series.bytesIn.add(Math.max(0, bytesIn));
+        series.bytesOut.add(Math.max(0, bytesOut));
+        series.nanos.add(nanos);
+        series.latency.record(nanos);
+    }
+
+    /**
+     * Get the number of requests of a route answered with a status code.
+     *
+     * @param route a route such as <code>GET /users/{id}</code>
+     * @param status a status code
+     * @return the number of requests
+     * @since 1.1
+     */
+    public long count(String route, int status) {
+        Series series = series(route, status);
+        return null == series ? 0 : series.count.sum();
+    }
+
+    /**
+     * Get a quantile of the latency of a route for a status code.
+     *
+     * @param route a route such as <code>GET /users/{id}</code>
+     * @param status a status code
+     * @param quantile a quantile from 0 to 1, such as 0.99
+     * @return the latency in nanoseconds, or 0 if nothing was recorded
+     * @since 1.1
+     */
+    public long latency(String route, int status, double quantile) {
+        Series series = series(route, status);
+        return null == series ? 0
+                : series.latency.quantiles(new double[]{quantile})[0];
+    }
+
+    /**
+     * Get a handler exporting these metrics in the Prometheus text format.
+     *
+     * @return a handler
+     * @since 1.1
+     */
+    public Handler handler() {
+        return req -> new ServerResponse.DefaultResponse(
+                ServerResponse.StatusCode.OK,
+                Content.from(export().getBytes(StandardCharsets.UTF_8),
+                        "text/plain; version=0.0.4; charset=utf-8"));
+    }
+
+    /**
+     * Format these metrics in the Prometheus text format.
+     *
+     * @return the exposition text
+     * @since 1.1
+     */
+    public String export() {
+        Map<String, AtomicReferenceArray<Series>> sorted
+                = new TreeMap<>(routes);
+        StringBuilder count = new StringBuilder(
+                "# HELP http_requests_total Requests served.\n"
+                + "# TYPE http_requests_total counter\n");
+        StringBuilder in = new StringBuilder(
+                "# HELP http_request_bytes_total Request body bytes.\n"
+                + "# TYPE http_request_bytes_total counter\n");
+        StringBuilder out = new StringBuilder(
+                "# HELP http_response_bytes_total Response body bytes.\n"
+                + "# TYPE http_response_bytes_total counter\n");
+        StringBuilder latency = new StringBuilder(
+                "# HELP http_request_duration_seconds Time spent producing"
+                + " responses.\n"
+                + "# TYPE http_request_duration_seconds summary\n");
+
+        sorted.forEach((route, statuses) -> {
+            for (int i = 0; i < statuses.length(); i++) {
+                Series series = statuses.get(i);
+                if (null == series) {
+                    continue;
+                }
+
+                String labels = "route=\"" + escape(route) + "\",status=\""
+                        + (i + 100) + "\"";
+                long n = series.count.sum();
+
+                count.append("http_requests_total{").append(labels)
+                        .append("} ").append(n).append('\n');
+                in.append("http_request_bytes_total{").append(labels)
+                        .append("} ").append(series.bytesIn.sum())
+                        .append('\n');
+                out.append("http_response_bytes_total{").append(labels)
+                        .append("} ").append(series.bytesOut.sum())
+                        .append('\n');
+
+                long[] values = series.latency.quantiles(QUANTILES);
+                for (int q = 0; q < QUANTILES.length; q++) {
+                    latency.append("http_request_duration_seconds{")
+                            .append(labels).append(",quantile=\"")
+                            .append(QUANTILES[q]).append("\"} ")
+                            .append(values[q] / 1e9).append('\n');
+                }
+
+                latency.append("http_request_duration_seconds_sum{")
+                        .append(labels).append("} ")
+                        .append(series.nanos.sum() / 1e9).append('\n')
+                        .append("http_request_duration_seconds_count{")
+                        .append(labels).append("} ").append(n).append('\n');
+            }
+        });
+
+        return count.append(in).append(out).append(latency).toString();
+    }
+
+    /**
+     * Get the series of a route and status code.
+     *
+     * @param route a route
+     * @param status a status code
+     * @return the series or null if nothing was recorded
+     * @since 1.1
+     */
+    private Series series(String route, int status) {
+        AtomicReferenceArray<Series> statuses = routes.get(route);
+        return null == statuses || status < 100 || status > 599 ? null
+                : statuses.get(status - 100);
+    }
+
+    /**
+     * Escape a Prometheus label value.
+     *
+     * @param value a value
+     * @return the escaped value
+     * @since 1.1
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    /**
+     * The metrics of a route and status code.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Series {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final Histogram latency = new Histogram();
+    }
+
+    /**
+     * A lock-free histogram of positive values.
+     * <p>
+     * Values below 8 have their own bucket. Above, each power of 2 is split
+     * into 8 buckets, so a bucket is at most 12.5% of its values wide.
+     * </p>
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class Histogram {
+
+        /**
+         * Bits of a value below its highest bit selecting its bucket.
+         *
+         * @since 1.1
+         */
+        private static final int SUB_BITS = 3;
+
+        /**
+         * Buckets per power of 2.
+         *
+         * @since 1.1
+         */
+        private static final int SUB = 1 << SUB_BITS;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(
+                (64 - SUB_BITS + 1) * SUB);
+
+        /**
+         * Record a value.
+         *
+         * @param value a value, negative values counting as 0
+         * @since 1.1
+         */
+        void record(long value) {
+            buckets.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        /**
+         * Estimate quantiles of the recorded values from a snapshot of the
+         * buckets.
+         *
+         * @param quantiles quantiles from 0 to 1, in increasing order
+         * @return the midpoint of the bucket holding each quantile, 0 if
+         * nothing was recorded
+         * @since 1.1
+         */
+        long[] quantiles(double[] quantiles) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+
+            long[] values = new long[quantiles.length];
+            if (0 == total) {
+                return values;
+            }
+
+            int q = 0;
+            long seen = 0;
+            for (int i = 0; i < counts.length && q < quantiles.length; i++) {
+                seen += counts[i];
+                while (q < quantiles.length && seen >= Math.max(1,
+                        Math.ceil(quantiles[q] * total))) {
+                    long low = lowerBound(i);
+                    values[q++] = low + (lowerBound(i + 1) - low) / 2;
+                }
+            }
+
+            return values;
+        }
+
+        /**
+         * Get the bucket of a value.
+         *
+         * @param value a non-negative value
+         * @return the bucket's index
+         * @since 1.1
+         */
+        static int index(long value) {
+            if (value < SUB) {
+                return (int) value;
+            }
+
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        /**
+         * Get the smallest value of a bucket.
+         *
+         * @param index a bucket's index
+         * @return the smallest value of the bucket
+         * @since 1.1
+         */
+        static long lowerBound(int index) {
+            if (index < SUB) {
+                return index;
+            }
+
+            int exp = index / SUB + SUB_BITS - 1;
+            return (long) (SUB + index % SUB) << (exp - SUB_BITS);
+        }
+    }
+}
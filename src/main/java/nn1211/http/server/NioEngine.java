@@ -0,0 +1,1532 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import nn1211.http.Content.FileContent;
+import nn1211.io.BufferPool;
+import static nn1211.http.HttpHeader.*;
+
+/**
+ * A non-blocking engine of a {@link HttpServer} built on a
+ * {@link ServerSocketChannel} and a fixed set of {@link Selector} driven
+ * event loops.
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class NioEngine {
+
+    /**
+     * Maximum number of pipelined responses batched into one write.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_PIPELINE = 16;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final HttpServer server;
+
+    /**
+     * Number of event loops requested.
+     *
+     * @since 1.1
+     */
+    private final int loopCount;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private EventLoop[] loops;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private ServerSocketChannel[] listeners;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile boolean isRunning = false;
+
+    /**
+     * The pool running requests with a body, which block while reading it.
+     *
+     * @since 1.1
+     */
+    private WorkerPool bodyWorkers;
+
+    /**
+     * Open connections, whether registered with a loop or in blocking mode.
+     *
+     * @since 1.1
+     */
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create an engine for a server.
+     *
+     * @param server the owner
+     * @param loopCount number of event loops
+     * @since 1.1
+     */
+    NioEngine(HttpServer server, int loopCount) {
+        this.server = server;
+        this.loopCount = loopCount;
+    }
+
+    /**
+     * Bind the listening channels and start their acceptors and the event
+     * loops.
+     *
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    void start() throws IOException {
+        listeners = server.listen();
+        loops = new EventLoop[Math.max(loopCount, listeners.length)];
+
+        isRunning = true;
+
+        bodyWorkers = server.workers() instanceof WorkerPool.DirectPool
+                ? WorkerPool.bounded(loops.length, 1024) : server.workers();
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            new Thread(BufferPool.shared().cached(loops[i]),
+                    "http-loop-" + i).start();
+        }
+
+        for (int i = 0; i < listeners.length; i++) {
+            int acceptor = i;
+            new Thread(() -> accept(acceptor), "http-acceptor-" + i).start();
+        }
+    }
+
+    /**
+     * Close the listening channel, all event loops and all connections.
+     *
+     * @since 1.1
+     */
+    void stop() {
+        isRunning = false;
+
+        closeListener();
+
+        if (bodyWorkers != server.workers()) {
+            bodyWorkers.shutdown();
+        }
+
+        for (EventLoop loop : loops) {
+            if (null != loop) {
+                loop.selector.wakeup();
+            }
+        }
+
+        // Connections in blocking mode have no key
+        connections.forEach(this::close);
+    }
+
+    /**
+     * Stop accepting connections and close the persistent ones waiting for
+     * their next request. The server stops keeping the others alive.
+     *
+     * @since 1.1
+     */
+    void drain() {
+        closeListener();
+
+        for (EventLoop loop : loops) {
+            loop.execute(loop::closeIdle);
+        }
+    }
+
+    /**
+     * Get the number of open connections.
+     *
+     * @return the number of open connections
+     * @since 1.1
+     */
+    int openConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Close the listening channels.
+     *
+     * @since 1.1
+     */
+    private void closeListener() {
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ioEx) {
+                ioEx.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Accept the connections of a listening channel and hand them in
+     * round-robin to the event loops of its share: those whose index is
+     * congruent to the acceptor's modulo the number of acceptors.
+     *
+     * @param acceptor the index of the listening channel
+     * @since 1.1
+     */
+    private void accept(int acceptor) {
+        ServerSocketChannel listener = listeners[acceptor];
+        int next = acceptor;
+        while (listener.isOpen()) {
+            try {
+                SocketChannel ch = listener.accept();
+                ch.configureBlocking(false);
+                server.configure(ch);
+                loops[next].register(ch);
+
+                next += listeners.length;
+                if (next >= loops.length) {
+                    next = acceptor;
+                }
+            } catch (IOException ioEx) {
+                // Closed by stop or drain
+                if (listener.isOpen()) {
+                    ioEx.printStackTrace(System.err);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close a connection, ignoring errors.
+     *
+     * @param key the connection's key
+     * @since 1.1
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        close((Connection) key.attachment());
+    }
+
+    /**
+     * Close a connection, disarm its timeout and count its requests as
+     * finished, ignoring errors. Its buffer is released if called by its
+     * owner: its loop, unless a worker serves it in blocking mode.
+     *
+     * @param conn a connection
+     * @since 1.1
+     */
+    private void close(Connection conn) {
+        conn.timeout.cancel();
+        finish(conn);
+        connections.remove(conn);
+
+        boolean isOwner = !conn.isDetached
+                && Thread.currentThread() == conn.loop.thread;
+        if (isOwner && null != conn.tls) {
+            conn.tls.closeOutbound();
+        }
+
+        close(conn.channel);
+        if (isOwner) {
+            release(conn);
+        }
+
+        if (null != conn.webSocket) {
+            conn.webSocket.closed();
+        }
+    }
+
+    /**
+     * Release the buffer of a connection. It runs on the connection's
+     * owner.
+     *
+     * @param conn a closed connection
+     * @since 1.1
+     */
+    private static void release(Connection conn) {
+        if (null != conn.in) {
+            BufferPool.shared().release(conn.in);
+            conn.in = null;
+        }
+
+        if (null != conn.tls) {
+            conn.tls.release();
+        }
+    }
+
+    /**
+     * Replace the buffer of a connection with a larger one from the pool,
+     * keeping its bytes. It runs on the connection's owner.
+     *
+     * @param conn a connection
+     * @param capacity the minimum capacity
+     * @since 1.1
+     */
+    private static void grow(Connection conn, int capacity) {
+        ByteBuffer grown = BufferPool.shared().acquire(capacity);
+        conn.in.flip();
+        grown.put(conn.in);
+        BufferPool.shared().release(conn.in);
+        conn.in = grown;
+    }
+
+    /**
+     * Count the requests of a connection as finished, once their responses
+     * are written.
+     *
+     * @param conn a connection
+     * @since 1.1
+     */
+    private void finish(Connection conn) {
+        server.requestsFinished(conn.requests.getAndSet(0));
+    }
+
+    /**
+     * Close a connection after an I/O failure, which is expected if its
+     * timeout, a drain or stop closed it.
+     *
+     * @param conn a connection
+     * @param ex the failure
+     * @since 1.1
+     */
+    private void fail(Connection conn, Exception ex) {
+        if (conn.channel.isOpen()) {
+            ex.printStackTrace(System.err);
+        }
+
+        close(conn);
+    }
+
+    /**
+     * Close a channel, ignoring errors.
+     *
+     * @param ch a channel
+     * @since 1.1
+     */
+    private static void close(Channel ch) {
+        try {
+            ch.close();
+        } catch (IOException ioEx) {
+            ioEx.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * The state of a connection, attached to its {@link SelectionKey}.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Connection {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final SocketChannel channel;
+
+        /**
+         * The TLS layer of a HTTPS connection, or null.
+         *
+         * @since 1.1
+         */
+        private final TlsChannel tls;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final EventLoop loop;
+
+        /**
+         * A buffer of the shared pool, acquired once registered with the
+         * loop. Once switched to a WebSocket, it is acquired only while
+         * frames are received.
+         *
+         * @since 1.1
+         */
+        private ByteBuffer in;
+
+        /**
+         * The parser of requests, dropped once switched to a WebSocket.
+         *
+         * @since 1.1
+         */
+        private RequestParser parser = new RequestParser();
+
+        /**
+         * The headers of requests, dropped once switched to a WebSocket.
+         *
+         * @since 1.1
+         */
+        private HeaderTable headers = new HeaderTable();
+
+        /**
+         * Encoded responses not written yet, in request order.
+         *
+         * @since 1.1
+         */
+        private final List<ByteBuffer> out = new ArrayList<>();
+
+        /**
+         * Number of responses in {@link #out}.
+         *
+         * @since 1.1
+         */
+        private int pipelined = 0;
+
+        /**
+         * Number of requests served, including the current one.
+         *
+         * @since 1.1
+         */
+        private int served = 0;
+
+        /**
+         * Number of requests received whose response is not written yet.
+         * It is reset by whichever thread closes the connection.
+         *
+         * @since 1.1
+         */
+        private final AtomicInteger requests = new AtomicInteger();
+
+        /**
+         *
+         * @since 1.1
+         */
+        private boolean keepAlive = false;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private boolean isHttp11 = false;
+
+        /**
+         * True while TLS records produced by a read, such as the handshake,
+         * wait for the socket to take them.
+         *
+         * @since 1.1
+         */
+        private boolean isFlushingTls = false;
+
+        /**
+         * True once the first byte of a request head is received, until the
+         * head is complete.
+         *
+         * @since 1.1
+         */
+        private boolean isReadingHead = false;
+
+        /**
+         * The WebSocket of a 101 response, switched to once the response
+         * is written, or null.
+         *
+         * @since 1.1
+         */
+        private volatile WebSocket webSocket;
+
+        /**
+         * True once the connection carries the frames of its WebSocket.
+         *
+         * @since 1.1
+         */
+        private boolean isUpgraded = false;
+
+        /**
+         * True once the connection of a WebSocket is to be closed after its
+         * queued frames.
+         *
+         * @since 1.1
+         */
+        private boolean isClosing = false;
+
+        /**
+         * True while a worker owns the connection in blocking mode, from
+         * its hand-over until it hands the connection back.
+         *
+         * @since 1.1
+         */
+        private volatile boolean isDetached = false;
+
+        /**
+         * The asynchronous response the connection is parked for, answered
+         * with a 504 response if its timeout expires first, or null.
+         *
+         * @since 1.1
+         */
+        private volatile CompletableFuture<ServerResponse> parked;
+
+        /**
+         * The request of {@link #parked}.
+         *
+         * @since 1.1
+         */
+        private volatile ServerRequest parkedRequest;
+
+        /**
+         * The timeout of the current phase: waiting for a request, reading
+         * its head or body, or writing its response.
+         *
+         * @since 1.1
+         */
+        private final TimerWheel.Timeout timeout;
+
+        /**
+         * Create the state of an accepted channel.
+         *
+         * @param channel an accepted channel
+         * @param tls the server's TLS settings, or null
+         * @param timer the server's timer
+         * @param loop the loop owning the channel, which closes it when its
+         * timeout expires
+         * @since 1.1
+         */
+        private Connection(SocketChannel channel, Tls tls, TimerWheel timer,
+                EventLoop loop) {
+
+            this.channel = channel;
+            this.tls = null == tls ? null
+                    : new TlsChannel(channel, tls.createEngine());
+            this.loop = loop;
+            timeout = timer.timeout(() -> loop.execute(() -> loop.expire(this)));
+        }
+
+        /**
+         * Read request bytes, decrypted if HTTPS.
+         *
+         * @param dst the destination
+         * @return the number of bytes read, or -1 at end of stream
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private int read(ByteBuffer dst) throws IOException {
+            return null == tls ? channel.read(dst) : tls.read(dst);
+        }
+
+        /**
+         * Write response bytes, encrypted if HTTPS.
+         *
+         * @param srcs the bytes
+         * @param offset the first buffer
+         * @param length the number of buffers
+         * @return the number of bytes consumed
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private long write(ByteBuffer[] srcs, int offset, int length)
+                throws IOException {
+
+            return null == tls ? channel.write(srcs, offset, length)
+                    : tls.write(srcs, offset, length);
+        }
+
+        /**
+         * Get the channel writing response bytes, encrypted if HTTPS.
+         *
+         * @return the socket channel or its TLS layer
+         * @since 1.1
+         */
+        private WritableByteChannel output() {
+            return null == tls ? channel : tls;
+        }
+
+        /**
+         * Determine whether request bytes wait in the TLS layer rather than
+         * in the socket, so that the selector will not report them.
+         *
+         * @return true if a read is due
+         * @since 1.1
+         */
+        private boolean hasBuffered() {
+            return null != tls && tls.hasBuffered();
+        }
+    }
+
+    /**
+     * A single-threaded event loop owning a {@link Selector}.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private final class EventLoop implements Runnable {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Selector selector;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Queue<Connection> pending
+                = new ConcurrentLinkedQueue<>();
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Thread thread;
+
+        /**
+         * Open the selector of this loop.
+         *
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Hand an accepted channel over to this loop.
+         *
+         * @param ch an accepted channel
+         * @since 1.1
+         */
+        private void register(SocketChannel ch) {
+            Connection conn = new Connection(ch, server.tls(), server.timer(),
+                    this);
+            connections.add(conn);
+            conn.timeout.schedule(server.idleTimeout());
+            attach(conn);
+        }
+
+        /**
+         * Close a connection whose timeout expired.
+         *
+         * @param conn a connection
+         * @since 1.1
+         */
+        private void expire(Connection conn) {
+            CompletableFuture<ServerResponse> future = conn.parked;
+            if (null != future) {
+                // Its timeout spent, the connection closes after the 504
+                // response, or after the response completed meanwhile
+                conn.keepAlive = false;
+                server.expire(future, conn.parkedRequest);
+                return;
+            }
+
+            close(conn);
+        }
+
+        /**
+         * Close the persistent connections of this loop waiting for their
+         * next request.
+         *
+         * @since 1.1
+         */
+        private void closeIdle() {
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (key.isValid() && isIdle(conn)) {
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * Determine whether a persistent connection waits for its next
+         * request.
+         *
+         * @param conn a connection
+         * @return true if idle, false otherwise
+         * @since 1.1
+         */
+        private boolean isIdle(Connection conn) {
+            return null == conn.webSocket && conn.served > 0
+                    && 0 == conn.requests.get() && 0 == conn.in.position()
+                    && !conn.hasBuffered();
+        }
+
+        /**
+         * Hand a non-blocking connection over to this loop.
+         *
+         * @param conn a connection
+         * @since 1.1
+         */
+        private void attach(Connection conn) {
+            pending.add(conn);
+            selector.wakeup();
+        }
+
+        /**
+         * Run a task on this loop.
+         *
+         * @param task a task
+         * @since 1.1
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (isRunning) {
+                    selector.select();
+                    registerPending();
+
+                    Runnable task;
+                    while (null != (task = tasks.poll())) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it
+                            = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        // Closed by a task or an expired timeout
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        try {
+                            // Both only for a WebSocket
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException | RuntimeException ex) {
+                            ex.printStackTrace(System.err);
+                            close(key);
+                        }
+                    }
+                }
+            } catch (IOException ioEx) {
+                ioEx.printStackTrace(System.err);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    close(key);
+                }
+
+                try {
+                    selector.close();
+                } catch (IOException ioEx) {
+                    ioEx.printStackTrace(System.err);
+                }
+            }
+        }
+
+        /**
+         * Register the channels handed over since the last select.
+         *
+         * @since 1.1
+         */
+        private void registerPending() {
+            Connection conn;
+            while (null != (conn = pending.poll())) {
+                if (null == conn.in) {
+                    conn.in = BufferPool.shared().acquire(1024);
+                }
+
+                try {
+                    SelectionKey key = conn.channel.register(selector,
+                            SelectionKey.OP_READ, conn);
+
+                    if (server.isDraining() && isIdle(conn)) {
+                        close(key);
+                    } else if (conn.served > 0) {
+                        // A connection back from a worker may hold a
+                        // pipelined request
+                        process(key);
+                    }
+                } catch (IOException ioEx) {
+                    ioEx.printStackTrace(System.err);
+                    close(conn);
+                }
+            }
+        }
+
+        /**
+         * Read from a readable connection and process its buffered request.
+         *
+         * @param key the connection's key
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private void read(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+
+            if (null == conn.in) {
+                // A WebSocket holds none while idle
+                conn.in = BufferPool.shared().acquire(1024);
+            }
+
+            if (conn.read(conn.in) < 0) {
+                close(key);
+                return;
+            }
+
+            if (null != conn.tls && !conn.tls.flush()) {
+                // The request, if any, is processed once they are sent
+                conn.isFlushingTls = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+
+            process(key);
+        }
+
+        /**
+         * Read the request bytes a TLS connection already holds, unless it
+         * was closed or handed over meanwhile.
+         *
+         * @param key the connection's key
+         * @since 1.1
+         */
+        private void resume(SelectionKey key) {
+            if (!key.isValid()
+                    || 0 == (key.interestOps() & SelectionKey.OP_READ)) {
+                return;
+            }
+
+            try {
+                read(key);
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace(System.err);
+                close(key);
+            }
+        }
+
+        /**
+         * Dispatch the buffered request of a connection once its head is
+         * complete.
+         *
+         * @param key the connection's key
+         * @since 1.1
+         */
+        private void process(SelectionKey key) {
+            SocketChannel ch = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+
+            if (conn.isUpgraded) {
+                receive(key);
+                return;
+            }
+
+            if (!conn.parser.parse(conn.in)) {
+                if (conn.parser.isError()) {
+                    if (server.isHttp2() && null == conn.tls
+                            && 0 == conn.served
+                            && Http2Connection.isPreface(conn.in)) {
+                        key.cancel();
+                        execute(() -> detach(conn, () -> http2(conn, null),
+                                () -> close(conn)));
+                        return;
+                    }
+
+                    server.log(ch.socket().getInetAddress().toString(), 400);
+                    conn.out.add(ByteBuffer.wrap(HttpServer.BAD_REQUEST));
+                    abort(key);
+                    return;
+                }
+
+                if (!conn.in.hasRemaining()) {
+                    if (conn.in.capacity() >= HttpServer.MAX_HEAD) {
+                        abort(key);
+                        return;
+                    }
+
+                    grow(conn, conn.in.capacity() * 2);
+                }
+
+                if (conn.hasBuffered()) {
+                    // The selector reports bytes of the socket only
+                    execute(() -> resume(key));
+                }
+
+                // The header timeout runs from the first byte of the head
+                if (!conn.isReadingHead && conn.in.position() > 0) {
+                    conn.isReadingHead = true;
+                    conn.timeout.schedule(server.headerTimeout());
+                }
+
+                return;
+            }
+
+            conn.isReadingHead = false;
+            conn.timeout.cancel();
+            conn.requests.incrementAndGet();
+            server.requestStarted();
+
+            ServerRequest.BufferRequest req = ServerRequest.from(
+                    ch.socket().getInetAddress().toString(), conn.in,
+                    conn.parser, conn.headers);
+            conn.parser.consume(conn.in);
+
+            conn.keepAlive = server.keepAlive(req, ++conn.served);
+            conn.isHttp11 = req.isHttp11();
+
+            if (server.isHttp2() && null == conn.tls && 1 == conn.served
+                    && Http2Connection.isUpgrade(req)) {
+                // Counted again as stream 1
+                conn.requests.decrementAndGet();
+                server.requestsFinished(1);
+                key.cancel();
+                execute(() -> detach(conn, () -> http2(conn, req),
+                        () -> close(conn)));
+                return;
+            }
+
+            if (req.hasBody()) {
+                key.cancel();
+                execute(() -> detach(conn, () -> serve(conn, req), () -> {
+                    conn.keepAlive = false;
+                    ServerResponse resp = ServerResponse.serviceUnavailable();
+                    server.log(Metrics.NO_ROUTE, req, resp, System.nanoTime());
+                    send(conn, resp);
+                }));
+                return;
+            }
+
+            key.interestOps(0);
+            if (!server.workers().execute(() -> respond(key, req))) {
+                conn.keepAlive = false;
+                ServerResponse resp = ServerResponse.serviceUnavailable();
+                server.log(Metrics.NO_ROUTE, req, resp, System.nanoTime());
+                respond(key, resp);
+            }
+        }
+
+        /**
+         * Switch a connection to blocking mode and run a task on a worker
+         * thread. It runs once the connection's key is deregistered.
+         *
+         * @param conn a connection
+         * @param task the task, run on a worker thread
+         * @param onReject the task run on this loop if the workers reject
+         * the task
+         * @since 1.1
+         */
+        private void detach(Connection conn, Runnable task,
+                BlockingTask onReject) {
+
+            try {
+                conn.channel.configureBlocking(true);
+                conn.isDetached = true;
+                if (!bodyWorkers.execute(task)) {
+                    conn.isDetached = false;
+                    onReject.run();
+                }
+            } catch (IOException | RuntimeException ex) {
+                fail(conn, ex);
+            }
+        }
+
+        /**
+         * Switch a blocking connection back to non-blocking mode and hand it
+         * over to this loop.
+         *
+         * @param conn a connection in blocking mode
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private void reattach(Connection conn) throws IOException {
+            conn.channel.configureBlocking(false);
+            conn.timeout.schedule(server.idleTimeout());
+            conn.isDetached = false;
+            attach(conn);
+        }
+
+        /**
+         * Write a streaming response, or a file with sendfile, on a blocking
+         * connection, then hand the connection back to this loop. It runs on
+         * a worker thread.
+         *
+         * @param conn a connection in blocking mode
+         * @param resp a streaming or file response
+         * @since 1.1
+         */
+        private void stream(Connection conn, ServerResponse resp) {
+            try {
+                if (send(conn, resp)) {
+                    reattach(conn);
+                    return;
+                }
+            } catch (IOException | RuntimeException ex) {
+                fail(conn, ex);
+            }
+
+            // Closed while owned by this worker
+            release(conn);
+        }
+
+        /**
+         * Serve a connection switched to HTTP/2 until it is closed. It runs
+         * on a worker thread.
+         *
+         * @param conn a connection in blocking mode
+         * @param upgrade the request upgrading the connection, or null if
+         * it started with the client preface
+         * @since 1.1
+         */
+        private void http2(Connection conn,
+                ServerRequest.BufferRequest upgrade) {
+
+            new Http2Connection(server, conn.channel, conn.timeout,
+                    server.workers()).serve(conn.in, upgrade);
+            close(conn);
+            release(conn);
+        }
+
+        /**
+         * Serve a request with a body on a blocking connection, then hand
+         * the connection back to this loop. It runs on a worker thread.
+         *
+         * @param conn a connection in blocking mode
+         * @param req a request with a body
+         * @since 1.1
+         */
+        private void serve(Connection conn, ServerRequest.BufferRequest req) {
+            try {
+                if (conn.in.capacity() < HttpServer.OUT_BUFFER) {
+                    grow(conn, HttpServer.OUT_BUFFER);
+                }
+
+                req.openBody(conn.in, conn.timeout.guard(conn::read,
+                        server.bodyTimeout()), server.maxBodySize());
+                req.continueHook(() -> {
+                    try {
+                        conn.out.add(ByteBuffer.wrap(HttpServer.CONTINUE));
+                        writeFully(conn);
+                    } catch (IOException ioEx) {
+                        ioEx.printStackTrace(System.err);
+                    }
+                });
+
+                ServerResponse resp = HttpServer.head(req,
+                        server.dispatch(req));
+                conn.keepAlive &= req.finishBody(server.maxBodySize());
+                if (send(conn, resp)) {
+                    reattach(conn);
+                    return;
+                }
+            } catch (IOException | RuntimeException ex) {
+                fail(conn, ex);
+            }
+
+            // Closed while owned by this worker
+            release(conn);
+        }
+
+        /**
+         * Write a response after the batched ones on a blocking connection,
+         * closing it unless kept alive.
+         *
+         * @param conn a connection in blocking mode
+         * @param resp the response
+         * @return true if the connection is kept alive, false if closed
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private boolean send(Connection conn, ServerResponse resp)
+                throws IOException {
+
+            // A drain may have started since the head was parsed
+            conn.keepAlive = HttpServer.frame(resp, conn.isHttp11,
+                    conn.keepAlive && !server.isDraining());
+
+            Collections.addAll(conn.out, ResponseEncoder.encode(resp));
+
+            writeFully(conn);
+
+            FileContent file = ResponseEncoder.transfer(resp);
+            long size = null == file ? 0 : file.size();
+            for (long sent = 0; sent < size; sent += HttpServer.WRITE_CHUNK) {
+                conn.timeout.schedule(server.writeTimeout());
+                try {
+                    file.slice(sent, Math.min(HttpServer.WRITE_CHUNK,
+                            size - sent)).transferTo(conn.output());
+                } finally {
+                    conn.timeout.cancel();
+                }
+            }
+
+            if (null != resp.writer()) {
+                TimedOutputStream out = new TimedOutputStream(conn.output(),
+                        conn.timeout, server.writeTimeout());
+                try {
+                    HttpServer.writeStream(out, resp, conn.isHttp11);
+                    out.flush();
+                } finally {
+                    out.release();
+                }
+            }
+
+            finish(conn);
+            if (!conn.keepAlive) {
+                close(conn);
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Write the batched responses of a blocking connection, at most
+         * {@link HttpServer#WRITE_CHUNK} bytes per write, each within the
+         * write timeout.
+         *
+         * @param conn a connection in blocking mode
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private void writeFully(Connection conn) throws IOException {
+            ByteBuffer[] out = conn.out.toArray(new ByteBuffer[conn.out.size()]);
+            int first = 0;
+            while (out[out.length - 1].hasRemaining()) {
+                while (!out[first].hasRemaining()) {
+                    first++;
+                }
+
+                // Cut the buffer crossing the chunk's end while written
+                int end = first;
+                int limit = -1;
+                int budget = HttpServer.WRITE_CHUNK;
+                while (end < out.length) {
+                    ByteBuffer segment = out[end++];
+                    if (segment.remaining() >= budget) {
+                        limit = segment.limit();
+                        segment.limit(segment.position() + budget);
+                        break;
+                    }
+
+                    budget -= segment.remaining();
+                }
+
+                conn.timeout.schedule(server.writeTimeout());
+                try {
+                    conn.write(out, first, end - first);
+                } finally {
+                    conn.timeout.cancel();
+                    if (-1 != limit) {
+                        out[end - 1].limit(limit);
+                    }
+                }
+            }
+
+            conn.out.clear();
+            conn.pipelined = 0;
+        }
+
+        /**
+         * Close a connection once its batched responses are written.
+         *
+         * @param key the connection's key
+         * @since 1.1
+         */
+        private void abort(SelectionKey key) {
+            Connection conn = (Connection) key.attachment();
+            if (conn.out.isEmpty()) {
+                close(key);
+                return;
+            }
+
+            conn.keepAlive = false;
+            flush(key);
+        }
+
+        /**
+         * Start writing the batched responses of a connection.
+         *
+         * @param key the connection's key
+         * @since 1.1
+         */
+        private void flush(SelectionKey key) {
+            try {
+                key.interestOps(SelectionKey.OP_WRITE);
+                write(key);
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace(System.err);
+                close(key);
+            }
+        }
+
+        /**
+         * Dispatch a request and hand its response back to this loop. It
+         * runs on a worker thread of the server. The connection of an
+         * asynchronous handler stays parked, without a thread, until its
+         * response completes.
+         *
+         * @param key the connection's key
+         * @param req a valid request
+         * @since 1.1
+         */
+        private void respond(SelectionKey key,
+                ServerRequest.BufferRequest req) {
+
+            CompletableFuture<ServerResponse> future;
+            try {
+                future = server.dispatchAsync(req);
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace(System.err);
+                execute(() -> close(key));
+                return;
+            }
+
+            if (future.isDone() && Thread.currentThread() == thread) {
+                respond(key, HttpServer.head(req, future.join()));
+                return;
+            }
+
+            // A future never completing must not hold the connection
+            Connection conn = (Connection) key.attachment();
+            conn.parkedRequest = req;
+            conn.parked = future;
+            conn.timeout.schedule(server.asyncTimeout());
+            future.thenAccept(resp -> execute(() -> {
+                conn.timeout.cancel();
+                conn.parked = null;
+                conn.parkedRequest = null;
+                respond(key, HttpServer.head(req, resp));
+            }));
+        }
+
+        /**
+         * Encode a response and either process the next pipelined request
+         * or start writing the batched responses. It runs on this loop.
+         *
+         * @param key the connection's key
+         * @param resp the response
+         * @since 1.1
+         */
+        private void respond(SelectionKey key, ServerResponse resp) {
+            if (!key.isValid()) {
+                return;
+            }
+
+            Connection conn = (Connection) key.attachment();
+            boolean isBlocking;
+            try {
+                isBlocking = null != resp.writer()
+                        || null != ResponseEncoder.transfer(resp);
+            } catch (IOException ioEx) {
+                ioEx.printStackTrace(System.err);
+                close(key);
+                return;
+            }
+
+            if (isBlocking) {
+                key.cancel();
+                execute(() -> detach(conn, () -> stream(conn, resp),
+                        () -> close(conn)));
+                return;
+            }
+
+            // A drain may have started since the head was parsed
+            conn.keepAlive = HttpServer.frame(resp, conn.isHttp11,
+                    conn.keepAlive && !server.isDraining());
+
+            try {
+                Collections.addAll(conn.out, ResponseEncoder.encode(resp));
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace(System.err);
+                close(key);
+                return;
+            }
+
+            // Switched to once the batched responses are written
+            conn.webSocket = resp.webSocket();
+
+            if (null == conn.webSocket && conn.keepAlive
+                    && ++conn.pipelined < MAX_PIPELINE
+                    && conn.parser.parse(conn.in)) {
+                process(key);
+            } else {
+                flush(key);
+            }
+        }
+
+        /**
+         * Write the batched responses of a connection in one gathering
+         * write. Once written, the connection either waits for its next
+         * request or is closed.
+         *
+         * @param key the connection's key
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private void write(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+
+            if (conn.isFlushingTls) {
+                if (conn.tls.flush()) {
+                    conn.isFlushingTls = false;
+                    key.interestOps(SelectionKey.OP_READ);
+                    process(key);
+                }
+
+                return;
+            }
+
+            if (conn.isUpgraded) {
+                writeFrames(key);
+                return;
+            }
+
+            conn.write(conn.out.toArray(new ByteBuffer[conn.out.size()]), 0,
+                    conn.out.size());
+            while (!conn.out.isEmpty() && !conn.out.get(0).hasRemaining()) {
+                conn.out.remove(0);
+            }
+
+            // Records the socket did not take yet are sent by the next write
+            if (!conn.out.isEmpty()
+                    || (null != conn.tls && !conn.tls.flush())) {
+                // Each write making progress gives the client more time
+                conn.timeout.schedule(server.writeTimeout());
+                return;
+            }
+
+            finish(conn);
+            if (null != conn.webSocket) {
+                upgrade(key);
+                return;
+            }
+
+            if (!conn.keepAlive || (server.isDraining() && isIdle(conn))) {
+                close(key);
+                return;
+            }
+
+            conn.pipelined = 0;
+            conn.timeout.schedule(server.idleTimeout());
+            key.interestOps(SelectionKey.OP_READ);
+            process(key);
+        }
+
+        /**
+         * Switch a connection to its WebSocket once the 101 response is
+         * written, and open the socket.
+         *
+         * @param key the connection's key
+         * @since 1.1
+         */
+        private void upgrade(SelectionKey key) {
+            Connection conn = (Connection) key.attachment();
+            conn.isUpgraded = true;
+            conn.parser = null;
+            conn.headers = null;
+            conn.timeout.cancel();
+            key.interestOps(SelectionKey.OP_READ);
+
+            conn.webSocket.open(new WebSocketTransport(key));
+            if (key.isValid()) {
+                // Frames may have followed the handshake
+                receive(key);
+            }
+        }
+
+        /**
+         * Handle the frames received by a connection switched to a
+         * WebSocket. Its buffer goes back to the pool once empty, so that an
+         * idle socket holds none.
+         *
+         * @param key the connection's key
+         * @since 1.1
+         */
+        private void receive(SelectionKey key) {
+            Connection conn = (Connection) key.attachment();
+            if (null == conn.in) {
+                return;
+            }
+
+            int need = conn.webSocket.receive(conn.in);
+            if (need > conn.in.capacity()) {
+                grow(conn, need);
+            }
+
+            if (0 == conn.in.position()) {
+                BufferPool.shared().release(conn.in);
+                conn.in = null;
+            }
+
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (need < 0) {
+                // Closed once its queued frames are written
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if (conn.hasBuffered()) {
+                execute(() -> resume(key));
+            }
+
+            if (!conn.out.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        /**
+         * Write the queued frames of a WebSocket. Until written, the
+         * connection waits for the socket to be writable, within the write
+         * timeout, while it keeps reading.
+         *
+         * @param key the connection's key
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        private void writeFrames(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+
+            conn.write(conn.out.toArray(new ByteBuffer[conn.out.size()]), 0,
+                    conn.out.size());
+            while (!conn.out.isEmpty() && !conn.out.get(0).hasRemaining()) {
+                conn.out.remove(0);
+            }
+
+            if (!conn.out.isEmpty()
+                    || (null != conn.tls && !conn.tls.flush())) {
+                // Each write making progress gives the client more time
+                conn.timeout.schedule(server.writeTimeout());
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            if (conn.isClosing) {
+                close(key);
+                return;
+            }
+
+            conn.timeout.cancel();
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Write the queued frames of a WebSocket, closing its connection on
+         * failure.
+         *
+         * @param key the connection's key
+         * @since 1.1
+         */
+        private void sendFrames(SelectionKey key) {
+            try {
+                writeFrames(key);
+            } catch (IOException | RuntimeException ex) {
+                ex.printStackTrace(System.err);
+                close(key);
+            }
+        }
+
+        /**
+         * The side of a connection switched to a WebSocket. Frames are
+         * queued by a task of the loop, which writes them unless the socket
+         * is not writable yet.
+         *
+         * @author nn1211
+         * @since 1.1
+         */
+        private final class WebSocketTransport implements WebSocket.Transport {
+
+            /**
+             *
+             * @since 1.1
+             */
+            private final SelectionKey key;
+
+            /**
+             * Create the side of a connection.
+             *
+             * @param key the connection's key
+             * @since 1.1
+             */
+            private WebSocketTransport(SelectionKey key) {
+                this.key = key;
+            }
+
+            /**
+             *
+             * @since 1.1
+             */
+            @Override
+            public void send(ByteBuffer frame) {
+                execute(() -> {
+                    Connection conn = (Connection) key.attachment();
+                    if (!key.isValid() || conn.isClosing) {
+                        return;
+                    }
+
+                    conn.out.add(frame);
+                    if (0 == (key.interestOps() & SelectionKey.OP_WRITE)) {
+                        sendFrames(key);
+                    }
+                });
+            }
+
+            /**
+             *
+             * @since 1.1
+             */
+            @Override
+            public void close() {
+                execute(() -> {
+                    if (key.isValid()) {
+                        ((Connection) key.attachment()).isClosing = true;
+                        sendFrames(key);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A task run on an event loop that may fail with an I/O exception.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    @FunctionalInterface
+    private interface BlockingTask {
+
+        /**
+         * Run this task.
+         *
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,272 @@
+package nn1211.http.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A limit of the request rate of each client, per route.
+ * <p>
+ * Each client IP has a token bucket per route, refilled at a steady rate
+ * up to a burst. A request finding its bucket empty is answered with a 429
+ * response, before its handler runs. Requests matching no route share the
+ * route <code>none</code>.
+ * </p>
+ * <p>
+ * A bucket is a single {@link AtomicLong} holding the time it will be full
+ * again, so taking a token is one compare-and-set and never locks. Buckets
+ * live in a {@link ConcurrentHashMap} per route; a full bucket is the same
+ * as a missing one, so buckets full for a while are dropped by a sweep the
+ * server runs every few seconds on its timer thread, off the path of
+ * requests. Memory thus follows the clients active within that period.
+ * </p>
+ * <pre>
+ * server.rateLimiter(new RateLimiter(100, 200)
+ *         .limit("POST /login", 1, 5));
+ * </pre>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class RateLimiter {
+
+    /**
+     * Period of the sweep of idle buckets in milliseconds.
+     *
+     * @since 1.1
+     */
+    static final long SWEEP_MILLIS = 10000;
+
+    /**
+     * Longest time a bucket may take to refill a burst, which keeps the
+     * times of the buckets far from overflowing.
+     *
+     * @since 1.1
+     */
+    private static final long MAX_CAPACITY = TimeUnit.DAYS.toNanos(365);
+
+    /**
+     * The value of {@link System#nanoTime()} times are relative to.
+     *
+     * @since 1.1
+     */
+    private final long origin = System.nanoTime();
+
+    /**
+     * The limit of routes without their own.
+     *
+     * @since 1.1
+     */
+    private final double rate;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final int burst;
+
+    /**
+     * Limits per route name.
+     *
+     * @since 1.1
+     */
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Create a limiter applying a limit to each route, unless set
+     * otherwise.
+     *
+     * @param rate requests per second allowed to each client
+     * @param burst requests a client may send at once after being idle
+     * @throws IllegalArgumentException if rate is not positive, burst is
+     * less than 1, or refilling a burst takes more than a year
+     * @since 1.1
+     */
+    public RateLimiter(double rate, int burst) {
+        check(rate, burst);
+        this.rate = rate;
+        this.burst = burst;
+    }
+
+    /**
+     * Set the limit of a route.
+     *
+     * @param route a route such as <code>POST /login</code>
+     * @param rate requests per second allowed to each client
+     * @param burst requests a client may send at once after being idle
+     * @return this
+     * @throws IllegalArgumentException if rate is not positive, burst is
+     * less than 1, or refilling a burst takes more than a year
+     * @since 1.1
+     */
+    public RateLimiter limit(String route, double rate, int burst) {
+        check(rate, burst);
+        limits.put(route, new Limit(rate, burst));
+        return this;
+    }
+
+    /**
+     * Exempt a route from any limit, such as a health check.
+     *
+     * @param route a route such as <code>GET /health</code>
+     * @return this
+     * @since 1.1
+     */
+    public RateLimiter exempt(String route) {
+        limits.put(route, new Limit(Double.POSITIVE_INFINITY, 1));
+        return this;
+    }
+
+    /**
+     * Get the number of requests refused.
+     *
+     * @return the number of 429 responses
+     * @since 1.1
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Get the number of buckets currently tracked, about the number of
+     * clients active on each route recently.
+     *
+     * @return the number of buckets
+     * @since 1.1
+     */
+    public long buckets() {
+        long count = 0;
+        for (Limit limit : limits.values()) {
+            count += limit.buckets.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Take a token from the bucket of a client on a route.
+     *
+     * @param route the name of the matched route, or
+     * {@link Metrics#NO_ROUTE}
+     * @param client the client's IP
+     * @return 0 if allowed, otherwise the nanoseconds until a token is
+     * available
+     * @since 1.1
+     */
+    long acquire(String route, String client) {
+        Limit limit = limits.get(route);
+        if (null == limit) {
+            limit = limits.computeIfAbsent(route, r -> new Limit(rate, burst));
+        }
+
+        if (0 == limit.interval) {
+            return 0;
+        }
+
+        long now = System.nanoTime() - origin;
+        AtomicLong bucket = limit.buckets.get(client);
+        if (null == bucket) {
+            bucket = limit.buckets.computeIfAbsent(client,
+                    c -> new AtomicLong(now));
+        }
+
+        // Generic cell rate algorithm: full is the time the bucket will be
+        // full again, one interval later per token taken
+        while (true) {
+            long full = bucket.get();
+            long base = Math.max(full, now);
+            long wait = base + limit.interval - now - limit.capacity;
+            if (wait > 0) {
+                rejected.increment();
+                return wait;
+            }
+
+            if (bucket.compareAndSet(full, base + limit.interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drop the buckets full for at least a sweep period, run every
+     * {@link #SWEEP_MILLIS} by the server. A token taken from a bucket
+     * while dropped is forgotten, which lets its client exceed the limit by
+     * at most one token.
+     *
+     * @since 1.1
+     */
+    void sweep() {
+        long idle = System.nanoTime() - origin
+                - TimeUnit.MILLISECONDS.toNanos(SWEEP_MILLIS);
+        for (Limit limit : limits.values()) {
+            limit.buckets.entrySet().removeIf(
+                    bucket -> bucket.getValue().get() < idle);
+        }
+    }
+
+    /**
+     * Validate a limit.
+     *
+     * @param rate requests per second
+     * @param burst maximum burst
+     * @since 1.1
+     */
+    private static void check(double rate, int burst) {
+        if (!(rate > 0) || burst < 1) {
+            throw new IllegalArgumentException("rate <= 0 or burst < 1");
+        }
+
+        if (TimeUnit.SECONDS.toNanos(1) / rate * burst > MAX_CAPACITY) {
+            throw new IllegalArgumentException("burst / rate > 365 days");
+        }
+    }
+
+    /**
+     * The limit of a route and the buckets of its clients.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Limit {
+
+        /**
+         * Nanoseconds per token, 0 if unlimited.
+         *
+         * @since 1.1
+         */
+        private final long interval;
+
+        /**
+         * Nanoseconds to refill a burst.
+         *
+         * @since 1.1
+         */
+        private final long capacity;
+
+        /**
+         * Time each bucket will be full again, per client.
+         *
+         * @since 1.1
+         */
+        private final Map<String, AtomicLong> buckets
+                = new ConcurrentHashMap<>();
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Limit(double rate, int burst) {
+            interval = Double.isInfinite(rate) ? 0
+                    : Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+            capacity = interval * burst;
+        }
+    }
+}
@@ -0,0 +1,639 @@
+package nn1211.http.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A resumable parser of a HTTP/1.x request head.
+ * <p>
+ * The parser scans the bytes of a connection buffer in write mode, from the
+ * index where the previous call stopped up to the buffer's position, so a
+ * head split across several reads is parsed exactly once. The request must
+ * start at index 0 of the buffer, and the buffer may be grown between two
+ * calls as long as its content is kept at the same indexes. Tokens are
+ * recorded as offsets and only turned into objects when asked for.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class RequestParser {
+
+    /**
+     * Maximum length of a method.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_METHOD = 16;
+
+    /**
+     * Maximum number of header fields.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_HEADERS = 100;
+
+    /**
+     * Well-known methods, returned without allocation.
+     *
+     * @since 1.1
+     */
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE",
+        "HEAD", "OPTIONS", "PATCH", "TRACE", "CONNECT"};
+
+    private static final byte[] HTTP_10 = ascii("HTTP/1.0");
+    private static final byte[] HTTP_11 = ascii("HTTP/1.1");
+    private static final byte[] CONNECTION = ascii("connection");
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+    private static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+    private static final byte[] CHUNKED = ascii("chunked");
+    private static final byte[] CLOSE = ascii("close");
+    private static final byte[] KEEP_ALIVE = ascii("keep-alive");
+
+    private static final int METHOD = 0;
+    private static final int TARGET = 1;
+    private static final int VERSION = 2;
+    private static final int LINE_LF = 3;
+    private static final int HEADER_START = 4;
+    private static final int NAME = 5;
+    private static final int OWS = 6;
+    private static final int VALUE = 7;
+    private static final int HEADER_LF = 8;
+    private static final int END_LF = 9;
+    private static final int DONE = 10;
+    private static final int ERROR = 11;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int state = METHOD;
+
+    /**
+     * Index of the next byte to scan.
+     *
+     * @since 1.1
+     */
+    private int pos = 0;
+
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * Offsets of the header fields, 4 per field: name start, name end,
+     * value start and value end.
+     *
+     * @since 1.1
+     */
+    private int[] fields = new int[32];
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int fieldCount = 0;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private boolean isHttp11;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private boolean isChunked;
+
+    /**
+     * Value of Content-Length or -1 if absent.
+     *
+     * @since 1.1
+     */
+    private long contentLength;
+
+    /**
+     * 1 for Connection: keep-alive, -1 for Connection: close, 0 if absent.
+     *
+     * @since 1.1
+     */
+    private int connection;
+
+    /**
+     * Create a parser ready for a new request.
+     *
+     * @since 1.1
+     */
+    RequestParser() {
+        reset();
+    }
+
+    /**
+     * Continue parsing the bytes received since the last call.
+     *
+     * @param buf the connection buffer in write mode
+     * @return true if the head is complete, false if more bytes are needed
+     * or the head is invalid
+     * @since 1.1
+     */
+    boolean parse(ByteBuffer buf) {
+        int limit = buf.position();
+        while (pos < limit && state < DONE) {
+            step(buf, buf.get(pos), pos);
+            pos++;
+        }
+
+        return DONE == state;
+    }
+
+    /**
+     * Scan a single byte.
+     *
+     * @param buf the connection buffer
+     * @param c the byte
+     * @param i index of the byte
+     * @since 1.1
+     */
+    private void step(ByteBuffer buf, byte c, int i) {
+        switch (state) {
+            case METHOD:
+                if (c == ' ' && i > 0) {
+                    methodEnd = i;
+                    targetStart = i + 1;
+                    state = TARGET;
+                } else if (!isToken(c) || i >= MAX_METHOD) {
+                    state = ERROR;
+                }
+                break;
+            case TARGET:
+                if (c == ' ' && i > targetStart) {
+                    targetEnd = i;
+                    versionStart = i + 1;
+                    state = VERSION;
+                } else if (c <= ' ' || c == 127) {
+                    state = ERROR;
+                }
+                break;
+            case VERSION:
+                if (c == '\r') {
+                    if (equals(buf, versionStart, i, HTTP_11, false)) {
+                        isHttp11 = true;
+                        state = LINE_LF;
+                    } else if (equals(buf, versionStart, i, HTTP_10, false)) {
+                        state = LINE_LF;
+                    } else {
+                        state = ERROR;
+                    }
+                } else if (i - versionStart >= HTTP_11.length) {
+                    state = ERROR;
+                }
+                break;
+            case LINE_LF:
+            case HEADER_LF:
+                state = c == '\n' ? HEADER_START : ERROR;
+                break;
+            case HEADER_START:
+                if (c == '\r') {
+                    state = END_LF;
+                } else if (isToken(c)) {
+                    nameStart = i;
+                    state = NAME;
+                } else {
+                    state = ERROR;
+                }
+                break;
+            case NAME:
+                if (c == ':' && i > nameStart) {
+                    nameEnd = i;
+                    state = OWS;
+                } else if (!isToken(c)) {
+                    state = ERROR;
+                }
+                break;
+            case OWS:
+                if (c == ' ' || c == '\t') {
+                    break;
+                }
+                valueStart = i;
+                valueEnd = i;
+                state = VALUE;
+                // Scan the first byte of the value
+                step(buf, c, i);
+                break;
+            case VALUE:
+                if (c == '\r') {
+                    addField(buf);
+                } else if (c == '\n' || c == 0) {
+                    state = ERROR;
+                } else if (c != ' ' && c != '\t') {
+                    valueEnd = i + 1;
+                }
+                break;
+            case END_LF:
+                // A body framed both ways is refused rather than guessed
+                state = c == '\n' && !(isChunked && -1 != contentLength)
+                        ? DONE : ERROR;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Record the header field just scanned and apply the framing headers.
+     *
+     * @param buf the connection buffer
+     * @since 1.1
+     */
+    private void addField(ByteBuffer buf) {
+        if (fieldCount == MAX_HEADERS) {
+            state = ERROR;
+            return;
+        }
+
+        if (fields.length < (fieldCount + 1) * 4) {
+            int[] grown = new int[fields.length * 2];
+            System.arraycopy(fields, 0, grown, 0, fields.length);
+            fields = grown;
+        }
+
+        int f = fieldCount++ * 4;
+        fields[f] = nameStart;
+        fields[f + 1] = nameEnd;
+        fields[f + 2] = valueStart;
+        fields[f + 3] = valueEnd;
+
+        state = HEADER_LF;
+
+        if (equals(buf, nameStart, nameEnd, CONTENT_LENGTH, true)) {
+            if (-1 != contentLength
+                    || -1 == (contentLength = parseLength(buf))) {
+                state = ERROR;
+            }
+        } else if (equals(buf, nameStart, nameEnd, TRANSFER_ENCODING, true)) {
+            if (!addCodings(buf)) {
+                state = ERROR;
+            }
+        } else if (equals(buf, nameStart, nameEnd, CONNECTION, true)) {
+            if (contains(buf, valueStart, valueEnd, CLOSE)) {
+                connection = -1;
+            } else if (contains(buf, valueStart, valueEnd, KEEP_ALIVE)) {
+                connection = 1;
+            }
+        }
+    }
+
+    /**
+     * Append the codings of the current Transfer-Encoding value to those of
+     * the previous fields. Only a single <code>chunked</code> is supported,
+     * which must then be the final coding.
+     *
+     * @param buf the connection buffer
+     * @return true if valid, false otherwise
+     * @since 1.1
+     */
+    private boolean addCodings(ByteBuffer buf) {
+        boolean hasCoding = false;
+        int start = valueStart;
+        for (int i = valueStart; i <= valueEnd; i++) {
+            if (i < valueEnd && buf.get(i) != ',') {
+                continue;
+            }
+
+            int end = i;
+            while (start < end && isSpace(buf.get(start))) {
+                start++;
+            }
+
+            while (end > start && isSpace(buf.get(end - 1))) {
+                end--;
+            }
+
+            // Empty list elements are allowed
+            if (start < end) {
+                if (isChunked || !equals(buf, start, end, CHUNKED, true)) {
+                    return false;
+                }
+
+                isChunked = true;
+                hasCoding = true;
+            }
+
+            start = i + 1;
+        }
+
+        return hasCoding;
+    }
+
+    /**
+     * Parse the current value as a non-negative decimal length.
+     *
+     * @param buf the connection buffer
+     * @return the length or -1 if invalid
+     * @since 1.1
+     */
+    private long parseLength(ByteBuffer buf) {
+        if (valueStart == valueEnd || valueEnd - valueStart > 18) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = valueStart; i < valueEnd; i++) {
+            byte c = buf.get(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return value;
+    }
+
+    /**
+     * Prepare for the next request of the connection.
+     *
+     * @since 1.1
+     */
+    void reset() {
+        state = METHOD;
+        pos = 0;
+        fieldCount = 0;
+        isHttp11 = false;
+        isChunked = false;
+        contentLength = -1;
+        connection = 0;
+    }
+
+    /**
+     * Drop the parsed head from the connection buffer, keeping the bytes
+     * received after it, and prepare for the next request.
+     *
+     * @param buf the connection buffer in write mode
+     * @since 1.1
+     */
+    void consume(ByteBuffer buf) {
+        buf.flip().position(pos);
+        buf.compact();
+        reset();
+    }
+
+    /**
+     * Determine whether the bytes scanned so far are not a valid head.
+     *
+     * @return true if invalid, false otherwise
+     * @since 1.1
+     */
+    boolean isError() {
+        return ERROR == state;
+    }
+
+    /**
+     * Get the length of the parsed head.
+     *
+     * @return the length of the head, including the final CRLF
+     * @since 1.1
+     */
+    int headLength() {
+        return pos;
+    }
+
+    /**
+     * Get the method of the parsed head.
+     *
+     * @param buf the connection buffer
+     * @return the method
+     * @since 1.1
+     */
+    String method(ByteBuffer buf) {
+        for (String m : METHODS) {
+            if (equals(buf, 0, methodEnd, m, false)) {
+                return m;
+            }
+        }
+
+        return string(buf, 0, methodEnd);
+    }
+
+    /**
+     * Get the request target of the parsed head.
+     *
+     * @param buf the connection buffer
+     * @return the request target
+     * @since 1.1
+     */
+    String target(ByteBuffer buf) {
+        return string(buf, targetStart, targetEnd);
+    }
+
+    /**
+     * Determine whether the request is HTTP/1.1.
+     *
+     * @return true if HTTP/1.1, false if HTTP/1.0
+     * @since 1.1
+     */
+    boolean isHttp11() {
+        return isHttp11;
+    }
+
+    /**
+     * Determine whether the request body uses chunked transfer encoding.
+     *
+     * @return true if chunked, false otherwise
+     * @since 1.1
+     */
+    boolean isChunked() {
+        return isChunked;
+    }
+
+    /**
+     * Get the value of Content-Length.
+     *
+     * @return the value of Content-Length or -1 if absent
+     * @since 1.1
+     */
+    long contentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Determine whether the client allows the connection to stay open.
+     *
+     * @return true if the connection may be reused, false otherwise
+     * @since 1.1
+     */
+    boolean keepAlive() {
+        return 0 == connection ? isHttp11 : 1 == connection;
+    }
+
+    /**
+     * Get the number of parsed header fields.
+     *
+     * @return the number of parsed header fields
+     * @since 1.1
+     */
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Get the offsets of the parsed header fields, 4 per field: name start,
+     * name end, value start and value end.
+     *
+     * @return the offsets of the parsed header fields
+     * @since 1.1
+     */
+    int[] fields() {
+        return fields;
+    }
+
+    /**
+     * Decode a range of a buffer as ISO-8859-1.
+     *
+     * @param buf a buffer
+     * @param start start index
+     * @param end end index
+     * @return a string
+     * @since 1.1
+     */
+    static String string(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compare a range of a buffer with ASCII bytes.
+     *
+     * @param buf a buffer
+     * @param start start index
+     * @param end end index
+     * @param lower ASCII bytes, in lower case if ignoreCase
+     * @param ignoreCase true to ignore ASCII case
+     * @return true if equal, false otherwise
+     * @since 1.1
+     */
+    static boolean equals(ByteBuffer buf, int start, int end, byte[] lower,
+            boolean ignoreCase) {
+
+        if (end - start != lower.length) {
+            return false;
+        }
+
+        for (int i = 0; i < lower.length; i++) {
+            byte c = buf.get(start + i);
+            if (ignoreCase && c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+
+            if (c != lower[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compare a range of a buffer with a string.
+     *
+     * @param buf a buffer
+     * @param start start index
+     * @param end end index
+     * @param value an ASCII string
+     * @param ignoreCase true to ignore ASCII case
+     * @return true if equal, false otherwise
+     * @since 1.1
+     */
+    static boolean equals(ByteBuffer buf, int start, int end, String value,
+            boolean ignoreCase) {
+
+        if (end - start != value.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char a = (char) (buf.get(start + i) & 0xff);
+            char b = value.charAt(i);
+            if (a != b && (!ignoreCase
+                    || Character.toLowerCase(a) != Character.toLowerCase(b))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Search a range of a buffer for lower case ASCII bytes ignoring case.
+     *
+     * @param buf a buffer
+     * @param start start index
+     * @param end end index
+     * @param lower lower case ASCII bytes
+     * @return true if found, false otherwise
+     * @since 1.1
+     */
+    static boolean contains(ByteBuffer buf, int start, int end, byte[] lower) {
+        for (int i = start; i <= end - lower.length; i++) {
+            if (equals(buf, i, i + lower.length, lower, true)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determine whether a byte is optional whitespace.
+     *
+     * @param c a byte
+     * @return true if a space or a tab, false otherwise
+     * @since 1.1
+     */
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Determine whether a byte is a token character of RFC 7230.
+     *
+     * @param c a byte
+     * @return true if a token character, false otherwise
+     * @since 1.1
+     */
+    private static boolean isToken(byte c) {
+        if (c <= ' ' || c >= 127) {
+            return false;
+        }
+
+        switch (c) {
+            case '(': case ')': case ',': case '/': case ':': case ';':
+            case '<': case '=': case '>': case '?': case '@': case '[':
+            case '\\': case ']': case '{': case '}': case '"':
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Encode an ASCII string.
+     *
+     * @param value an ASCII string
+     * @return ASCII bytes
+     * @since 1.1
+     */
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
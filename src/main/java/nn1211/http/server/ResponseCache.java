@@ -0,0 +1,532 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import nn1211.http.Content;
+import nn1211.http.Content.FileContent;
+import static nn1211.http.HttpHeader.*;
+
+/**
+ * A cache of the responses of handlers, evicting the least recently used
+ * ones.
+ * <p>
+ * Caching is enabled per route by wrapping its handler:
+ * </p>
+ * <pre>
+ * ResponseCache cache = new ResponseCache().maxBytes(32 &lt;&lt; 20);
+ * server.registerHandler("GET /catalog", cache.cached(catalogHandler));
+ * </pre>
+ * <p>
+ * A <code>GET</code> or <code>HEAD</code> request without credentials is
+ * answered from the cache while the entry of its method, path and query
+ * is fresh, without running the handler. Only 200 responses whose body is
+ * held in memory are stored, unless their Cache-Control forbids it, so a
+ * handler must only depend on the method, path and query of its requests.
+ * </p>
+ * <p>
+ * A stored response gets an ETag computed from its body and a
+ * Last-Modified of the time it was stored, unless its handler set them.
+ * A request whose If-None-Match, or else If-Modified-Since, shows that
+ * the client holds the same body is answered with a 304 response.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class ResponseCache {
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final DateTimeFormatter HTTP_DATE
+            = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    /**
+     * Headers a 304 response repeats from the response it stands for.
+     *
+     * @since 1.1
+     */
+    private static final String[] VALIDATED = {CACHE_CONTROL, VARY};
+
+    /**
+     * Entries by request key, in access order.
+     *
+     * @since 1.1
+     */
+    private final LinkedHashMap<String, Entry> entries
+            = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total body size of the entries, guarded by {@link #entries}.
+     *
+     * @since 1.1
+     */
+    private long bytes = 0;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private int maxEntries = 1024;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private long maxBytes = 16L << 20;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private long ttl = 60000;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    /**
+     * Set the maximum number of entries.
+     * <p>
+     * <i>Default value is 1024</i>
+     * </p>
+     *
+     * @param value the maximum number of entries
+     * @return this
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public ResponseCache maxEntries(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("maxEntries < 1");
+        }
+
+        maxEntries = value;
+        return this;
+    }
+
+    /**
+     * Set the maximum total size of the cached bodies. A larger body is
+     * never cached.
+     * <p>
+     * <i>Default value is 16 MiB</i>
+     * </p>
+     *
+     * @param value the maximum size in bytes
+     * @return this
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public ResponseCache maxBytes(long value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("maxBytes < 1");
+        }
+
+        maxBytes = value;
+        return this;
+    }
+
+    /**
+     * Set how long a response is served from the cache before its handler
+     * runs again.
+     * <p>
+     * <i>Default value is 60000 milliseconds</i>
+     * </p>
+     *
+     * @param value the time to live in milliseconds
+     * @return this
+     * @throws IllegalArgumentException if value is less than 1
+     * @since 1.1
+     */
+    public ResponseCache ttl(long value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("ttl < 1");
+        }
+
+        ttl = value;
+        return this;
+    }
+
+    /**
+     * Wrap the handler of a route so that its responses are cached.
+     *
+     * @param handler a handler
+     * @return a caching handler
+     * @since 1.1
+     */
+    public Handler cached(Handler handler) {
+        return req -> serve(req, handler);
+    }
+
+    /**
+     * Remove all entries.
+     *
+     * @since 1.1
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries
+     * @since 1.1
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the number of requests answered from the cache, including 304
+     * responses.
+     *
+     * @return the number of hits
+     * @since 1.1
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of cacheable requests that ran their handler.
+     *
+     * @return the number of misses
+     * @since 1.1
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of 304 responses.
+     *
+     * @return the number of 304 responses
+     * @since 1.1
+     */
+    public long notModified() {
+        return notModified.sum();
+    }
+
+    /**
+     * Answer a request from the cache, or run its handler and cache the
+     * response.
+     *
+     * @param req a request
+     * @param handler the route's handler
+     * @return the response
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private ServerResponse serve(ServerRequest req, Handler handler)
+            throws IOException {
+
+        String method = req.method();
+        if (!("GET".equals(method) || "HEAD".equals(method))
+                || null != req.header(AUTHORIZATION)) {
+            return handler.handle(req);
+        }
+
+        String key = method + ' ' + (null == req.query() ? req.uri()
+                : req.uri() + '?' + req.query());
+        long now = System.currentTimeMillis();
+
+        Entry entry = get(key, now);
+        if (null != entry) {
+            hits.increment();
+        } else {
+            misses.increment();
+            ServerResponse resp = handler.handle(req);
+            entry = put(key, resp, now);
+            if (null == entry) {
+                return resp;
+            }
+        }
+
+        ServerResponse resp = entry.respond(req, now);
+        if (ServerResponse.StatusCode.NOT_MODIFIED == resp.statusCode()) {
+            notModified.increment();
+        }
+
+        return resp;
+    }
+
+    /**
+     * Get a fresh entry.
+     *
+     * @param key a request key
+     * @param now the current time
+     * @return the entry or null if missing or expired
+     * @since 1.1
+     */
+    private Entry get(String key, long now) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (null != entry && entry.expires <= now) {
+                entries.remove(key);
+                bytes -= entry.size;
+                return null;
+            }
+
+            return entry;
+        }
+    }
+
+    /**
+     * Store a response if cacheable, evicting the least recently used
+     * entries beyond the bounds.
+     *
+     * @param key a request key
+     * @param resp the response of the handler
+     * @param now the current time
+     * @return the new entry, or null if not cacheable
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private Entry put(String key, ServerResponse resp, long now)
+            throws IOException {
+
+        Content body = resp.body();
+        if (!ServerResponse.StatusCode.OK.equals(
+                resp.statusCode().asInt()) || null != resp.writer()
+                || null == body || body instanceof FileContent
+                || body.size() > maxBytes) {
+            return null;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        boolean[] isPrivate = {false};
+        resp.forEachHeader((k, v) -> {
+            if (CACHE_CONTROL.equalsIgnoreCase(k)) {
+                String directives = v.toLowerCase();
+                isPrivate[0] = directives.contains("no-store")
+                        || directives.contains("private");
+            }
+
+            if (!CONTENT_LENGTH.equalsIgnoreCase(k)) {
+                headers.put(k, v);
+            }
+        });
+
+        if (isPrivate[0]) {
+            return null;
+        }
+
+        Entry entry = new Entry(body, headers, now, now + ttl);
+        synchronized (entries) {
+            Entry old = entries.put(key, entry);
+            if (null != old) {
+                bytes -= old.size;
+            }
+
+            bytes += entry.size;
+            Iterator<Entry> it = entries.values().iterator();
+            while (entries.size() > maxEntries || bytes > maxBytes) {
+                bytes -= it.next().size;
+                it.remove();
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Find the entity tag of an If-None-Match header matching an entity
+     * tag, comparing them weakly.
+     *
+     * @param header the header's value
+     * @param etag an entity tag
+     * @return the matching entity tag of the header, or null if none
+     * @since 1.1
+     */
+    static String match(String header, String etag) {
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag)) {
+                return etag;
+            }
+
+            if (opaque.equals(tag.startsWith("W/") ? tag.substring(2) : tag)) {
+                return tag;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Compute a strong entity tag from bytes with 64-bit FNV-1a.
+     *
+     * @param data bytes
+     * @return a quoted entity tag
+     * @since 1.1
+     */
+    static String etag(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+
+        return "\"" + Long.toHexString(hash) + "\"";
+    }
+
+    /**
+     * Parse a HTTP date.
+     *
+     * @param value a date such as <code>Sun, 06 Nov 1994 08:49:37 GMT</code>
+     * @return the time in milliseconds, or -1 if value is null or invalid
+     * @since 1.1
+     */
+    private static long parseDate(String value) {
+        if (null == value) {
+            return -1;
+        }
+
+        try {
+            return Instant.from(HTTP_DATE.parse(value.trim())).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * A cached response.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Entry {
+
+        private final Content body;
+        private final Map<String, String> headers;
+        private final long size;
+        private final long expires;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final String etag;
+
+        /**
+         * Time of the last modification in milliseconds, or -1 if unknown.
+         *
+         * @since 1.1
+         */
+        private final long lastModified;
+
+        /**
+         * The stored response, which the 304 responses stand for.
+         *
+         * @since 1.1
+         */
+        private final ServerResponse stored;
+
+        /**
+         * Create an entry, setting ETag and Last-Modified if missing.
+         *
+         * @param body the response's body
+         * @param headers the response's headers but Content-Length
+         * @param now the current time
+         * @param expires the time this entry expires at
+         * @since 1.1
+         */
+        private Entry(Content body, Map<String, String> headers, long now,
+                long expires) {
+
+            this.body = body;
+            this.headers = headers;
+            this.expires = expires;
+            size = body.size();
+
+            String tag = null;
+            String modified = null;
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (ETAG.equalsIgnoreCase(header.getKey())) {
+                    tag = header.getValue();
+                } else if (LAST_MODIFIED.equalsIgnoreCase(header.getKey())) {
+                    modified = header.getValue();
+                }
+            }
+
+            if (null == tag) {
+                tag = etag(body.toBytes());
+                headers.put(ETAG, tag);
+            }
+
+            if (null == modified) {
+                modified = HTTP_DATE.format(Instant.ofEpochMilli(now));
+                headers.put(LAST_MODIFIED, modified);
+            }
+
+            etag = tag;
+            lastModified = parseDate(modified);
+
+            stored = new ServerResponse.DefaultResponse(
+                    ServerResponse.StatusCode.OK, body);
+            headers.forEach(stored::header);
+        }
+
+        /**
+         * Answer a request, with a 304 response if its conditions show
+         * that the client holds this body.
+         *
+         * @param req a GET or HEAD request
+         * @param now the current time
+         * @return a response
+         * @since 1.1
+         */
+        private ServerResponse respond(ServerRequest req, long now) {
+            String matched = null;
+            boolean isNotModified;
+
+            String ifNoneMatch = req.header(IF_NONE_MATCH);
+            if (null != ifNoneMatch) {
+                matched = match(ifNoneMatch, etag);
+                isNotModified = null != matched;
+            } else {
+                // Dates have a precision of one second, and one in the
+                // future is invalid
+                long since = parseDate(req.header(IF_MODIFIED_SINCE));
+                isNotModified = -1 != since && since <= now
+                        && -1 != lastModified
+                        && lastModified / 1000 <= since / 1000;
+            }
+
+            ServerResponse resp;
+            if (isNotModified) {
+                // The client's tag, weak if it got a compressed body
+                resp = new ServerResponse.DefaultResponse(stored)
+                        .header(ETAG, null == matched ? etag : matched);
+                for (String name : VALIDATED) {
+                    headers.forEach((k, v) -> {
+                        if (name.equalsIgnoreCase(k)) {
+                            resp.header(k, v);
+                        }
+                    });
+                }
+            } else {
+                resp = new ServerResponse.DefaultResponse(
+                        ServerResponse.StatusCode.OK, body);
+                headers.forEach(resp::header);
+            }
+
+            return resp;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import nn1211.http.Content;
+import nn1211.http.Content.FileContent;
+import nn1211.http.HttpHeader;
+
+/**
+ * An encoder of responses into buffers ready for a gathering write.
+ * <p>
+ * Status lines and header names are encoded once and reused. The head is
+ * encoded into an exactly sized array, without an intermediate
+ * {@link StringBuilder} or {@link String}, and a small body is copied after
+ * it so that head and body leave in a single segment. A mapped file is
+ * written from its mapping.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class ResponseEncoder {
+
+    /**
+     * Bodies up to this size are coalesced with the head.
+     *
+     * @since 1.1
+     */
+    static final int COALESCE_LIMIT = 4096;
+
+    /**
+     * Maximum number of cached header names.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_NAMES = 256;
+
+    /**
+     * Encoded header names, each followed by ": ".
+     *
+     * @since 1.1
+     */
+    private static final Map<String, byte[]> NAMES = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private ResponseEncoder() {
+    }
+
+    /**
+     * Encode a response with a {@link Content} body, or only the head of a
+     * streaming response or of a file that is not mapped.
+     *
+     * @param resp a response
+     * @return buffers ready to be written in order
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    static ByteBuffer[] encode(ServerResponse resp) throws IOException {
+        Content body = null == resp.writer() ? resp.body() : null;
+        if (body instanceof FileContent) {
+            ByteBuffer head = ByteBuffer.wrap(head(resp, 0));
+            ByteBuffer mapped = ((FileContent) body).buffer();
+            return null == mapped ? new ByteBuffer[]{head}
+                    : new ByteBuffer[]{head, mapped};
+        }
+
+        byte[] data = null == body ? null : body.toBytes();
+
+        if (null == data || data.length > COALESCE_LIMIT) {
+            ByteBuffer head = ByteBuffer.wrap(head(resp, 0));
+            return null == data ? new ByteBuffer[]{head}
+                    : new ByteBuffer[]{head, ByteBuffer.wrap(data)};
+        }
+
+        byte[] head = head(resp, data.length);
+        System.arraycopy(data, 0, head, head.length - data.length,
+                data.length);
+
+        return new ByteBuffer[]{ByteBuffer.wrap(head)};
+    }
+
+    /**
+     * Strip the body of the response to a HEAD request. Its status and
+     * headers stay those of a GET, including the Content-Length of the
+     * body, or the chunked Transfer-Encoding of a streamed one.
+     *
+     * @param resp the response
+     * @param isHttp11 true if the client supports chunked encoding
+     * @return a response without body
+     * @since 1.1
+     */
+    static ServerResponse withoutBody(ServerResponse resp, boolean isHttp11) {
+        ServerResponse head = new ServerResponse.DefaultResponse(
+                resp.statusCode());
+        resp.forEachHeader(head::header);
+        if (null != resp.writer() && isHttp11) {
+            head.header(HttpHeader.TRANSFER_ENCODING, HttpServer.CHUNKED);
+        }
+
+        return head;
+    }
+
+    /**
+     * Get the file content left out by {@link #encode}, which must be sent
+     * with {@link FileContent#transferTo}.
+     *
+     * @param resp a response
+     * @return a file content that is not mapped, or null
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    static FileContent transfer(ServerResponse resp) throws IOException {
+        Content body = null == resp.writer() ? resp.body() : null;
+        return body instanceof FileContent
+                && null == ((FileContent) body).buffer()
+                ? (FileContent) body : null;
+    }
+
+    /**
+     * Encode the status line and the headers of a response.
+     *
+     * @param resp a response
+     * @param extra number of bytes to reserve after the head
+     * @return the encoded head followed by extra unused bytes
+     * @since 1.1
+     */
+    static byte[] head(ServerResponse resp, int extra) {
+        byte[] status = resp.statusCode().statusLine();
+
+        int[] length = {status.length + 2};
+        resp.forEachHeader((k, v) -> length[0] += name(k).length
+                + v.length() + 2);
+
+        byte[] head = new byte[length[0] + extra];
+        System.arraycopy(status, 0, head, 0, status.length);
+
+        int[] pos = {status.length};
+        resp.forEachHeader((k, v) -> {
+            byte[] name = name(k);
+            System.arraycopy(name, 0, head, pos[0], name.length);
+            pos[0] += name.length;
+
+            for (int i = 0; i < v.length(); i++) {
+                head[pos[0]++] = (byte) v.charAt(i);
+            }
+
+            head[pos[0]++] = '\r';
+            head[pos[0]++] = '\n';
+        });
+
+        head[pos[0]++] = '\r';
+        head[pos[0]] = '\n';
+
+        return head;
+    }
+
+    /**
+     * Get the encoded form of a header name.
+     *
+     * @param name a header name
+     * @return the name followed by ": "
+     * @since 1.1
+     */
+    private static byte[] name(String name) {
+        byte[] bytes = NAMES.get(name);
+        if (null == bytes) {
+            bytes = (name + ": ").getBytes(StandardCharsets.ISO_8859_1);
+            if (NAMES.size() < MAX_NAMES) {
+                NAMES.put(name, bytes);
+            }
+        }
+
+        return bytes;
+    }
+}
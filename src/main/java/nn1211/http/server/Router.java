@@ -0,0 +1,488 @@
+package nn1211.http.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A router of request paths, with one segment trie per HTTP method.
+ * <p>
+ * A route pattern is a path whose segments are either literal, a named
+ * parameter such as <code>{id}</code>, or a trailing <code>*</code> matching
+ * the rest of the path, available as the parameter <code>*</code>. At each
+ * segment, literal children are searched by binary search directly against
+ * the request path, then the parameter child, then the wildcard, so the
+ * cost of a lookup depends on the depth of the path rather than on the
+ * number of routes. Lookups do not allocate unless the matched route has
+ * parameters.
+ * </p>
+ * <p>
+ * Routes are added before the server starts, which publishes the tree to
+ * its threads; lookups then read it without locking.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class Router {
+
+    /**
+     * The wildcard segment and its parameter's name.
+     *
+     * @since 1.1
+     */
+    static final String WILDCARD = "*";
+
+    /**
+     * Maximum number of parameters of a route.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_PARAMS = 16;
+
+    /**
+     * Scratch offsets of the parameters of the current lookup.
+     *
+     * @since 1.1
+     */
+    private static final ThreadLocal<int[]> SCRATCH
+            = ThreadLocal.withInitial(() -> new int[MAX_PARAMS * 2]);
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final Map<String, Node> roots = new HashMap<>();
+
+    /**
+     * Add a route.
+     *
+     * @param method the request method
+     * @param pattern the path pattern, starting with '/'
+     * @param route the route's payload
+     * @throws IllegalArgumentException if the pattern is invalid
+     * @since 1.1
+     */
+    synchronized void add(String method, String pattern, Route route) {
+        if (pattern.isEmpty() || pattern.charAt(0) != '/') {
+            throw new IllegalArgumentException("Invalid pattern: " + pattern);
+        }
+
+        // Validated before any node is inserted
+        String[] segments = pattern.substring(1).split("/", -1);
+        String[] names = new String[0];
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (WILDCARD.equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException(
+                            "Wildcard must be the last segment: " + pattern);
+                }
+
+                names = append(names, WILDCARD);
+            } else if (isParam(segment)) {
+                names = append(names, segment.substring(1,
+                        segment.length() - 1));
+            }
+        }
+
+        if (names.length > MAX_PARAMS) {
+            throw new IllegalArgumentException("Too many parameters: "
+                    + pattern);
+        }
+
+        Node node = roots.computeIfAbsent(method, m -> new Node(""));
+        for (String segment : segments) {
+            if (WILDCARD.equals(segment)) {
+                if (null == node.wildcard) {
+                    node.wildcard = new Node(WILDCARD);
+                }
+
+                node = node.wildcard;
+            } else if (isParam(segment)) {
+                if (null == node.param) {
+                    node.param = new Node(segment);
+                }
+
+                node = node.param;
+            } else {
+                node = node.child(segment);
+            }
+        }
+
+        route.name = method + " " + pattern;
+        route.paramNames = names;
+        node.route = route;
+    }
+
+    /**
+     * Find the route of a request and bind its path parameters.
+     *
+     * @param req a request
+     * @return the route or null if none matches
+     * @since 1.1
+     */
+    Route find(ServerRequest req) {
+        Node root = roots.get(req.method());
+        String path = req.uri();
+        if (null == root || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+
+        int[] offsets = SCRATCH.get();
+        Node node = match(root, path, 1, offsets, 0);
+        if (null == node) {
+            return null;
+        }
+
+        Route route = node.route;
+        if (route.paramNames.length > 0) {
+            req.pathParams(route.paramNames,
+                    Arrays.copyOf(offsets, route.paramNames.length * 2));
+        }
+
+        return route;
+    }
+
+    /**
+     * Find the methods whose routes match the path of a request, for a
+     * request without a route of its own.
+     *
+     * @param req a request
+     * @return the methods separated by ", ", or null if none
+     * @since 1.1
+     */
+    String allowed(ServerRequest req) {
+        String path = req.uri();
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+
+        int[] offsets = SCRATCH.get();
+        List<String> methods = new ArrayList<>();
+        roots.forEach((method, root) -> {
+            if (null != match(root, path, 1, offsets, 0)) {
+                methods.add(method);
+            }
+        });
+
+        if (methods.isEmpty()) {
+            return null;
+        }
+
+        Collections.sort(methods);
+        return String.join(", ", methods);
+    }
+
+    /**
+     * Match the rest of a path against a node's children.
+     *
+     * @param node the node of the previous segment
+     * @param path the request path
+     * @param start start index of the next segment
+     * @param offsets parameters' offsets, 2 per parameter
+     * @param count number of parameters bound so far
+     * @return the matched node or null
+     * @since 1.1
+     */
+    private static Node match(Node node, String path, int start,
+            int[] offsets, int count) {
+
+        if (start > path.length()) {
+            return null != node.route ? node : null;
+        }
+
+        int end = path.indexOf('/', start);
+        if (-1 == end) {
+            end = path.length();
+        }
+
+        Node child = node.find(path, start, end);
+        if (null != child) {
+            Node found = match(child, path, end + 1, offsets, count);
+            if (null != found) {
+                return found;
+            }
+        }
+
+        if (null != node.param && end > start && count < MAX_PARAMS) {
+            offsets[count * 2] = start;
+            offsets[count * 2 + 1] = end;
+            Node found = match(node.param, path, end + 1, offsets, count + 1);
+            if (null != found) {
+                return found;
+            }
+        }
+
+        if (null != node.wildcard && null != node.wildcard.route
+                && count < MAX_PARAMS) {
+            offsets[count * 2] = start;
+            offsets[count * 2 + 1] = path.length();
+            return node.wildcard;
+        }
+
+        return null;
+    }
+
+    /**
+     * Determine whether a pattern segment is a named parameter.
+     *
+     * @param segment a pattern segment
+     * @return true if a parameter such as <code>{id}</code>
+     * @since 1.1
+     */
+    private static boolean isParam(String segment) {
+        return segment.startsWith("{") && segment.endsWith("}");
+    }
+
+    /**
+     * Append a name to an array.
+     *
+     * @param names an array
+     * @param name a name
+     * @return a new array
+     * @since 1.1
+     */
+    private static String[] append(String[] names, String name) {
+        String[] result = Arrays.copyOf(names, names.length + 1);
+        result[names.length] = name;
+        return result;
+    }
+
+    /**
+     * A route found by a {@link Router}.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static class Route {
+
+        /**
+         * The route's method and pattern.
+         *
+         * @since 1.1
+         */
+        private String name;
+
+        /**
+         * The names of the route's parameters, in path order.
+         *
+         * @since 1.1
+         */
+        private String[] paramNames;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Handler handler;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final AsyncHandler asyncHandler;
+
+        /**
+         * Create a route to a handler.
+         *
+         * @param handler a handler
+         * @since 1.1
+         */
+        Route(Handler handler) {
+            this.handler = handler;
+            asyncHandler = null;
+        }
+
+        /**
+         * Create a route to an asynchronous handler.
+         *
+         * @param handler an asynchronous handler
+         * @since 1.1
+         */
+        Route(AsyncHandler handler) {
+            this.handler = null;
+            asyncHandler = handler;
+        }
+
+        /**
+         * Get the handler of this route.
+         *
+         * @return the handler of this route, or null if asynchronous
+         * @since 1.1
+         */
+        Handler handler() {
+            return handler;
+        }
+
+        /**
+         * Get the asynchronous handler of this route.
+         *
+         * @return the asynchronous handler of this route, or null
+         * @since 1.1
+         */
+        AsyncHandler asyncHandler() {
+            return asyncHandler;
+        }
+
+        /**
+         * Get the method and pattern of this route.
+         *
+         * @return the method and pattern, such as
+         * <code>GET /users/{id}</code>
+         * @since 1.1
+         */
+        String name() {
+            return name;
+        }
+    }
+
+    /**
+     * A segment of a route pattern.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Node {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private static final Node[] NONE = new Node[0];
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final String segment;
+
+        /**
+         * Literal children, sorted by segment.
+         *
+         * @since 1.1
+         */
+        private Node[] children = NONE;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Node param;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Node wildcard;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Route route;
+
+        /**
+         * Create a node for a segment.
+         *
+         * @param segment a segment
+         * @since 1.1
+         */
+        private Node(String segment) {
+            this.segment = segment;
+        }
+
+        /**
+         * Get or create the literal child of a segment.
+         *
+         * @param value a literal segment
+         * @return the child
+         * @since 1.1
+         */
+        private Node child(String value) {
+            int i = search(value, 0, value.length());
+            if (i >= 0) {
+                return children[i];
+            }
+
+            int at = -i - 1;
+            Node child = new Node(value);
+            Node[] grown = new Node[children.length + 1];
+            System.arraycopy(children, 0, grown, 0, at);
+            grown[at] = child;
+            System.arraycopy(children, at, grown, at + 1,
+                    children.length - at);
+            children = grown;
+            return child;
+        }
+
+        /**
+         * Find the literal child of a segment of a path.
+         *
+         * @param path a path
+         * @param start start index of the segment
+         * @param end end index of the segment
+         * @return the child or null
+         * @since 1.1
+         */
+        private Node find(String path, int start, int end) {
+            int i = search(path, start, end);
+            return i >= 0 ? children[i] : null;
+        }
+
+        /**
+         * Binary search the literal children.
+         *
+         * @param path a path
+         * @param start start index of the segment
+         * @param end end index of the segment
+         * @return the index of the child, or (-(insertion point) - 1)
+         * @since 1.1
+         */
+        private int search(String path, int start, int end) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(children[mid].segment, path, start, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(low + 1);
+        }
+
+        /**
+         * Compare a segment with a region of a path.
+         *
+         * @param segment a segment
+         * @param path a path
+         * @param start start index of the region
+         * @param end end index of the region
+         * @return a negative integer, zero, or a positive integer as the
+         * segment is less than, equal to, or greater than the region
+         * @since 1.1
+         */
+        private static int compare(String segment, String path, int start,
+                int end) {
+
+            int length = Math.min(segment.length(), end - start);
+            for (int i = 0; i < length; i++) {
+                int cmp = segment.charAt(i) - path.charAt(start + i);
+                if (0 != cmp) {
+                    return cmp;
+                }
+            }
+
+            return segment.length() - (end - start);
+        }
+    }
+}
@@ -1,15 +1,17 @@
 package nn1211.http.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import nn1211.http.Content;
-import nn1211.http.HttpMethod;
 import nn1211.http.QueryString;
-import nn1211.io.InStream;
 import nn1211.io.URICoder;
+import static nn1211.http.HttpHeader.*;
 
 /**
  * A HTTP request at server side.
@@ -20,24 +22,146 @@ import nn1211.io.URICoder;
 public abstract class ServerRequest {
 
     /**
-     * Return a {@link ServerRequest} wrapper for a {@link Socket}.
+     * Return a {@link ServerRequest} read from a {@link Socket}.
      *
      * @param socket connection
-     * @return a {@link ServerRequest} wrapper for a {@link Socket}.
+     * @return a {@link ServerRequest} read from a {@link Socket}, whose
+     * method and URI are null in the case the request is invalid
      * @throws java.io.IOException I/O exception
      * @since 1.0
      */
     public static ServerRequest from(Socket socket) throws IOException {
-        return SocketRequest.wrap(socket);
+        String clientIP = socket.getInetAddress().toString();
+        InputStream in = socket.getInputStream();
+        RequestParser parser = new RequestParser();
+        ByteBuffer buf = ByteBuffer.allocate(HttpServer.MAX_HEAD);
+
+        while (!parser.parse(buf)) {
+            if (parser.isError() || !buf.hasRemaining()) {
+                return new BufferRequest(clientIP);
+            }
+
+            if (fill(in, buf) < 0) {
+                return new BufferRequest(clientIP);
+            }
+        }
+
+        BufferRequest req = from(clientIP, buf, parser, new HeaderTable());
+        parser.consume(buf);
+        req.openBody(buf, b -> fill(in, b), HttpServer.MAX_BODY);
+        return req;
+    }
+
+    /**
+     * Read bytes from an input stream into a heap buffer.
+     *
+     * @param in an input stream
+     * @param buf a heap buffer in write mode
+     * @return the number of bytes read, or -1 at end of stream
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    static int fill(InputStream in, ByteBuffer buf) throws IOException {
+        int read = in.read(buf.array(), buf.arrayOffset() + buf.position(),
+                buf.remaining());
+        if (read > 0) {
+            buf.position(buf.position() + read);
+        }
+
+        return read;
+    }
+
+    /**
+     * Return a {@link ServerRequest} from a parsed request head.
+     *
+     * @param clientIP the client's IP
+     * @param buf the connection buffer holding the request head
+     * @param parser a parser whose head is complete
+     * @param headers the connection's header table, loaded with the
+     * request's header fields
+     * @return a {@link ServerRequest} without body, see
+     * {@link BufferRequest#openBody}
+     * @since 1.1
+     */
+    static BufferRequest from(String clientIP, ByteBuffer buf,
+            RequestParser parser, HeaderTable headers) {
+
+        headers.load(buf, parser);
+
+        BufferRequest req = new BufferRequest(clientIP);
+        req.headers = headers;
+        req.method = parser.method(buf);
+        req.keepAlive = parser.keepAlive();
+        req.isHttp11 = parser.isHttp11();
+        req.isChunked = parser.isChunked();
+        req.contentLength = parser.contentLength();
+
+        String target = parser.target(buf);
+        int qi = target.indexOf(QueryString.QUERY_CHAR);
+        if (-1 == qi) {
+            req.uri = target;
+        } else {
+            req.uri = target.substring(0, qi);
+            req.query = target.substring(qi + 1);
+        }
+
+        return req;
+    }
+
+    /**
+     * Parse a query string into parameters.
+     *
+     * @param query a query string
+     * @param params parameters' holder
+     * @since 1.1
+     */
+    static void parseQuery(String query, Map<String, String> params) {
+        String[] fields = query.split(QueryString.FIELD_SEPARATOR);
+        for (String field : fields) {
+            String[] parts = field.split(QueryString.NAME_VALUE_SEPARATOR);
+            if (parts.length == 2) {
+                params.put(parts[0], URICoder.decode(parts[1]));
+            }
+        }
     }
 
     /**
-     * Get the body of this request.
+     * Get the body of this request, read fully into memory.
+     * <p>
+     * The body is limited to the server's maximum body size.
+     * </p>
      *
-     * @return the body of this request.
+     * @return the body of this request or null if there is no body
+     * @throws IOException I/O exception
+     * @throws BodyTooLargeException if the body is too large, answered with
+     * a 413 response when thrown by a handler
      * @since 1.0
      */
-    public abstract Content body();
+    public abstract Content body() throws IOException;
+
+    /**
+     * Get the body of this request, read fully into memory.
+     *
+     * @param maxSize maximum size of the body in bytes
+     * @return the body of this request or null if there is no body
+     * @throws IOException I/O exception
+     * @throws BodyTooLargeException if the body is larger than maxSize
+     * @since 1.1
+     */
+    public abstract Content body(int maxSize) throws IOException;
+
+    /**
+     * Get the body of this request as a stream, read lazily from the
+     * connection.
+     * <p>
+     * The stream must be read before the response is returned. Unread bytes
+     * are discarded by the server.
+     * </p>
+     *
+     * @return the body of this request, empty if there is no body
+     * @since 1.1
+     */
+    public abstract InputStream bodyStream();
 
     /**
      * Get the client's IP.
@@ -49,9 +173,13 @@ public abstract class ServerRequest {
 
     /**
      * Get the value of a HTTP header.
+     * <p>
+     * Names are compared ignoring case. Header values are only valid until
+     * the response to this request is sent.
+     * </p>
      *
      * @param name a header's name
-     * @return the value of a HTTP header
+     * @return the value of a HTTP header or null if absent
      * @since 1.0
      */
     public abstract String header(String name);
@@ -66,6 +194,10 @@ public abstract class ServerRequest {
 
     /**
      * Get the value of a parameter.
+     * <p>
+     * Path parameters of the matched route, as sent by the client, take
+     * precedence over query parameters.
+     * </p>
      *
      * @param name parameter's name
      * @return found value or null
@@ -81,6 +213,72 @@ public abstract class ServerRequest {
      */
     public abstract String uri();
 
+    /**
+     * Bind the path parameters of the matched route.
+     *
+     * @param names the parameters' names
+     * @param offsets the parameters' offsets in the URI, 2 per parameter
+     * @since 1.1
+     */
+    void pathParams(String[] names, int[] offsets) {
+    }
+
+    /**
+     * Get the query string.
+     * <p>
+     * <i>Default value is null</i>
+     * </p>
+     *
+     * @return the part of the request target after '?', or null if none
+     * @since 1.1
+     */
+    String query() {
+        return null;
+    }
+
+    /**
+     * Get the time this request arrived, to measure how long it waited for
+     * a worker.
+     * <p>
+     * <i>Default value is -1, unknown</i>
+     * </p>
+     *
+     * @return the value of {@link System#nanoTime()} when this request
+     * arrived, or -1 if unknown
+     * @since 1.1
+     */
+    long received() {
+        return -1;
+    }
+
+    /**
+     * Get the length of the body.
+     * <p>
+     * <i>Default value is 0</i>
+     * </p>
+     *
+     * @return the Content-Length, or the number of bytes read so far from a
+     * chunked body
+     * @since 1.1
+     */
+    long bodySize() {
+        return 0;
+    }
+
+    /**
+     * Determine whether the client allows the connection to stay open after
+     * this request.
+     * <p>
+     * <i>Default value is false</i>
+     * </p>
+     *
+     * @return true if the connection may be reused, false otherwise
+     * @since 1.1
+     */
+    boolean keepAlive() {
+        return false;
+    }
+
     /**
      *
      * @since 1.0
@@ -91,18 +289,32 @@ public abstract class ServerRequest {
     }
 
     /**
-     * A {@link ServerRequest} wrapper for a {@link Socket}.
+     * A {@link ServerRequest} built from a request head parsed by a
+     * {@link RequestParser}.
      *
      * @author nn1211
      * @since 1.0
      */
-    static final class SocketRequest extends ServerRequest {
+    static final class BufferRequest extends ServerRequest {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private static final InputStream EMPTY
+                = new ByteArrayInputStream(new byte[0]);
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final String clientIP;
 
         /**
          *
          * @since 1.0
          */
-        private final Map<String, String> params = new HashMap<>();
+        private Map<String, String> params;
 
         /**
          *
@@ -124,32 +336,167 @@ public abstract class ServerRequest {
 
         /**
          *
-         * @since 1.0
+         * @since 1.1
          */
-        private final Socket conn;
+        private HeaderTable headers;
 
         /**
-         * Wrap a {@link Socket} to a new instance.
          *
-         * @param socket
-         * @since 1.0
+         * @since 1.1
+         */
+        private String[] pathNames;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private int[] pathOffsets;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private boolean keepAlive = false;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private boolean isHttp11 = false;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private boolean isChunked = false;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private long contentLength = -1;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private BodyInputStream body;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private int maxBodySize;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Runnable continueHook = () -> {
+        };
+
+        /**
+         *
+         * @since 1.1
          */
-        private SocketRequest(Socket socket) {
-            conn = socket;
+        private long received = System.nanoTime();
+
+        /**
+         * Create an empty request of a client.
+         *
+         * @param clientIP the client's IP
+         * @since 1.1
+         */
+        private BufferRequest(String clientIP) {
+            this.clientIP = clientIP;
         }
 
         /**
-         * Wrap a {@link Socket} to a new {@link ServerRequest} instance
+         * Attach the body of this request to its connection.
          *
-         * @param socket
-         * @return a new {@link ServerRequest} instance
-         * @throws IOException I/O exception
-         * @since 1.0
+         * @param buf the connection buffer holding the bytes received after
+         * the request head from index 0
+         * @param source the source refilling the buffer
+         * @param maxBodySize default limit of {@link #body()}
+         * @since 1.1
+         */
+        void openBody(ByteBuffer buf, BodyInputStream.Source source,
+                int maxBodySize) {
+
+            this.maxBodySize = maxBodySize;
+            if (!hasBody()) {
+                return;
+            }
+
+            BodyInputStream.Source first = source;
+            if ("100-continue".equalsIgnoreCase(header(EXPECT))) {
+                first = new BodyInputStream.Source() {
+                    private boolean isSent = false;
+
+                    @Override
+                    public int fill(ByteBuffer b) throws IOException {
+                        if (!isSent) {
+                            isSent = true;
+                            continueHook.run();
+                        }
+
+                        return source.fill(b);
+                    }
+                };
+            }
+
+            body = new BodyInputStream(buf, first, contentLength, isChunked);
+        }
+
+        /**
+         * Skip the unread part of the body.
+         *
+         * @param limit maximum number of bytes to skip
+         * @return true if the connection holds the next request, false if it
+         * must be closed
+         * @since 1.1
+         */
+        boolean finishBody(long limit) {
+            if (null == body) {
+                return true;
+            }
+
+            try {
+                return body.finish(limit);
+            } catch (IOException ioEx) {
+                return false;
+            }
+        }
+
+        /**
+         * Determine whether this request is HTTP/1.1.
+         *
+         * @return true if HTTP/1.1, false if HTTP/1.0
+         * @since 1.1
          */
-        static ServerRequest wrap(Socket socket) throws IOException {
-            SocketRequest req = new SocketRequest(socket);
-            req.readRequestLine();
-            return req;
+        boolean isHttp11() {
+            return isHttp11;
+        }
+
+        /**
+         * Determine whether this request has a body.
+         *
+         * @return true if this request has a body, false otherwise
+         * @since 1.1
+         */
+        boolean hasBody() {
+            return isChunked || contentLength > 0;
+        }
+
+        /**
+         * Set the action sending an interim 100 response, run before the
+         * body is first read from the connection.
+         *
+         * @param hook the action
+         * @since 1.1
+         */
+        void continueHook(Runnable hook) {
+            continueHook = hook;
         }
 
         /**
@@ -157,13 +504,55 @@ public abstract class ServerRequest {
          * @since 1.0
          */
         @Override
-        public Content body() {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        public Content body() throws IOException {
+            return body(maxBodySize);
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public Content body(int maxSize) throws IOException {
+            if (null == body) {
+                return null;
+            }
+
+            if (!isChunked && contentLength > maxSize) {
+                throw new BodyTooLargeException(maxSize);
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream(
+                    isChunked ? 1024 : (int) contentLength);
+            byte[] chunk = new byte[4096];
+            int read;
+            while (-1 != (read = body.read(chunk))) {
+                if (data.size() + read > maxSize) {
+                    throw new BodyTooLargeException(maxSize);
+                }
+
+                data.write(chunk, 0, read);
+            }
+
+            return Content.from(data.toByteArray(), header(CONTENT_TYPE));
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public InputStream bodyStream() {
+            return null == body ? EMPTY : body;
         }
 
+        /**
+         *
+         * @since 1.0
+         */
         @Override
         public String clientIP() {
-            return conn.getLocalAddress().toString();
+            return clientIP;
         }
 
         /**
@@ -172,7 +561,7 @@ public abstract class ServerRequest {
          */
         @Override
         public String header(String name) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            return null == headers ? null : headers.get(name);
         }
 
         /**
@@ -185,11 +574,30 @@ public abstract class ServerRequest {
         }
 
         /**
+         * The query string is parsed on the first call.
          *
          * @since 1.0
          */
         @Override
         public String param(String name) {
+            if (null != pathNames) {
+                for (int i = 0; i < pathNames.length; i++) {
+                    if (pathNames[i].equals(name)) {
+                        return uri.substring(pathOffsets[i * 2],
+                                pathOffsets[i * 2 + 1]);
+                    }
+                }
+            }
+
+            if (null == query) {
+                return null;
+            }
+
+            if (null == params) {
+                params = new HashMap<>();
+                parseQuery(query, params);
+            }
+
             return params.get(name);
         }
 
@@ -204,54 +612,82 @@ public abstract class ServerRequest {
 
         /**
          *
-         * @throws IOException I/O exception
-         * @since 1.0
+         * @since 1.1
          */
-        private void readRequestLine() throws IOException {
-            InputStream in = conn.getInputStream();
-            if (null == (method = HttpMethod.from(in))) {
-                return;
-            }
+        @Override
+        String query() {
+            return query;
+        }
 
-            if (null == (uri = readURI(in))) {
-                return;
-            }
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        long received() {
+            return received;
+        }
 
-            int qi = uri.indexOf(QueryString.QUERY_CHAR);
-            if (-1 != qi) {
-                query = uri.substring(qi + 1);
-                uri = uri.substring(0, qi);
-                parseQuery();
-            }
+        /**
+         * Account for the time the connection of this request waited for a
+         * worker before the request was read.
+         *
+         * @param nanos the time waited in nanoseconds
+         * @since 1.1
+         */
+        void waited(long nanos) {
+            received -= nanos;
         }
 
         /**
-         * Read the request's URI from the request's input stream.
          *
-         * @param in request's input stream
-         * @return request's URI or null in the case, the request is invalid
-         * @throws IOException I/O exception
-         * @since 1.0
+         * @since 1.1
          */
-        private String readURI(InputStream in) throws IOException {
-            return InStream.readString(in, 1024);
+        @Override
+        void pathParams(String[] names, int[] offsets) {
+            pathNames = names;
+            pathOffsets = offsets;
         }
 
         /**
-         * Parse query string into parameters.
          *
-         * @since 1.0
+         * @since 1.1
          */
-        private void parseQuery() {
-            System.out.println(query);
-            String[] fields = query.split(QueryString.FIELD_SEPARATOR);
-            for (String field : fields) {
-                String[] parts = field.split(QueryString.NAME_VALUE_SEPARATOR);
-                if (parts.length == 2) {
-                    params.put(parts[0], URICoder.decode(parts[1]));
-                }
-            }
+        @Override
+        boolean keepAlive() {
+            return keepAlive;
         }
 
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        long bodySize() {
+            return isChunked ? (null == body ? 0 : body.count())
+                    : Math.max(0, contentLength);
+        }
+
+    }
+
+    /**
+     * Thrown when a request body is larger than allowed.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    public static final class BodyTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Create an exception for a given limit.
+         *
+         * @param maxSize the exceeded limit in bytes
+         * @since 1.1
+         */
+        BodyTooLargeException(int maxSize) {
+            super("Request body exceeds " + maxSize + " bytes");
+        }
     }
 }
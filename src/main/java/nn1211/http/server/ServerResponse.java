@@ -1,5 +1,8 @@
 package nn1211.http.server;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.BiConsumer;
@@ -26,6 +29,95 @@ public abstract class ServerResponse implements HttpResponse {
                 TextContent.from("404"));
     }
 
+    /**
+     * Return a 405 response listing the methods allowed for its path.
+     *
+     * @param allowed the allowed methods, such as <code>GET, POST</code>
+     * @return a 405 response
+     * @since 1.1
+     */
+    public static ServerResponse methodNotAllowed(String allowed) {
+        return new DefaultResponse(StatusCode.METHOD_NOT_ALLOWED,
+                TextContent.from("405")).header(ALLOW, allowed);
+    }
+
+    /**
+     * Return a 304 response, without body.
+     *
+     * @return a 304 response
+     * @since 1.1
+     */
+    public static ServerResponse notModified() {
+        return new DefaultResponse(StatusCode.NOT_MODIFIED);
+    }
+
+    /**
+     * Return a 413 response
+     *
+     * @return a 413 response
+     * @since 1.1
+     */
+    public static ServerResponse payloadTooLarge() {
+        return new DefaultResponse(StatusCode.PAYLOAD_TOO_LARGE,
+                TextContent.from("413"));
+    }
+
+    /**
+     * Return a 429 response
+     *
+     * @return a 429 response
+     * @since 1.1
+     */
+    public static ServerResponse tooManyRequests() {
+        return new DefaultResponse(StatusCode.TOO_MANY_REQUESTS,
+                TextContent.from("429"));
+    }
+
+    /**
+     * Return a 503 response
+     *
+     * @return a 503 response
+     * @since 1.1
+     */
+    public static ServerResponse serviceUnavailable() {
+        return new DefaultResponse(StatusCode.SERVICE_UNAVAILABLE,
+                TextContent.from("503"));
+    }
+
+    /**
+     * Return a 504 response
+     *
+     * @return a 504 response
+     * @since 1.1
+     */
+    public static ServerResponse gatewayTimeout() {
+        return new DefaultResponse(StatusCode.GATEWAY_TIMEOUT,
+                TextContent.from("504"));
+    }
+
+    /**
+     * Return a 500 response
+     *
+     * @return a 500 response
+     * @since 1.1
+     */
+    public static ServerResponse internalServerError() {
+        return new DefaultResponse(StatusCode.INTERNAL_SERVER_ERROR,
+                TextContent.from("500"));
+    }
+
+    /**
+     * Return a 101 response switching the connection to a WebSocket, without
+     * body.
+     *
+     * @param socket the socket served once the response is written
+     * @return a 101 response
+     * @since 1.1
+     */
+    static ServerResponse switchingProtocols(WebSocket socket) {
+        return new DefaultResponse(socket);
+    }
+
     /**
      * Return a 200 response
      *
@@ -38,6 +130,84 @@ public abstract class ServerResponse implements HttpResponse {
                 TextContent.from(data));
     }
 
+    /**
+     * Return a 200 response with a content.
+     *
+     * @param content the response's body
+     * @return a 200 response
+     * @since 1.1
+     */
+    public static ServerResponse ok(Content content) {
+        return new DefaultResponse(StatusCode.OK, content);
+    }
+
+    /**
+     * Return a 200 response whose body is written incrementally by a
+     * {@link BodyWriter} using chunked transfer encoding.
+     *
+     * @param type the content type of the body
+     * @param writer the writer of the body
+     * @return a streaming 200 response
+     * @since 1.1
+     */
+    public static StreamingResponse stream(String type, BodyWriter writer) {
+        return new StreamingResponse(StatusCode.OK, type, writer);
+    }
+
+    /**
+     * Get the writer of a streamed body.
+     * <p>
+     * <i>Default value is null</i>
+     * </p>
+     *
+     * @return the writer of a streamed body or null if the body is a
+     * {@link Content}
+     * @since 1.1
+     */
+    BodyWriter writer() {
+        return null;
+    }
+
+    /**
+     * Get the WebSocket a 101 response switches its connection to.
+     * <p>
+     * <i>Default value is null</i>
+     * </p>
+     *
+     * @return the socket, or null if the connection stays HTTP
+     * @since 1.1
+     */
+    WebSocket webSocket() {
+        return null;
+    }
+
+    /**
+     * Get the stored response a 304 response stands for, so that the
+     * server repeats the headers it would add to it, such as Vary.
+     * <p>
+     * <i>Default value is null</i>
+     * </p>
+     *
+     * @return the validated response, or null if unknown
+     * @since 1.1
+     */
+    ServerResponse validated() {
+        return null;
+    }
+
+    /**
+     * Get the length of the body.
+     * <p>
+     * <i>Default value is -1</i>
+     * </p>
+     *
+     * @return the length of the body in bytes, or -1 if unknown
+     * @since 1.1
+     */
+    long bodySize() {
+        return -1;
+    }
+
     /**
      * Utility method to loop on each header.
      *
@@ -80,6 +250,102 @@ public abstract class ServerResponse implements HttpResponse {
         public static final StatusCode NOT_FOUND
                 = new StatusCode(404, "Not Found");
 
+        /**
+         * 405 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode METHOD_NOT_ALLOWED
+                = new StatusCode(405, "Method Not Allowed");
+
+        /**
+         * 101 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode SWITCHING_PROTOCOLS
+                = new StatusCode(101, "Switching Protocols");
+
+        /**
+         * 206 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode PARTIAL_CONTENT
+                = new StatusCode(206, "Partial Content");
+
+        /**
+         * 304 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode NOT_MODIFIED
+                = new StatusCode(304, "Not Modified");
+
+        /**
+         * 400 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode BAD_REQUEST
+                = new StatusCode(400, "Bad Request");
+
+        /**
+         * 413 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode PAYLOAD_TOO_LARGE
+                = new StatusCode(413, "Payload Too Large");
+
+        /**
+         * 416 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode RANGE_NOT_SATISFIABLE
+                = new StatusCode(416, "Range Not Satisfiable");
+
+        /**
+         * 426 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode UPGRADE_REQUIRED
+                = new StatusCode(426, "Upgrade Required");
+
+        /**
+         * 429 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode TOO_MANY_REQUESTS
+                = new StatusCode(429, "Too Many Requests");
+
+        /**
+         * 500 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode INTERNAL_SERVER_ERROR
+                = new StatusCode(500, "Internal Server Error");
+
+        /**
+         * 503 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode SERVICE_UNAVAILABLE
+                = new StatusCode(503, "Service Unavailable");
+
+        /**
+         * 504 status code
+         *
+         * @since 1.1
+         */
+        public static final StatusCode GATEWAY_TIMEOUT
+                = new StatusCode(504, "Gateway Timeout");
+
         /**
          * 200 status code
          *
@@ -91,6 +357,13 @@ public abstract class ServerResponse implements HttpResponse {
         private final int code;
         private final String value;
 
+        /**
+         * The encoded status line, including CRLF.
+         *
+         * @since 1.1
+         */
+        private final byte[] statusLine;
+
         /**
          * Create an instance from given code and description.
          *
@@ -101,6 +374,8 @@ public abstract class ServerResponse implements HttpResponse {
         private StatusCode(int code, String desc) {
             this.code = code;
             this.value = code + " " + desc;
+            statusLine = ("HTTP/1.1 " + value + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
         }
 
         /**
@@ -124,6 +399,16 @@ public abstract class ServerResponse implements HttpResponse {
             return code == value;
         }
 
+        /**
+         * Get the encoded status line. The array must not be modified.
+         *
+         * @return the status line, including CRLF
+         * @since 1.1
+         */
+        byte[] statusLine() {
+            return statusLine;
+        }
+
         /**
          *
          * @since 1.0
@@ -160,6 +445,20 @@ public abstract class ServerResponse implements HttpResponse {
          */
         private final Content body;
 
+        /**
+         * The socket of a 101 response, or null.
+         *
+         * @since 1.1
+         */
+        private final WebSocket webSocket;
+
+        /**
+         * The stored response of a 304 response, or null.
+         *
+         * @since 1.1
+         */
+        private final ServerResponse validated;
+
         /**
          * Create an instance with given status code and content.
          *
@@ -170,9 +469,55 @@ public abstract class ServerResponse implements HttpResponse {
         DefaultResponse(StatusCode statusCode, Content content) {
             this.statusCode = statusCode;
             body = content;
+            webSocket = null;
+            validated = null;
 
             headers.put(CONTENT_TYPE, content.type());
-            headers.put(CONTENT_LENGTH, Integer.toString(content.length()));
+            headers.put(CONTENT_LENGTH, Long.toString(content.size()));
+            if (null != content.encoding()) {
+                headers.put(CONTENT_ENCODING, content.encoding());
+            }
+        }
+
+        /**
+         * Create an instance without body, such as a 304 response, whose
+         * head has no Content-Type nor Content-Length.
+         *
+         * @param statusCode a status code of a response without body
+         * @since 1.1
+         */
+        DefaultResponse(StatusCode statusCode) {
+            this.statusCode = statusCode;
+            body = Content.from(new byte[0], null);
+            webSocket = null;
+            validated = null;
+        }
+
+        /**
+         * Create a 304 response without body standing for a stored
+         * response the client holds.
+         *
+         * @param validated the stored response
+         * @since 1.1
+         */
+        DefaultResponse(ServerResponse validated) {
+            statusCode = StatusCode.NOT_MODIFIED;
+            body = Content.from(new byte[0], null);
+            webSocket = null;
+            this.validated = validated;
+        }
+
+        /**
+         * Create a 101 response without body switching to a WebSocket.
+         *
+         * @param webSocket the socket served once the response is written
+         * @since 1.1
+         */
+        private DefaultResponse(WebSocket webSocket) {
+            statusCode = StatusCode.SWITCHING_PROTOCOLS;
+            body = Content.from(new byte[0], null);
+            this.webSocket = webSocket;
+            validated = null;
         }
 
         /**
@@ -184,6 +529,33 @@ public abstract class ServerResponse implements HttpResponse {
             return body;
         }
 
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        long bodySize() {
+            return body.size();
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        WebSocket webSocket() {
+            return webSocket;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        ServerResponse validated() {
+            return validated;
+        }
+
         @Override
         public void forEachHeader(BiConsumer<String, String> consumer) {
             headers.forEach(consumer);
@@ -210,4 +582,155 @@ public abstract class ServerResponse implements HttpResponse {
 
     }
 
+    /**
+     * A writer of a streamed response body.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    @FunctionalInterface
+    public interface BodyWriter {
+
+        /**
+         * Write the body. Calling {@link OutputStream#flush()} sends the
+         * bytes written so far to the client.
+         *
+         * @param out the body's stream, closed by the server
+         * @throws IOException I/O exception
+         * @since 1.1
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A response whose body is written incrementally, in chunks of at most
+     * its flush threshold.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    public static final class StreamingResponse extends ServerResponse {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Map<String, String> headers = new HashMap<>();
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final StatusCode statusCode;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final BodyWriter writer;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private int flushThreshold = 8192;
+
+        /**
+         * Create an instance with given status code, type and writer.
+         *
+         * @param statusCode a valid status code of a HTTP response
+         * @param type the content type of the body
+         * @param writer the writer of the body
+         * @since 1.1
+         */
+        StreamingResponse(StatusCode statusCode, String type,
+                BodyWriter writer) {
+
+            this.statusCode = statusCode;
+            this.writer = writer;
+
+            headers.put(CONTENT_TYPE, type);
+        }
+
+        /**
+         * Get the flush threshold.
+         *
+         * @return the number of buffered bytes sent as one chunk
+         * @since 1.1
+         */
+        public int flushThreshold() {
+            return flushThreshold;
+        }
+
+        /**
+         * Set the number of buffered bytes sent as one chunk. A lower value
+         * lowers the time to first byte, a higher one the framing overhead.
+         * <p>
+         * <i>Default value is 8192</i>
+         * </p>
+         *
+         * @param value the flush threshold in bytes
+         * @return this
+         * @throws IllegalArgumentException if value is less than 1
+         * @since 1.1
+         */
+        public StreamingResponse flushThreshold(int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException("flushThreshold < 1");
+            }
+
+            flushThreshold = value;
+            return this;
+        }
+
+        /**
+         * A streamed body is not available as a {@link Content}.
+         *
+         * @return null
+         * @since 1.1
+         */
+        @Override
+        public Content body() {
+            return null;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public void forEachHeader(BiConsumer<String, String> consumer) {
+            headers.forEach(consumer);
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public StreamingResponse header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public StatusCode statusCode() {
+            return statusCode;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        BodyWriter writer() {
+            return writer;
+        }
+
+    }
+
 }
@@ -0,0 +1,362 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import nn1211.http.Content;
+import nn1211.http.Content.FileContent;
+import nn1211.http.Content.TextContent;
+import nn1211.io.URICoder;
+import static nn1211.http.HttpHeader.*;
+
+/**
+ * A handler serving the files of a directory.
+ * <p>
+ * Files are sent with {@link FileContent#transferTo}, so their bytes are
+ * never copied into the heap. A single byte range of a file may be
+ * requested with the Range header. Small files may also be kept mapped into
+ * memory, in a cache of the most recently used ones.
+ * </p>
+ * <p>
+ * The handler serves the path of the request, or the <code>*</code>
+ * parameter of a wildcard route:
+ * </p>
+ * <pre>
+ * server.registerHandler("GET /static/*", new StaticHandler(root));
+ * </pre>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class StaticHandler implements Handler {
+
+    /**
+     * The file served for a directory.
+     *
+     * @since 1.1
+     */
+    private static final String INDEX = "index.html";
+
+    /**
+     * Content types by file extension.
+     *
+     * @since 1.1
+     */
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("css", "text/css");
+        TYPES.put("csv", "text/csv");
+        TYPES.put("gif", "image/gif");
+        TYPES.put("htm", "text/html");
+        TYPES.put("html", "text/html");
+        TYPES.put("ico", "image/x-icon");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("jpg", "image/jpeg");
+        TYPES.put("js", "text/javascript");
+        TYPES.put("json", "application/json");
+        TYPES.put("mp4", "video/mp4");
+        TYPES.put("pdf", "application/pdf");
+        TYPES.put("png", "image/png");
+        TYPES.put("svg", "image/svg+xml");
+        TYPES.put("txt", "text/plain");
+        TYPES.put("wasm", "application/wasm");
+        TYPES.put("webp", "image/webp");
+        TYPES.put("woff2", "font/woff2");
+        TYPES.put("xml", "application/xml");
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final Path root;
+
+    /**
+     * Maximum size of a mapped file, 0 if the cache is disabled.
+     *
+     * @since 1.1
+     */
+    private int maxMappedSize = 0;
+
+    /**
+     * Maximum number of mapped files.
+     *
+     * @since 1.1
+     */
+    private int maxMappedFiles = 0;
+
+    /**
+     * Mapped files, least recently used first.
+     *
+     * @since 1.1
+     */
+    private final LinkedHashMap<Path, Mapped> mapped
+            = new LinkedHashMap<Path, Mapped>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Mapped> eldest) {
+            return size() > maxMappedFiles;
+        }
+    };
+
+    /**
+     * Create a handler serving the files of a directory.
+     *
+     * @param root the directory
+     * @since 1.1
+     */
+    public StaticHandler(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Keep small files mapped into memory.
+     * <p>
+     * <i>Default: disabled</i>
+     * </p>
+     *
+     * @param maxFileSize maximum size of a mapped file in bytes, 0 to
+     * disable the cache
+     * @param maxFiles maximum number of mapped files
+     * @return this
+     * @since 1.1
+     */
+    public StaticHandler mapCache(int maxFileSize, int maxFiles) {
+        if (maxFileSize < 0 || maxFiles < 0) {
+            throw new IllegalArgumentException("Negative cache limit");
+        }
+
+        synchronized (mapped) {
+            maxMappedSize = maxFileSize;
+            maxMappedFiles = maxFiles;
+            mapped.clear();
+        }
+
+        return this;
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public ServerResponse handle(ServerRequest req) throws IOException {
+        Path file = resolve(req);
+        if (null == file) {
+            return ServerResponse.badRequest();
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.isDirectory()) {
+                file = file.resolve(INDEX);
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+        } catch (IOException ioEx) {
+            return ServerResponse.badRequest();
+        }
+
+        if (!attrs.isRegularFile()) {
+            return ServerResponse.badRequest();
+        }
+
+        FileContent content = content(file, attrs);
+        long size = content.size();
+
+        String rangeHeader = req.header(RANGE);
+        long[] range = null == rangeHeader ? null : range(rangeHeader, size);
+        if (null == range) {
+            return ServerResponse.ok(content).header(ACCEPT_RANGES, "bytes");
+        }
+
+        if (0 == range.length) {
+            return new ServerResponse.DefaultResponse(
+                    ServerResponse.StatusCode.RANGE_NOT_SATISFIABLE,
+                    TextContent.from("416"))
+                    .header(CONTENT_RANGE, "bytes */" + size);
+        }
+
+        return new ServerResponse.DefaultResponse(
+                ServerResponse.StatusCode.PARTIAL_CONTENT,
+                content.slice(range[0], range[1] - range[0] + 1))
+                .header(ACCEPT_RANGES, "bytes")
+                .header(CONTENT_RANGE, "bytes " + range[0] + "-" + range[1]
+                        + "/" + size);
+    }
+
+    /**
+     * Resolve the file of a request inside the root directory.
+     *
+     * @param req a request
+     * @return the file or null if the path is invalid or outside the root
+     * @since 1.1
+     */
+    private Path resolve(ServerRequest req) {
+        String path = req.param(Router.WILDCARD);
+        if (null == path) {
+            path = req.uri();
+        }
+
+        try {
+            // A path keeps '+' literally, unlike a form
+            path = URICoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException argEx) {
+            return null;
+        }
+
+        if (null == path || path.indexOf('\0') >= 0) {
+            return null;
+        }
+
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        Path file;
+        try {
+            file = root.resolve(path).normalize();
+        } catch (InvalidPathException pathEx) {
+            return null;
+        }
+
+        return file.startsWith(root) ? file : null;
+    }
+
+    /**
+     * Get the content of a file, mapped if the cache allows it.
+     *
+     * @param file a regular file
+     * @param attrs the file's attributes
+     * @return the content
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private FileContent content(Path file, BasicFileAttributes attrs)
+            throws IOException {
+
+        String type = type(file);
+        if (0 == maxMappedSize || attrs.size() > maxMappedSize) {
+            return Content.from(file, type);
+        }
+
+        FileTime modified = attrs.lastModifiedTime();
+        synchronized (mapped) {
+            Mapped entry = mapped.get(file);
+            if (null != entry && entry.modified.equals(modified)
+                    && entry.content.size() == attrs.size()) {
+                return entry.content;
+            }
+        }
+
+        FileContent content = Content.map(file, type);
+        synchronized (mapped) {
+            if (attrs.size() <= maxMappedSize) {
+                mapped.put(file, new Mapped(content, modified));
+            }
+        }
+
+        return content;
+    }
+
+    /**
+     * Get the content type of a file from its extension.
+     *
+     * @param file a file
+     * @return the content type or null if unknown
+     * @since 1.1
+     */
+    private static String type(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return -1 == dot ? null
+                : TYPES.get(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Parse a Range header holding a single byte range.
+     *
+     * @param value the header's value
+     * @param size the size of the file
+     * @return the first and last index of the range, an empty array if the
+     * range is not satisfiable, or null to ignore the header
+     * @since 1.1
+     */
+    static long[] range(String value, long size) {
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (-1 == dash) {
+            return null;
+        }
+
+        try {
+            if (0 == dash) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0 || 0 == size) {
+                    return new long[0];
+                }
+
+                return new long[]{Math.max(0, size - suffix), size - 1};
+            }
+
+            long first = Long.parseLong(spec.substring(0, dash));
+            long last = dash == spec.length() - 1 ? Long.MAX_VALUE
+                    : Long.parseLong(spec.substring(dash + 1));
+
+            if (first < 0 || last < first) {
+                return null;
+            }
+
+            if (first >= size) {
+                return new long[0];
+            }
+
+            return new long[]{first, Math.min(last, size - 1)};
+        } catch (NumberFormatException numEx) {
+            return null;
+        }
+    }
+
+    /**
+     * A mapped file and the modification time it was mapped at.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Mapped {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final FileContent content;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final FileTime modified;
+
+        /**
+         *
+         * @param content
+         * @param modified
+         * @since 1.1
+         */
+        private Mapped(FileContent content, FileTime modified) {
+            this.content = content;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import nn1211.http.Content.FileContent;
+import nn1211.io.BufferPool;
+
+/**
+ * A buffered output stream of a blocking connection arming a timeout around
+ * each write.
+ * <p>
+ * Bytes are buffered in a direct buffer of the shared {@link BufferPool},
+ * written straight to the channel. Larger writes, buffers and files bypass
+ * the buffer and are split into blocks of at most
+ * {@link HttpServer#WRITE_CHUNK} bytes, so a client taking longer than the
+ * timeout to accept a block is closed whatever the size of the response.
+ * {@link #close()} flushes the stream and releases its buffer, leaving the
+ * connection open.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class TimedOutputStream extends OutputStream {
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final TimerWheel.Timeout timeout;
+
+    /**
+     * Time allowed for a block in milliseconds.
+     *
+     * @since 1.1
+     */
+    private final long millis;
+
+    /**
+     * The pooled buffer, acquired by the first write.
+     *
+     * @since 1.1
+     */
+    private ByteBuffer buf;
+
+    /**
+     * Create a stream over a connection's channel.
+     *
+     * @param channel the connection's channel in blocking mode
+     * @param timeout the connection's timeout, closing it when expired
+     * @param millis the time allowed for each block in milliseconds
+     * @since 1.1
+     */
+    TimedOutputStream(WritableByteChannel channel, TimerWheel.Timeout timeout,
+            long millis) {
+
+        this.channel = channel;
+        this.timeout = timeout;
+        this.millis = millis;
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public void write(int b) throws IOException {
+        if (null == buf) {
+            buf = BufferPool.shared().acquire(HttpServer.OUT_BUFFER);
+        } else if (!buf.hasRemaining()) {
+            drain();
+        }
+
+        buf.put((byte) b);
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (null == buf) {
+            buf = BufferPool.shared().acquire(HttpServer.OUT_BUFFER);
+        }
+
+        if (len <= buf.remaining()) {
+            buf.put(b, off, len);
+            return;
+        }
+
+        drain();
+        if (len <= buf.remaining()) {
+            buf.put(b, off, len);
+            return;
+        }
+
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Write the remaining bytes of a buffer, such as a mapped file, after
+     * the buffered ones without copying them.
+     *
+     * @param src a buffer
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    void write(ByteBuffer src) throws IOException {
+        flush();
+
+        int end = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                src.limit(Math.min(end,
+                        src.position() + HttpServer.WRITE_CHUNK));
+                writeBlock(src);
+            }
+        } finally {
+            src.limit(end);
+        }
+    }
+
+    /**
+     * Write a file after the buffered bytes, with sendfile where supported.
+     *
+     * @param file a file
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    void transfer(FileContent file) throws IOException {
+        flush();
+
+        long size = file.size();
+        for (long sent = 0; sent < size; sent += HttpServer.WRITE_CHUNK) {
+            timeout.schedule(millis);
+            try {
+                file.slice(sent, Math.min(HttpServer.WRITE_CHUNK,
+                        size - sent)).transferTo(channel);
+            } finally {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public void flush() throws IOException {
+        if (null != buf) {
+            drain();
+        }
+    }
+
+    /**
+     * Flush this stream and release its buffer. The connection stays open.
+     *
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Release the buffer of this stream, dropping the bytes not written.
+     * The next write acquires a new one.
+     *
+     * @since 1.1
+     */
+    void release() {
+        if (null != buf) {
+            BufferPool.shared().release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Write the buffered bytes.
+     *
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void drain() throws IOException {
+        buf.flip();
+        try {
+            writeBlock(buf);
+        } finally {
+            buf.compact();
+        }
+    }
+
+    /**
+     * Write a block within the timeout.
+     *
+     * @param src the block
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    private void writeBlock(ByteBuffer src) throws IOException {
+        timeout.schedule(millis);
+        try {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } finally {
+            timeout.cancel();
+        }
+    }
+}
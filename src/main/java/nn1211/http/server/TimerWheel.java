@@ -0,0 +1,359 @@
+package nn1211.http.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed wheel of timeouts shared by all connections of a server.
+ * <p>
+ * A single thread advances the wheel every tick and expires the timeouts
+ * filed in the slot it reaches, so a timeout holds no thread and costs O(1)
+ * to arm. A connection owns one {@link Timeout} for its whole life: arming
+ * it again only moves its deadline, and the wheel files it again when
+ * reaching a timeout whose deadline moved, so activity on a connection
+ * rarely touches the wheel. Deadlines are accurate to one tick.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class TimerWheel {
+
+    /**
+     * Duration of a tick in milliseconds.
+     *
+     * @since 1.1
+     */
+    private static final long TICK = 100;
+
+    /**
+     * Number of slots, a power of 2. A timeout further than a turn of the
+     * wheel is filed in the last slot and filed again when reached.
+     *
+     * @since 1.1
+     */
+    private static final int SLOTS = 512;
+
+    /**
+     * The first timeout of each slot, each linking to the next one.
+     *
+     * @since 1.1
+     */
+    private final Timeout[] slots = new Timeout[SLOTS];
+
+    /**
+     * Timeouts armed since the last tick, not filed yet.
+     *
+     * @since 1.1
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The value of {@link System#nanoTime()} deadlines are relative to.
+     *
+     * @since 1.1
+     */
+    private final long origin = System.nanoTime();
+
+    /**
+     * The next tick to process, only used by the timer thread.
+     *
+     * @since 1.1
+     */
+    private long tick = 0;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile boolean isRunning = false;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private Thread thread;
+
+    /**
+     * Start the timer thread.
+     *
+     * @since 1.1
+     */
+    synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+
+        isRunning = true;
+        thread = new Thread(this::run, "http-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the timer thread. Armed timeouts never expire.
+     *
+     * @since 1.1
+     */
+    synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+
+        isRunning = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException intEx) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a disarmed timeout.
+     *
+     * @param task the task run on the timer thread when the timeout
+     * expires, which must not block
+     * @return a timeout
+     * @since 1.1
+     */
+    Timeout timeout(Runnable task) {
+        return new Timeout(this, task);
+    }
+
+    /**
+     * Run a task periodically on the timer thread until the timer stops.
+     * Each run delays the timeouts of its tick, so it must be short.
+     *
+     * @param millis the period in milliseconds
+     * @param task the task
+     * @since 1.1
+     */
+    void every(long millis, Runnable task) {
+        timeout(() -> {
+            every(millis, task);
+            task.run();
+        }).schedule(millis);
+    }
+
+    /**
+     * Get the current time.
+     *
+     * @return the milliseconds elapsed since this wheel was created
+     * @since 1.1
+     */
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    }
+
+    /**
+     * The timer thread's loop.
+     *
+     * @since 1.1
+     */
+    private void run() {
+        while (isRunning) {
+            long now = now();
+
+            Timeout timeout;
+            while (null != (timeout = pending.poll())) {
+                file(timeout);
+            }
+
+            while (tick * TICK <= now) {
+                expire(now);
+                tick++;
+            }
+
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(
+                    TICK - now % TICK));
+        }
+    }
+
+    /**
+     * File a timeout in the slot of its deadline, or the last slot if it
+     * is further than a turn of the wheel.
+     *
+     * @param timeout a queued timeout
+     * @since 1.1
+     */
+    private void file(Timeout timeout) {
+        long at = (timeout.deadline + TICK - 1) / TICK;
+        at = Math.min(Math.max(at, tick), tick + SLOTS - 1);
+
+        int slot = (int) at & (SLOTS - 1);
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+
+    /**
+     * Expire the timeouts of the current slot whose deadline passed, and
+     * file the others again.
+     *
+     * @param now the current time
+     * @since 1.1
+     */
+    private void expire(long now) {
+        int slot = (int) tick & (SLOTS - 1);
+        Timeout timeout = slots[slot];
+        slots[slot] = null;
+
+        while (null != timeout) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+
+            long deadline = timeout.deadline;
+            if (0 == deadline) {
+                timeout.unqueue();
+            } else if (deadline > now) {
+                file(timeout);
+            } else if (Timeout.DEADLINE.compareAndSet(timeout, deadline, 0)) {
+                timeout.isExpired = true;
+                timeout.isQueued.set(false);
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace(System.err);
+                }
+            } else {
+                // Armed again or cancelled meanwhile
+                timeout.unqueue();
+            }
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * A timeout of a connection, armed again for each phase of the
+     * connection.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class Timeout {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private static final AtomicLongFieldUpdater<Timeout> DEADLINE
+                = AtomicLongFieldUpdater.newUpdater(Timeout.class,
+                        "deadline");
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final TimerWheel wheel;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final Runnable task;
+
+        /**
+         * Time this timeout expires at, 0 if disarmed.
+         *
+         * @since 1.1
+         */
+        private volatile long deadline = 0;
+
+        /**
+         * True while this timeout is pending or filed in the wheel.
+         *
+         * @since 1.1
+         */
+        private final AtomicBoolean isQueued = new AtomicBoolean();
+
+        /**
+         *
+         * @since 1.1
+         */
+        private volatile boolean isExpired = false;
+
+        /**
+         * The next timeout of the same slot, only used by the timer thread.
+         *
+         * @since 1.1
+         */
+        private Timeout next;
+
+        /**
+         *
+         * @param wheel
+         * @param task
+         * @since 1.1
+         */
+        private Timeout(TimerWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * Arm this timeout, replacing its previous deadline. An expired
+         * timeout is never armed again.
+         *
+         * @param millis the delay in milliseconds
+         * @since 1.1
+         */
+        void schedule(long millis) {
+            if (isExpired) {
+                return;
+            }
+
+            deadline = Math.max(1, wheel.now() + millis);
+            if (isQueued.compareAndSet(false, true)) {
+                wheel.pending.add(this);
+            }
+        }
+
+        /**
+         * Disarm this timeout.
+         *
+         * @since 1.1
+         */
+        void cancel() {
+            deadline = 0;
+        }
+
+        /**
+         * Arm this timeout around each read of a source.
+         *
+         * @param source a source
+         * @param millis the time allowed for each read in milliseconds
+         * @return the guarded source
+         * @since 1.1
+         */
+        BodyInputStream.Source guard(BodyInputStream.Source source,
+                long millis) {
+
+            return buf -> {
+                schedule(millis);
+                try {
+                    return source.fill(buf);
+                } finally {
+                    cancel();
+                }
+            };
+        }
+
+        /**
+         * Remove this timeout from the wheel, unless armed again meanwhile.
+         * It runs on the timer thread.
+         *
+         * @since 1.1
+         */
+        private void unqueue() {
+            isQueued.set(false);
+            if (0 != deadline && isQueued.compareAndSet(false, true)) {
+                wheel.file(this);
+            }
+        }
+    }
+}
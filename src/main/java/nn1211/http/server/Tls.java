@@ -0,0 +1,267 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * The TLS settings of a HTTPS server.
+ * <p>
+ * Each connection of {@link HttpServer.Engine#NIO} gets its own
+ * {@link SSLEngine}, driven by the event loops without blocking. Encrypted
+ * records are held in buffers of the shared {@link nn1211.io.BufferPool}
+ * only while in transit, so an idle connection holds none.
+ * </p>
+ * <p>
+ * Sessions are resumed without a full handshake from the server session
+ * cache of the {@link SSLContext}, bounded by {@link #sessionCacheSize} and
+ * {@link #sessionTimeout}, and from stateless session tickets, which the
+ * JDK issues to clients from version 13 unless the system property
+ * <code>jdk.tls.server.enableSessionTicketExtension</code> is false. The
+ * cache only holds sessions of clients without tickets.
+ * </p>
+ * <p>
+ * For local tests, a self-signed key store is made with:
+ * </p>
+ * <pre>
+ * keytool -genkeypair -alias localhost -keyalg EC -groupname secp256r1 \
+ *         -dname CN=localhost -ext san=dns:localhost,ip:127.0.0.1 \
+ *         -validity 365 -storetype PKCS12 -keystore localhost.p12 \
+ *         -storepass changeit
+ *
+ * server.tls(Tls.keyStore(Paths.get("localhost.p12"),
+ *         "changeit".toCharArray()));
+ * </pre>
+ * <p>
+ * and queried with <code>curl -k https://localhost:12183/</code>.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class Tls {
+
+    /**
+     * Protocols enabled by default, if supported.
+     *
+     * @since 1.1
+     */
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final SSLContext context;
+
+    /**
+     * Enabled protocols.
+     *
+     * @since 1.1
+     */
+    private volatile String[] protocols;
+
+    /**
+     * Enabled cipher suites, or null for the defaults of the context.
+     *
+     * @since 1.1
+     */
+    private volatile String[] cipherSuites;
+
+    /**
+     * Create the settings of a context holding the server's key and
+     * certificate chain.
+     *
+     * @param context an initialized context
+     * @since 1.1
+     */
+    public Tls(SSLContext context) {
+        this.context = context;
+
+        List<String> supported = Arrays.asList(
+                context.getSupportedSSLParameters().getProtocols());
+        List<String> enabled = new ArrayList<>();
+        for (String protocol : PROTOCOLS) {
+            if (supported.contains(protocol)) {
+                enabled.add(protocol);
+            }
+        }
+
+        protocols = enabled.toArray(new String[enabled.size()]);
+    }
+
+    /**
+     * Create the settings of a key store holding the server's key and
+     * certificate chain, such as a PKCS12 file.
+     *
+     * @param path the key store's file
+     * @param password the password of the key store and of its key
+     * @return the settings
+     * @throws IOException if the file cannot be read
+     * @throws GeneralSecurityException if the key store is invalid
+     * @since 1.1
+     */
+    public static Tls keyStore(Path path, char[] password)
+            throws IOException, GeneralSecurityException {
+
+        String name = path.getFileName().toString().toLowerCase();
+        KeyStore store = KeyStore.getInstance(name.endsWith(".jks")
+                ? "JKS" : "PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, password);
+        }
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, password);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        return new Tls(context);
+    }
+
+    /**
+     * Set the enabled protocols.
+     * <p>
+     * <i>Default value is TLSv1.3 and TLSv1.2</i>
+     * </p>
+     *
+     * @param value protocol names, such as <code>TLSv1.3</code>
+     * @return this
+     * @throws IllegalArgumentException if a protocol is not supported or
+     * none is given
+     * @since 1.1
+     */
+    public Tls protocols(String... value) {
+        protocols = check(value,
+                context.getSupportedSSLParameters().getProtocols());
+        return this;
+    }
+
+    /**
+     * Set the enabled cipher suites, in order of preference.
+     * <p>
+     * <i>Default value is the default cipher suites of the context</i>
+     * </p>
+     *
+     * @param value cipher suite names, such as
+     * <code>TLS_AES_128_GCM_SHA256</code>
+     * @return this
+     * @throws IllegalArgumentException if a cipher suite is not supported
+     * or none is given
+     * @since 1.1
+     */
+    public Tls cipherSuites(String... value) {
+        cipherSuites = check(value,
+                context.getSupportedSSLParameters().getCipherSuites());
+        return this;
+    }
+
+    /**
+     * Set the maximum number of sessions kept by the server session cache.
+     * <p>
+     * <i>Default value is the JDK's, 20480 sessions</i>
+     * </p>
+     *
+     * @param value number of sessions, 0 for no limit
+     * @return this
+     * @throws IllegalArgumentException if value is negative
+     * @since 1.1
+     */
+    public Tls sessionCacheSize(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("sessionCacheSize < 0");
+        }
+
+        sessions().setSessionCacheSize(value);
+        return this;
+    }
+
+    /**
+     * Set the time a session may be resumed, from the cache or from a
+     * ticket.
+     * <p>
+     * <i>Default value is the JDK's, 86400 seconds</i>
+     * </p>
+     *
+     * @param seconds the timeout in seconds, 0 for no limit
+     * @return this
+     * @throws IllegalArgumentException if seconds is negative
+     * @since 1.1
+     */
+    public Tls sessionTimeout(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("seconds < 0");
+        }
+
+        sessions().setSessionTimeout(seconds);
+        return this;
+    }
+
+    /**
+     * Get the server session cache.
+     *
+     * @return the session context of the server
+     * @since 1.1
+     */
+    public SSLSessionContext sessions() {
+        return context.getServerSessionContext();
+    }
+
+    /**
+     * Create the engine of an accepted connection.
+     *
+     * @return a server mode engine
+     * @since 1.1
+     */
+    SSLEngine createEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+
+        SSLParameters params = engine.getSSLParameters();
+        params.setProtocols(protocols);
+        if (null != cipherSuites) {
+            params.setCipherSuites(cipherSuites);
+            params.setUseCipherSuitesOrder(true);
+        }
+
+        engine.setSSLParameters(params);
+        return engine;
+    }
+
+    /**
+     * Validate names against the supported ones.
+     *
+     * @param names the names
+     * @param supported the supported names
+     * @return a copy of names
+     * @throws IllegalArgumentException if a name is not supported or none
+     * is given
+     * @since 1.1
+     */
+    private static String[] check(String[] names, String[] supported) {
+        if (0 == names.length) {
+            throw new IllegalArgumentException("No name");
+        }
+
+        List<String> all = Arrays.asList(supported);
+        for (String name : names) {
+            if (!all.contains(name)) {
+                throw new IllegalArgumentException("Unsupported: " + name);
+            }
+        }
+
+        return names.clone();
+    }
+}
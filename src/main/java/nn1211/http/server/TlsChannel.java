@@ -0,0 +1,493 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import nn1211.io.BufferPool;
+
+/**
+ * A TLS connection over a socket channel, in either mode.
+ * <p>
+ * Reads and writes carry application bytes and run the handshake as
+ * needed. In non-blocking mode, they return 0 when the socket cannot make
+ * progress; records a write could not send are sent first by the next read
+ * or write, and {@link #flush()} tells when they are. A read unwraps as many
+ * received records as fit, so decrypted bytes may be left in this channel
+ * rather than in the socket: {@link #hasBuffered()} tells when another read
+ * is due without waiting for the selector.
+ * </p>
+ * <p>
+ * Its three buffers, for received records, records to send and decrypted
+ * bytes, come from the shared {@link BufferPool} when needed and go back as
+ * soon as they are empty. It is used by one thread at a time, the owner of
+ * its connection. Handshake tasks, such as signing, run on that thread.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    /**
+     * Size of a TLS record header.
+     *
+     * @since 1.1
+     */
+    private static final int RECORD_HEADER = 5;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final SocketChannel channel;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final SSLEngine engine;
+
+    /**
+     * Received records, in write mode, or null if none.
+     *
+     * @since 1.1
+     */
+    private ByteBuffer netIn;
+
+    /**
+     * Records to send, in write mode, or null if none.
+     *
+     * @since 1.1
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Decrypted bytes not read yet, in write mode, or null if none.
+     *
+     * @since 1.1
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * Create a channel. The handshake starts with the first read.
+     *
+     * @param channel an accepted channel
+     * @param engine a server mode engine
+     * @since 1.1
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+    }
+
+    /**
+     * Read decrypted bytes. In blocking mode, it waits until at least one
+     * byte is read.
+     *
+     * @param dst the destination
+     * @return the number of bytes read, possibly 0 in non-blocking mode, or
+     * -1 once the client closed the connection
+     * @throws IOException I/O exception or TLS failure
+     * @since 1.1
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int total = 0;
+        while (true) {
+            total += drainApp(dst);
+            if (!dst.hasRemaining() || !flush()) {
+                return total;
+            }
+
+            if (engine.isInboundDone()) {
+                // After the client's close_notify
+                return 0 == total ? -1 : total;
+            }
+
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    continue;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    continue;
+                default:
+            }
+
+            if (null != netIn && netIn.position() > 0) {
+                if (null == appIn) {
+                    appIn = acquire(engine.getSession()
+                            .getApplicationBufferSize());
+                }
+
+                netIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                }
+
+                switch (result.getStatus()) {
+                    case OK:
+                        continue;
+                    case CLOSED:
+                        // A close_notify, answered when the connection is
+                        // closed once the responses are written
+                        continue;
+                    case BUFFER_OVERFLOW:
+                        // Empty, yet too small for the session
+                        appIn = grow(appIn, engine.getSession()
+                                .getApplicationBufferSize());
+                        continue;
+                    default:
+                        // A partial record: read the rest
+                        if (!netIn.hasRemaining()) {
+                            netIn = grow(netIn, engine.getSession()
+                                    .getPacketBufferSize());
+                        }
+                }
+            }
+
+            if (total > 0) {
+                releaseIn();
+                return total;
+            }
+
+            if (null == netIn) {
+                netIn = acquire(engine.getSession().getPacketBufferSize());
+            }
+
+            int n = channel.read(netIn);
+            if (n < 0) {
+                releaseIn();
+                try {
+                    engine.closeInbound();
+                } catch (SSLException sslEx) {
+                    // Closed without close_notify, which HTTP tolerates
+                }
+
+                return -1;
+            } else if (0 == n) {
+                releaseIn();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Encrypt and send bytes, after the records not sent yet.
+     *
+     * @param src the bytes
+     * @return the number of bytes consumed
+     * @throws IOException I/O exception or TLS failure
+     * @since 1.1
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypt and send bytes, after the records not sent yet. In
+     * non-blocking mode, it stops consuming bytes once the socket does not
+     * take a record whole; called with no bytes, it only sends the records
+     * left.
+     *
+     * @param srcs the bytes
+     * @param offset the first buffer
+     * @param length the number of buffers
+     * @return the number of bytes consumed
+     * @throws IOException I/O exception or TLS failure
+     * @since 1.1
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+
+        long consumed = 0;
+        while (flush()) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    continue;
+                case NEED_UNWRAP:
+                    // Renegotiation is left to the next read
+                    return consumed;
+                default:
+            }
+
+            boolean hasRemaining = false;
+            for (int i = offset; i < offset + length; i++) {
+                hasRemaining |= srcs[i].hasRemaining();
+            }
+
+            if (!hasRemaining) {
+                return consumed;
+            }
+
+            consumed += wrap(srcs, offset, length);
+        }
+
+        return consumed;
+    }
+
+    /**
+     * Send the records left by a previous call.
+     *
+     * @return true if none is left
+     * @throws IOException I/O exception
+     * @since 1.1
+     */
+    boolean flush() throws IOException {
+        if (null == netOut) {
+            return true;
+        }
+
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (0 == channel.write(netOut)) {
+                    return false;
+                }
+            }
+        } finally {
+            netOut.compact();
+        }
+
+        BufferPool.shared().release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    /**
+     * Determine whether bytes are left to read from this channel rather
+     * than the socket: decrypted bytes, or a whole record.
+     *
+     * @return true if a read would return bytes without the socket
+     * @since 1.1
+     */
+    boolean hasBuffered() {
+        if (null != appIn) {
+            return true;
+        }
+
+        if (null == netIn || netIn.position() < RECORD_HEADER) {
+            return false;
+        }
+
+        int length = (netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff;
+        return netIn.position() >= RECORD_HEADER + length;
+    }
+
+    /**
+     * Send a close_notify if the socket takes it at once. The channel is
+     * left open.
+     *
+     * @since 1.1
+     */
+    void closeOutbound() {
+        try {
+            if (!engine.isOutboundDone() && !channel.isBlocking()) {
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flush();
+            }
+        } catch (IOException ioEx) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Release the buffers of this channel, dropping their bytes.
+     *
+     * @since 1.1
+     */
+    void release() {
+        if (null != netOut) {
+            BufferPool.shared().release(netOut);
+            netOut = null;
+        }
+
+        if (null != netIn) {
+            BufferPool.shared().release(netIn);
+            netIn = null;
+        }
+
+        if (null != appIn) {
+            BufferPool.shared().release(appIn);
+            appIn = null;
+        }
+    }
+
+    /**
+     *
+     * @since 1.1
+     */
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Close the socket, after a close_notify if the socket takes it at
+     * once.
+     *
+     * @since 1.1
+     */
+    @Override
+    public void close() throws IOException {
+        closeOutbound();
+        channel.close();
+    }
+
+    /**
+     * Encrypt a record of bytes into the records to send, and try to send
+     * them.
+     *
+     * @param srcs the bytes
+     * @param offset the first buffer
+     * @param length the number of buffers
+     * @return the number of bytes consumed
+     * @throws IOException I/O exception or TLS failure
+     * @since 1.1
+     */
+    private int wrap(ByteBuffer[] srcs, int offset, int length)
+            throws IOException {
+
+        if (null == netOut) {
+            netOut = acquire(engine.getSession().getPacketBufferSize());
+        }
+
+        SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+        switch (result.getStatus()) {
+            case CLOSED:
+                if (0 == result.bytesProduced()) {
+                    throw new ClosedChannelException();
+                }
+                break;
+            case BUFFER_OVERFLOW:
+                if (!flush()) {
+                    return 0;
+                }
+
+                netOut = acquire(engine.getSession().getPacketBufferSize());
+                break;
+            default:
+        }
+
+        flush();
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Produce a handshake or closure record.
+     *
+     * @param src an empty buffer
+     * @throws IOException I/O exception or TLS failure
+     * @since 1.1
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        wrap(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    /**
+     * Run the delegated tasks of the handshake.
+     *
+     * @since 1.1
+     */
+    private void runTasks() {
+        Runnable task;
+        while (null != (task = engine.getDelegatedTask())) {
+            task.run();
+        }
+    }
+
+    /**
+     * Move decrypted bytes to a destination.
+     *
+     * @param dst the destination
+     * @return the number of bytes moved
+     * @since 1.1
+     */
+    private int drainApp(ByteBuffer dst) {
+        if (null == appIn) {
+            return 0;
+        }
+
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + n);
+        dst.put(appIn);
+        appIn.limit(limit);
+        appIn.compact();
+
+        if (0 == appIn.position()) {
+            BufferPool.shared().release(appIn);
+            appIn = null;
+        }
+
+        return n;
+    }
+
+    /**
+     * Release the buffer of received records if empty.
+     *
+     * @since 1.1
+     */
+    private void releaseIn() {
+        if (null != netIn && 0 == netIn.position()) {
+            BufferPool.shared().release(netIn);
+            netIn = null;
+        }
+    }
+
+    /**
+     * Acquire a buffer from the pool.
+     *
+     * @param capacity the minimum capacity
+     * @return a cleared buffer
+     * @since 1.1
+     */
+    private static ByteBuffer acquire(int capacity) {
+        return BufferPool.shared().acquire(capacity);
+    }
+
+    /**
+     * Replace a buffer with a larger one, keeping its bytes.
+     *
+     * @param buf a buffer in write mode
+     * @param capacity the minimum capacity
+     * @return the new buffer
+     * @since 1.1
+     */
+    private static ByteBuffer grow(ByteBuffer buf, int capacity) {
+        ByteBuffer grown = acquire(Math.max(capacity, buf.capacity() + 1));
+        buf.flip();
+        grown.put(buf);
+        BufferPool.shared().release(buf);
+        return grown;
+    }
+}
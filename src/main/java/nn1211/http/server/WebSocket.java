@@ -0,0 +1,967 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import nn1211.http.Content.TextContent;
+import static nn1211.http.HttpHeader.*;
+
+/**
+ * A WebSocket of a {@link HttpServer}, as of RFC 6455.
+ * <p>
+ * A GET request of a route registered with
+ * {@link HttpServer#registerWebSocket(String, WebSocketHandler)} and
+ * carrying a valid handshake is answered with a 101 response, after which
+ * its connection carries frames. Fragmented messages are reassembled up to
+ * {@link HttpServer#maxBodySize()} bytes and handed whole to the
+ * {@link WebSocketHandler}; pings are answered with pongs. No extension nor
+ * subprotocol is negotiated.
+ * </p>
+ * <p>
+ * An idle socket holds no buffer: {@link HttpServer.Engine#NIO} reads
+ * frames into a buffer of the shared {@link nn1211.io.BufferPool} released
+ * as soon as its frames are handled, and sent frames are held only until
+ * written. {@link HttpServer.Engine#BLOCKING} keeps a thread and a buffer
+ * per socket instead. Idle sockets have no timeout; a handler that needs
+ * one pings its clients.
+ * </p>
+ * <p>
+ * Sending is thread-safe: each message is sent as a single frame, after
+ * the frames sent before it.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class WebSocket {
+
+    /**
+     * 1000 status code, a normal closure.
+     *
+     * @since 1.1
+     */
+    public static final int NORMAL_CLOSURE = 1000;
+
+    /**
+     * 1001 status code, sent when the server drains.
+     *
+     * @since 1.1
+     */
+    public static final int GOING_AWAY = 1001;
+
+    /**
+     * 1002 status code, sent for an invalid frame.
+     *
+     * @since 1.1
+     */
+    public static final int PROTOCOL_ERROR = 1002;
+
+    /**
+     * 1003 status code.
+     *
+     * @since 1.1
+     */
+    public static final int UNSUPPORTED_DATA = 1003;
+
+    /**
+     * 1005 status code, reported for a close frame without code. It is
+     * never sent.
+     *
+     * @since 1.1
+     */
+    public static final int NO_STATUS = 1005;
+
+    /**
+     * 1006 status code, reported when the connection is lost without a
+     * close frame. It is never sent.
+     *
+     * @since 1.1
+     */
+    public static final int ABNORMAL_CLOSURE = 1006;
+
+    /**
+     * 1007 status code, sent for a text message that is not valid UTF-8.
+     *
+     * @since 1.1
+     */
+    public static final int INVALID_PAYLOAD = 1007;
+
+    /**
+     * 1008 status code.
+     *
+     * @since 1.1
+     */
+    public static final int POLICY_VIOLATION = 1008;
+
+    /**
+     * 1009 status code, sent for a message larger than the maximum size.
+     *
+     * @since 1.1
+     */
+    public static final int MESSAGE_TOO_BIG = 1009;
+
+    /**
+     * 1011 status code, sent when a handler fails.
+     *
+     * @since 1.1
+     */
+    public static final int INTERNAL_ERROR = 1011;
+
+    /**
+     * The GUID appended to the key of a handshake.
+     *
+     * @since 1.1
+     */
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * The only version of the protocol.
+     *
+     * @since 1.1
+     */
+    private static final String VERSION = "13";
+
+    /**
+     * websocket
+     *
+     * @since 1.1
+     */
+    private static final String WEBSOCKET = "websocket";
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int CONTINUATION = 0x0;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int TEXT = 0x1;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int BINARY = 0x2;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int CLOSE = 0x8;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int PING = 0x9;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int PONG = 0xa;
+
+    /**
+     * Maximum payload of a control frame.
+     *
+     * @since 1.1
+     */
+    private static final int MAX_CONTROL = 125;
+
+    /**
+     * Before the response of the handshake is sent.
+     *
+     * @since 1.1
+     */
+    private static final int CONNECTING = 0;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int OPEN = 1;
+
+    /**
+     * After the server sent its close frame, until the client's.
+     *
+     * @since 1.1
+     */
+    private static final int CLOSING = 2;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private static final int CLOSED = 3;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final HttpServer server;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final WebSocketHandler handler;
+
+    /**
+     * Maximum size of a message.
+     *
+     * @since 1.1
+     */
+    private final int maxMessageSize;
+
+    /**
+     * The engine's side of the connection, set once open.
+     *
+     * @since 1.1
+     */
+    private Transport transport;
+
+    /**
+     * The state of this socket, guarded by this socket.
+     *
+     * @since 1.1
+     */
+    private int state = CONNECTING;
+
+    /**
+     * Closes the connection if the client does not answer the close frame
+     * of the server, or null.
+     *
+     * @since 1.1
+     */
+    private TimerWheel.Timeout closeTimeout;
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile Object attachment;
+
+    /**
+     * The fragments of the current message, or null if none.
+     *
+     * @since 1.1
+     */
+    private byte[] message;
+
+    /**
+     * Number of bytes of {@link #message}.
+     *
+     * @since 1.1
+     */
+    private int messageLength = 0;
+
+    /**
+     * The opcode of the current fragmented message, or
+     * {@link #CONTINUATION} if none.
+     *
+     * @since 1.1
+     */
+    private int messageType = CONTINUATION;
+
+    /**
+     * Create a socket of an accepted handshake.
+     *
+     * @param server the owner
+     * @param handler the handler of the route
+     * @since 1.1
+     */
+    private WebSocket(HttpServer server, WebSocketHandler handler) {
+        this.server = server;
+        this.handler = handler;
+        maxMessageSize = server.maxBodySize();
+    }
+
+    /**
+     * Answer the handshake of a request. A valid one is answered with a 101
+     * response carrying a new socket, served by the engine once the
+     * response is written.
+     *
+     * @param server the owner
+     * @param req a request of the route
+     * @param handler the handler of the route
+     * @return a 101 response, or a 426 or 400 response if the request is not
+     * a valid handshake
+     * @throws IOException I/O exception of the handler
+     * @since 1.1
+     */
+    static ServerResponse upgrade(HttpServer server, ServerRequest req,
+            WebSocketHandler handler) throws IOException {
+
+        // Over HTTP/1.1 only, not on a HTTP/2 stream
+        if (!(req instanceof ServerRequest.BufferRequest)
+                || !((ServerRequest.BufferRequest) req).isHttp11()
+                || ((ServerRequest.BufferRequest) req).hasBody()) {
+            return reply(ServerResponse.StatusCode.BAD_REQUEST);
+        }
+
+        if (!hasToken(req.header(UPGRADE), WEBSOCKET)
+                || !hasToken(req.header(CONNECTION), "upgrade")) {
+            return reply(ServerResponse.StatusCode.UPGRADE_REQUIRED)
+                    .header(UPGRADE, WEBSOCKET);
+        }
+
+        if (!VERSION.equals(trim(req.header(SEC_WEBSOCKET_VERSION)))) {
+            return reply(ServerResponse.StatusCode.UPGRADE_REQUIRED)
+                    .header(SEC_WEBSOCKET_VERSION, VERSION);
+        }
+
+        String key = trim(req.header(SEC_WEBSOCKET_KEY));
+        try {
+            if (null == key || 16 != Base64.getDecoder().decode(key).length) {
+                return reply(ServerResponse.StatusCode.BAD_REQUEST);
+            }
+        } catch (IllegalArgumentException argEx) {
+            return reply(ServerResponse.StatusCode.BAD_REQUEST);
+        }
+
+        WebSocket socket = new WebSocket(server, handler);
+        handler.onUpgrade(socket, req);
+
+        return ServerResponse.switchingProtocols(socket)
+                .header(UPGRADE, WEBSOCKET)
+                .header(SEC_WEBSOCKET_ACCEPT, accept(key));
+    }
+
+    /**
+     * Send a text message.
+     *
+     * @param text the message
+     * @return true if sent, false if this socket is not open
+     * @since 1.1
+     */
+    public boolean send(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return send(TEXT, payload, payload.length);
+    }
+
+    /**
+     * Send a binary message.
+     *
+     * @param data the message
+     * @return true if sent, false if this socket is not open
+     * @since 1.1
+     */
+    public boolean send(byte[] data) {
+        return send(BINARY, data, data.length);
+    }
+
+    /**
+     * Send a ping. The client's pong is ignored.
+     *
+     * @param data the payload, at most 125 bytes
+     * @return true if sent, false if this socket is not open
+     * @throws IllegalArgumentException if data is too long
+     * @since 1.1
+     */
+    public boolean ping(byte[] data) {
+        if (data.length > MAX_CONTROL) {
+            throw new IllegalArgumentException("data.length > 125");
+        }
+
+        return send(PING, data, data.length);
+    }
+
+    /**
+     * Start the closing handshake with a normal closure.
+     *
+     * @since 1.1
+     */
+    public void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Start the closing handshake: send a close frame and close the
+     * connection once the client answers, or after the write timeout. No
+     * message is sent afterwards, while the client's are still handled.
+     *
+     * @param code a status code, from 1000 to 1003, 1007 to 1011 or 3000 to
+     * 4999
+     * @param reason the reason, at most 123 bytes in UTF-8
+     * @throws IllegalArgumentException if code or reason are invalid
+     * @since 1.1
+     */
+    public void close(int code, String reason) {
+        byte[] bytes = reason.getBytes(StandardCharsets.UTF_8);
+        if (!isValid(code)) {
+            throw new IllegalArgumentException("Invalid code: " + code);
+        }
+
+        if (bytes.length > MAX_CONTROL - 2) {
+            throw new IllegalArgumentException("reason longer than 123");
+        }
+
+        synchronized (this) {
+            if (OPEN != state) {
+                return;
+            }
+
+            state = CLOSING;
+            transport.send(closeFrame(code, bytes));
+
+            Transport closing = transport;
+            closeTimeout = server.timer().timeout(closing::close);
+            closeTimeout.schedule(server.writeTimeout());
+        }
+    }
+
+    /**
+     * Determine whether messages may be sent.
+     *
+     * @return true once open, until the closing handshake starts
+     * @since 1.1
+     */
+    public synchronized boolean isOpen() {
+        return OPEN == state;
+    }
+
+    /**
+     * Attach an object to this socket, such as the state of its session.
+     *
+     * @param value the object, or null
+     * @since 1.1
+     */
+    public void attach(Object value) {
+        attachment = value;
+    }
+
+    /**
+     * Get the attached object.
+     *
+     * @return the attached object, or null
+     * @since 1.1
+     */
+    public Object attachment() {
+        return attachment;
+    }
+
+    /**
+     * Open this socket once the response of its handshake is written. It
+     * runs on the thread reading the connection.
+     *
+     * @param transport the engine's side of the connection
+     * @since 1.1
+     */
+    void open(Transport transport) {
+        synchronized (this) {
+            // Unless its connection was closed meanwhile
+            if (CONNECTING != state) {
+                return;
+            }
+
+            this.transport = transport;
+            state = OPEN;
+
+            // Deregistered once closed, which waits for this lock
+            server.webSocketOpened(this);
+        }
+
+        try {
+            handler.onOpen(this);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace(System.err);
+            fail(INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * Handle the whole frames received by the connection. It runs on the
+     * thread reading the connection.
+     *
+     * @param in the connection buffer in write mode, compacted on return
+     * @return the number of bytes the buffer must hold for the next frame,
+     * or -1 once this socket is closed
+     * @since 1.1
+     */
+    int receive(ByteBuffer in) {
+        in.flip();
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (CLOSED == state) {
+                        in.position(in.limit());
+                        return -1;
+                    }
+                }
+
+                int need = next(in);
+                if (need > 0) {
+                    return need;
+                }
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    /**
+     * Report that the connection is closed. An open socket is reported
+     * closed abnormally to its handler, unless closed already.
+     *
+     * @since 1.1
+     */
+    void closed() {
+        synchronized (this) {
+            if (CLOSED == state) {
+                return;
+            }
+
+            boolean isOpen = CONNECTING != state;
+            terminate();
+            if (!isOpen) {
+                return;
+            }
+        }
+
+        notifyClosed(ABNORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Handle the frame starting at the position of a buffer.
+     *
+     * @param in the connection buffer in read mode
+     * @return 0 if the frame was handled and consumed, or else the number
+     * of bytes of the incomplete frame
+     * @since 1.1
+     */
+    private int next(ByteBuffer in) {
+        int p = in.position();
+        int available = in.remaining();
+        if (available < 2) {
+            return 2;
+        }
+
+        int b0 = in.get(p);
+        int b1 = in.get(p + 1);
+        boolean isFin = 0 != (b0 & 0x80);
+        int opcode = b0 & 0x0f;
+        long length = b1 & 0x7f;
+
+        // No extension sets the reserved bits, client frames are masked
+        if (0 != (b0 & 0x70) || 0 == (b1 & 0x80)) {
+            fail(PROTOCOL_ERROR);
+            return 0;
+        }
+
+        int header = 126 == length ? 8 : 127 == length ? 14 : 6;
+        if (available < header) {
+            return header;
+        }
+
+        if (126 == length) {
+            length = in.getShort(p + 2) & 0xffff;
+        } else if (127 == length) {
+            length = in.getLong(p + 2);
+        }
+
+        if (opcode >= CLOSE) {
+            if (!isFin || length > MAX_CONTROL || opcode > PONG) {
+                fail(PROTOCOL_ERROR);
+                return 0;
+            }
+        } else if (opcode > BINARY
+                || (CONTINUATION == opcode) == (CONTINUATION == messageType)) {
+            // A continuation without message, or a message interleaved
+            // with the fragments of another
+            fail(PROTOCOL_ERROR);
+            return 0;
+        } else if (length < 0 || length > maxMessageSize - messageLength) {
+            fail(MESSAGE_TOO_BIG);
+            return 0;
+        }
+
+        int total = header + (int) length;
+        if (available < total) {
+            return total;
+        }
+
+        byte[] mask = new byte[4];
+        in.position(p + header - 4);
+        in.get(mask);
+
+        byte[] payload = new byte[(int) length];
+        in.get(payload);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] ^= mask[i & 3];
+        }
+
+        switch (opcode) {
+            case TEXT:
+            case BINARY:
+                if (isFin) {
+                    deliver(opcode, payload);
+                } else {
+                    messageType = opcode;
+                    message = payload;
+                    messageLength = payload.length;
+                }
+                break;
+            case CONTINUATION:
+                append(payload);
+                if (isFin) {
+                    byte[] whole = messageLength == message.length ? message
+                            : Arrays.copyOf(message, messageLength);
+                    int type = messageType;
+                    message = null;
+                    messageLength = 0;
+                    messageType = CONTINUATION;
+                    deliver(type, whole);
+                }
+                break;
+            case PING:
+                send(PONG, payload, payload.length);
+                break;
+            case CLOSE:
+                closeReceived(payload);
+                break;
+            default:
+                // A pong
+        }
+
+        return 0;
+    }
+
+    /**
+     * Append a fragment to the current message.
+     *
+     * @param fragment the fragment
+     * @since 1.1
+     */
+    private void append(byte[] fragment) {
+        int length = messageLength + fragment.length;
+        if (length > message.length) {
+            message = Arrays.copyOf(message, Math.min(maxMessageSize,
+                    Math.max(length, message.length * 2)));
+        }
+
+        System.arraycopy(fragment, 0, message, messageLength,
+                fragment.length);
+        messageLength = length;
+    }
+
+    /**
+     * Hand a whole message to the handler.
+     *
+     * @param type {@link #TEXT} or {@link #BINARY}
+     * @param data the message
+     * @since 1.1
+     */
+    private void deliver(int type, byte[] data) {
+        try {
+            if (TEXT == type) {
+                handler.onText(this, decode(data, 0));
+            } else {
+                handler.onBinary(this, data);
+            }
+        } catch (CharacterCodingException codingEx) {
+            fail(INVALID_PAYLOAD);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace(System.err);
+            fail(INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * Handle the close frame of the client: answer it unless it answers
+     * the server's, then close the connection.
+     *
+     * @param payload the frame's payload
+     * @since 1.1
+     */
+    private void closeReceived(byte[] payload) {
+        int code = NO_STATUS;
+        String reason = "";
+        if (1 == payload.length) {
+            fail(PROTOCOL_ERROR);
+            return;
+        }
+
+        if (payload.length > 1) {
+            code = (payload[0] & 0xff) << 8 | payload[1] & 0xff;
+            if (!isValid(code)) {
+                fail(PROTOCOL_ERROR);
+                return;
+            }
+
+            try {
+                reason = decode(payload, 2);
+            } catch (CharacterCodingException codingEx) {
+                fail(INVALID_PAYLOAD);
+                return;
+            }
+        }
+
+        synchronized (this) {
+            if (CLOSED == state) {
+                return;
+            }
+
+            if (OPEN == state) {
+                transport.send(closeFrame(code, new byte[0]));
+            }
+
+            terminate();
+        }
+
+        notifyClosed(code, reason);
+    }
+
+    /**
+     * Fail this socket: send a close frame unless sent already, then close
+     * the connection.
+     *
+     * @param code the status code
+     * @since 1.1
+     */
+    private void fail(int code) {
+        synchronized (this) {
+            if (CLOSED == state) {
+                return;
+            }
+
+            if (OPEN == state) {
+                transport.send(closeFrame(code, new byte[0]));
+            }
+
+            terminate();
+        }
+
+        notifyClosed(code, "");
+    }
+
+    /**
+     * Mark this socket closed and close its connection once the frames
+     * sent are written. It runs with the lock of this socket held.
+     *
+     * @since 1.1
+     */
+    private void terminate() {
+        if (null != closeTimeout) {
+            closeTimeout.cancel();
+        }
+
+        if (null != transport) {
+            transport.close();
+        }
+
+        state = CLOSED;
+    }
+
+    /**
+     * Report the closure of an open socket to the server and the handler.
+     *
+     * @param code the status code
+     * @param reason the reason
+     * @since 1.1
+     */
+    private void notifyClosed(int code, String reason) {
+        server.webSocketClosed(this);
+        try {
+            handler.onClose(this, code, reason);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Send a frame if open.
+     *
+     * @param opcode the frame's opcode
+     * @param payload the payload
+     * @param length the payload's length
+     * @return true if sent, false if this socket is not open
+     * @since 1.1
+     */
+    private boolean send(int opcode, byte[] payload, int length) {
+        ByteBuffer frame = frame(opcode, payload, length);
+        synchronized (this) {
+            if (OPEN != state) {
+                return false;
+            }
+
+            transport.send(frame);
+        }
+
+        return true;
+    }
+
+    /**
+     * Encode a close frame.
+     *
+     * @param code the status code, or {@link #NO_STATUS} for none
+     * @param reason the reason in UTF-8
+     * @return the frame
+     * @since 1.1
+     */
+    private static ByteBuffer closeFrame(int code, byte[] reason) {
+        if (NO_STATUS == code) {
+            return frame(CLOSE, reason, 0);
+        }
+
+        byte[] payload = new byte[2 + reason.length];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reason, 0, payload, 2, reason.length);
+        return frame(CLOSE, payload, payload.length);
+    }
+
+    /**
+     * Encode an unmasked, unfragmented frame.
+     *
+     * @param opcode the frame's opcode
+     * @param payload the payload
+     * @param length the payload's length
+     * @return the frame, ready to be written
+     * @since 1.1
+     */
+    private static ByteBuffer frame(int opcode, byte[] payload, int length) {
+        int header = length <= MAX_CONTROL ? 2 : length <= 0xffff ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte) (0x80 | opcode));
+        if (2 == header) {
+            frame.put((byte) length);
+        } else if (4 == header) {
+            frame.put((byte) 126);
+            frame.putShort((short) length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(length);
+        }
+
+        frame.put(payload, 0, length);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Determine whether a status code may be sent in a close frame.
+     *
+     * @param code a status code
+     * @return true if defined by RFC 6455 or private, false otherwise
+     * @since 1.1
+     */
+    private static boolean isValid(int code) {
+        return (code >= NORMAL_CLOSURE && code <= UNSUPPORTED_DATA)
+                || (code >= INVALID_PAYLOAD && code <= INTERNAL_ERROR)
+                || (code >= 3000 && code <= 4999);
+    }
+
+    /**
+     * Decode strict UTF-8.
+     *
+     * @param data the bytes
+     * @param off the offset of the text
+     * @return the text
+     * @throws CharacterCodingException if the bytes are not valid UTF-8
+     * @since 1.1
+     */
+    private static String decode(byte[] data, int off)
+            throws CharacterCodingException {
+
+        return StandardCharsets.UTF_8.newDecoder()
+                .decode(ByteBuffer.wrap(data, off, data.length - off))
+                .toString();
+    }
+
+    /**
+     * Compute the accept key of a handshake.
+     *
+     * @param key the client's key
+     * @return the value of the Sec-WebSocket-Accept header
+     * @since 1.1
+     */
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest(
+                    (key + GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException algEx) {
+            // Required of every JDK
+            throw new IllegalStateException(algEx);
+        }
+    }
+
+    /**
+     * Answer an invalid handshake.
+     *
+     * @param statusCode a 400 or 426 status code
+     * @return the response
+     * @since 1.1
+     */
+    private static ServerResponse reply(ServerResponse.StatusCode statusCode) {
+        return new ServerResponse.DefaultResponse(statusCode,
+                TextContent.from(Integer.toString(statusCode.asInt())));
+    }
+
+    /**
+     * Determine whether a comma-separated header value holds a token,
+     * ignoring case.
+     *
+     * @param value the header's value, or null
+     * @param token the token
+     * @return true if found, false otherwise
+     * @since 1.1
+     */
+    private static boolean hasToken(String value, String token) {
+        if (null == value) {
+            return false;
+        }
+
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Trim a header value.
+     *
+     * @param value the value, or null
+     * @return the trimmed value, or null
+     * @since 1.1
+     */
+    private static String trim(String value) {
+        return null == value ? null : value.trim();
+    }
+
+    /**
+     * The engine's side of the connection of a socket.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    interface Transport {
+
+        /**
+         * Send a frame after the ones sent before, or queue it. It may be
+         * called from any thread, with the lock of the socket held.
+         *
+         * @param frame an encoded frame
+         * @since 1.1
+         */
+        void send(ByteBuffer frame);
+
+        /**
+         * Close the connection once the queued frames are written.
+         *
+         * @since 1.1
+         */
+        void close();
+    }
+}
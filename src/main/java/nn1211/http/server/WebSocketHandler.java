@@ -0,0 +1,82 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+
+/**
+ * A handler for the messages of the WebSockets of a route, registered with
+ * {@link HttpServer#registerWebSocket(String, WebSocketHandler)}.
+ * <p>
+ * The server accepts the handshake of a valid upgrade request, then calls
+ * this handler on the thread reading the socket: an event loop of
+ * {@link HttpServer.Engine#NIO}, or the connection's thread of
+ * {@link HttpServer.Engine#BLOCKING}. A callback must not block; a long task
+ * is handed over to another thread, which may answer with
+ * {@link WebSocket#send(String)}. Pings are answered by the server.
+ * </p>
+ * <p>
+ * One handler serves all the sockets of its route. The state of a socket
+ * is kept in its {@link WebSocket#attach(Object) attachment}.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public interface WebSocketHandler {
+
+    /**
+     * Inspect the request of an accepted handshake, such as its path
+     * parameters, before the socket is open. It runs on the thread serving
+     * the request, which stays valid until this method returns.
+     *
+     * @param socket the socket, not open yet
+     * @param req the upgrade request
+     * @throws IOException I/O exception, answered with a 500 response
+     * @since 1.1
+     */
+    default void onUpgrade(WebSocket socket, ServerRequest req)
+            throws IOException {
+    }
+
+    /**
+     * Start serving an open socket, once the handshake's response is sent.
+     *
+     * @param socket the socket
+     * @since 1.1
+     */
+    default void onOpen(WebSocket socket) {
+    }
+
+    /**
+     * Handle a text message, once all its fragments are received.
+     *
+     * @param socket the socket
+     * @param message the message
+     * @since 1.1
+     */
+    default void onText(WebSocket socket, String message) {
+    }
+
+    /**
+     * Handle a binary message, once all its fragments are received.
+     *
+     * @param socket the socket
+     * @param message the message, owned by the handler
+     * @since 1.1
+     */
+    default void onBinary(WebSocket socket, byte[] message) {
+    }
+
+    /**
+     * Handle the closure of an open socket. It is called once, either when
+     * the client's close frame is received, when the server fails the
+     * socket, or with {@link WebSocket#ABNORMAL_CLOSURE} when the connection
+     * is lost or the server stops.
+     *
+     * @param socket the socket
+     * @param code the status code of the closure
+     * @param reason the reason of the closure, possibly empty
+     * @since 1.1
+     */
+    default void onClose(WebSocket socket, int code, String reason) {
+    }
+}
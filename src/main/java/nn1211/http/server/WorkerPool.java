@@ -0,0 +1,307 @@
+package nn1211.http.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import nn1211.io.BufferPool;
+
+/**
+ * An execution mode for request handling.
+ * <p>
+ * A pool runs handlers and publishes its queue depth, in-flight and
+ * rejection counts so that it can be sized under load. A task refused by
+ * {@link #execute(Runnable)} is answered with a 503 response by the server.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public abstract class WorkerPool {
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Return a pool running each task on the calling thread.
+     *
+     * @return a pool running each task on the calling thread
+     * @since 1.1
+     */
+    public static WorkerPool direct() {
+        return new DirectPool();
+    }
+
+    /**
+     * Return a pool starting a new platform thread for each task.
+     *
+     * @return a pool starting a new platform thread for each task
+     * @since 1.1
+     */
+    public static WorkerPool unbounded() {
+        return new ThreadPerTaskPool();
+    }
+
+    /**
+     * Return a pool with a fixed number of threads and a bounded queue.
+     * Tasks exceeding the queue are rejected.
+     *
+     * @param threads number of worker threads
+     * @param queueSize maximum number of waiting tasks
+     * @return a bounded pool
+     * @throws IllegalArgumentException if threads or queueSize is less than 1
+     * @since 1.1
+     */
+    public static WorkerPool bounded(int threads, int queueSize) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads < 1 or queueSize < 1");
+        }
+
+        return new BoundedPool(threads, queueSize);
+    }
+
+    /**
+     * Return a pool starting a new virtual thread for each task, or
+     * {@link #unbounded()} when the running JDK has no virtual threads.
+     *
+     * @return a virtual-thread-per-task pool if supported
+     * @since 1.1
+     */
+    public static WorkerPool virtual() {
+        try {
+            Method factory = java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+
+            return new VirtualPool((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException ex) {
+            return unbounded();
+        }
+    }
+
+    /**
+     * Submit a task.
+     *
+     * @param task a task
+     * @return true if accepted, false if rejected
+     * @since 1.1
+     */
+    public final boolean execute(Runnable task) {
+        inFlight.incrementAndGet();
+        try {
+            submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+
+            return true;
+        } catch (RejectedExecutionException ex) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Get the number of accepted tasks that have not completed yet.
+     *
+     * @return the number of in-flight tasks
+     * @since 1.1
+     */
+    public final int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the number of tasks waiting for a thread.
+     * <p>
+     * <i>Default value is 0</i>
+     * </p>
+     *
+     * @return the number of waiting tasks
+     * @since 1.1
+     */
+    public int queueDepth() {
+        return 0;
+    }
+
+    /**
+     * Get the number of rejected tasks since this pool was created.
+     *
+     * @return the number of rejected tasks
+     * @since 1.1
+     */
+    public final long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Stop accepting tasks and release the pool's threads once idle.
+     *
+     * @since 1.1
+     */
+    public void shutdown() {
+    }
+
+    /**
+     * Hand a task to the underlying executor.
+     *
+     * @param task a task
+     * @throws RejectedExecutionException if the task can not be accepted
+     * @since 1.1
+     */
+    abstract void submit(Runnable task);
+
+    /**
+     * Run each task on the calling thread.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class DirectPool extends WorkerPool {
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        void submit(Runnable task) {
+            task.run();
+        }
+    }
+
+    /**
+     * Start a new platform thread for each task.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class ThreadPerTaskPool extends WorkerPool {
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        void submit(Runnable task) {
+            new Thread(task).start();
+        }
+    }
+
+    /**
+     * A fixed number of threads with a bounded queue.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class BoundedPool extends WorkerPool {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * Create a pool of given size.
+         *
+         * @param threads number of worker threads
+         * @param queueSize maximum number of waiting tasks
+         * @since 1.1
+         */
+        BoundedPool(int threads, int queueSize) {
+            AtomicInteger seq = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    r -> new Thread(BufferPool.shared().cached(r),
+                            "http-worker-" + seq.incrementAndGet()),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public int queueDepth() {
+            return executor.getQueue().size();
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        void submit(Runnable task) {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * A virtual thread for each task.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    static final class VirtualPool extends WorkerPool {
+
+        /**
+         *
+         * @since 1.1
+         */
+        private final ExecutorService executor;
+
+        /**
+         * Wrap a virtual-thread-per-task executor.
+         *
+         * @param executor a virtual-thread-per-task executor
+         * @since 1.1
+         */
+        VirtualPool(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        /**
+         *
+         * @since 1.1
+         */
+        @Override
+        void submit(Runnable task) {
+            executor.execute(task);
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package nn1211.io;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct {@link ByteBuffer}s in size classes.
+ * <p>
+ * Buffers come in powers of 2 from 1 KiB to 256 KiB. A buffer is acquired
+ * with at least the requested capacity and must be released exactly once,
+ * after which its owner must not touch it again. Larger buffers are
+ * allocated on demand and dropped when released.
+ * </p>
+ * <p>
+ * Released buffers go to a small cache of the releasing thread if it runs a
+ * task wrapped by {@link #cached(Runnable)}, such as an event loop or a
+ * pooled worker, and to a bounded shared list otherwise. Short-lived
+ * threads thus never strand buffers in their caches.
+ * </p>
+ * <p>
+ * With {@link #leakDetection(boolean)} on, each acquired buffer records
+ * where it was acquired; a buffer collected by the garbage collector without
+ * having been released is reported on {@link System#err} and counted by
+ * {@link #leaks()}.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public final class BufferPool {
+
+    /**
+     * Log2 of the smallest class.
+     *
+     * @since 1.1
+     */
+    private static final int MIN_SHIFT = 10;
+
+    /**
+     * Number of size classes.
+     *
+     * @since 1.1
+     */
+    private static final int CLASSES = 9;
+
+    /**
+     * Bytes a thread cache may hold per class, at least 2 and at most 16
+     * buffers.
+     *
+     * @since 1.1
+     */
+    private static final int CACHE_BYTES = 512 * 1024;
+
+    /**
+     * The pool shared by the HTTP server and client.
+     *
+     * @since 1.1
+     */
+    private static final BufferPool SHARED = new BufferPool(64L << 20);
+
+    /**
+     * Shared free buffers per class.
+     *
+     * @since 1.1
+     */
+    private final Queue<ByteBuffer>[] free;
+
+    /**
+     * Number of shared free buffers per class.
+     *
+     * @since 1.1
+     */
+    private final AtomicIntegerArray freeCounts
+            = new AtomicIntegerArray(CLASSES);
+
+    /**
+     * Maximum number of shared free buffers per class.
+     *
+     * @since 1.1
+     */
+    private final int[] maxFree = new int[CLASSES];
+
+    /**
+     *
+     * @since 1.1
+     */
+    private final ThreadLocal<Cache> cache = new ThreadLocal<>();
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     *
+     * @since 1.1
+     */
+    private volatile boolean isTracking = false;
+
+    /**
+     * Trackers of acquired buffers by identity hash code.
+     *
+     * @since 1.1
+     */
+    private final Map<Integer, Tracker> trackers = new ConcurrentHashMap<>();
+
+    /**
+     * Trackers whose buffer was collected.
+     *
+     * @since 1.1
+     */
+    private final ReferenceQueue<ByteBuffer> collected
+            = new ReferenceQueue<>();
+
+    /**
+     * Create a pool.
+     *
+     * @param maxPooledBytes maximum number of bytes kept in the shared
+     * lists, split evenly among the size classes
+     * @throws IllegalArgumentException if maxPooledBytes is negative
+     * @since 1.1
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes < 0");
+        }
+
+        free = new Queue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            maxFree[i] = (int) Math.min(Integer.MAX_VALUE,
+                    maxPooledBytes / CLASSES >> (MIN_SHIFT + i));
+        }
+    }
+
+    /**
+     * Get the pool shared by the HTTP server and client, keeping up to
+     * 64 MiB of free buffers.
+     *
+     * @return the shared pool
+     * @since 1.1
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Turn on or off the tracking of acquired buffers. Only buffers
+     * acquired while on are tracked.
+     * <p>
+     * <i>Default value is false</i>
+     * </p>
+     *
+     * @param value true to report buffers never released
+     * @return this
+     * @since 1.1
+     */
+    public BufferPool leakDetection(boolean value) {
+        isTracking = value;
+        return this;
+    }
+
+    /**
+     * Acquire a cleared buffer.
+     *
+     * @param capacity the minimum capacity
+     * @return a direct buffer whose capacity is capacity rounded up to its
+     * size class
+     * @throws IllegalArgumentException if capacity is negative
+     * @since 1.1
+     */
+    public ByteBuffer acquire(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity < 0");
+        }
+
+        int index = index(capacity);
+        ByteBuffer buf = null;
+        if (index < CLASSES) {
+            Cache local = cache.get();
+            if (null != local) {
+                buf = local.poll(index);
+            }
+
+            if (null == buf) {
+                buf = free[index].poll();
+                if (null != buf) {
+                    freeCounts.decrementAndGet(index);
+                }
+            }
+        }
+
+        if (null == buf) {
+            int size = index < CLASSES ? 1 << (MIN_SHIFT + index) : capacity;
+            buf = ByteBuffer.allocateDirect(size);
+            allocated.increment();
+            allocatedBytes.add(size);
+        }
+
+        acquired.increment();
+        if (isTracking) {
+            track(buf);
+        }
+
+        return buf;
+    }
+
+    /**
+     * Release a buffer acquired from this pool.
+     *
+     * @param buf the buffer, not used by its owner anymore
+     * @since 1.1
+     */
+    public void release(ByteBuffer buf) {
+        released.increment();
+        if (isTracking) {
+            untrack(buf);
+        }
+
+        int index = index(buf.capacity());
+        if (!buf.isDirect() || index >= CLASSES
+                || buf.capacity() != 1 << (MIN_SHIFT + index)) {
+            return;
+        }
+
+        buf.clear();
+        Cache local = cache.get();
+        if (null == local || !local.offer(index, buf)) {
+            offer(index, buf);
+        }
+    }
+
+    /**
+     * Wrap the body of a long-lived thread so that the buffers it releases
+     * are cached for its next acquisitions. The cache is handed back to the
+     * shared lists when the task ends.
+     *
+     * @param task the body of a thread
+     * @return the wrapped task
+     * @since 1.1
+     */
+    public Runnable cached(Runnable task) {
+        return () -> {
+            Cache local = new Cache();
+            cache.set(local);
+            try {
+                task.run();
+            } finally {
+                cache.remove();
+                for (int i = 0; i < CLASSES; i++) {
+                    ByteBuffer buf;
+                    while (null != (buf = local.poll(i))) {
+                        offer(i, buf);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Get the number of buffers acquired so far.
+     *
+     * @return the number of acquisitions
+     * @since 1.1
+     */
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    /**
+     * Get the number of buffers acquired and not released yet.
+     *
+     * @return the number of buffers in use
+     * @since 1.1
+     */
+    public long inUse() {
+        return acquired.sum() - released.sum();
+    }
+
+    /**
+     * Get the number of buffers allocated because none was free.
+     *
+     * @return the number of allocations
+     * @since 1.1
+     */
+    public long allocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * Get the number of bytes allocated because no buffer was free.
+     *
+     * @return the number of bytes allocated
+     * @since 1.1
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * Get the number of free buffers in the shared lists, excluding the
+     * caches of threads.
+     *
+     * @return the number of shared free buffers
+     * @since 1.1
+     */
+    public int pooled() {
+        int count = 0;
+        for (int i = 0; i < CLASSES; i++) {
+            count += freeCounts.get(i);
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the number of tracked buffers collected without having been
+     * released. Leaks are found as the garbage collector runs.
+     *
+     * @return the number of leaks found
+     * @since 1.1
+     */
+    public long leaks() {
+        reap();
+        return leaks.get();
+    }
+
+    /**
+     * Get the size class of a capacity.
+     *
+     * @param capacity a capacity
+     * @return the index of the smallest class holding capacity, at least
+     * {@link #CLASSES} if too large
+     * @since 1.1
+     */
+    private static int index(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Put a free buffer in the shared list of its class, or drop it if the
+     * list is full.
+     *
+     * @param index the buffer's class
+     * @param buf a cleared buffer
+     * @since 1.1
+     */
+    private void offer(int index, ByteBuffer buf) {
+        if (freeCounts.incrementAndGet(index) > maxFree[index]) {
+            freeCounts.decrementAndGet(index);
+            return;
+        }
+
+        free[index].add(buf);
+    }
+
+    /**
+     * Start tracking an acquired buffer.
+     *
+     * @param buf the buffer
+     * @since 1.1
+     */
+    private void track(ByteBuffer buf) {
+        reap();
+
+        Tracker tracker = new Tracker(buf, collected);
+        trackers.compute(tracker.hash, (hash, first) -> {
+            tracker.next = first;
+            return tracker;
+        });
+    }
+
+    /**
+     * Stop tracking a released buffer.
+     *
+     * @param buf the buffer
+     * @since 1.1
+     */
+    private void untrack(ByteBuffer buf) {
+        trackers.computeIfPresent(System.identityHashCode(buf),
+                (hash, first) -> unlink(first, buf, null));
+        reap();
+    }
+
+    /**
+     * Count and report the tracked buffers collected without having been
+     * released.
+     *
+     * @since 1.1
+     */
+    private void reap() {
+        Reference<? extends ByteBuffer> ref;
+        while (null != (ref = collected.poll())) {
+            Tracker tracker = (Tracker) ref;
+            trackers.computeIfPresent(tracker.hash,
+                    (hash, first) -> unlink(first, null, tracker));
+
+            // Released buffers are untracked before being collected
+            if (tracker.isLeaked) {
+                leaks.incrementAndGet();
+                tracker.origin.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Remove a tracker from a list.
+     *
+     * @param first the first tracker of the list
+     * @param buf the buffer of the tracker to remove, or null
+     * @param tracker the tracker to remove if buf is null
+     * @return the new first tracker, or null if the list is empty
+     * @since 1.1
+     */
+    private static Tracker unlink(Tracker first, ByteBuffer buf,
+            Tracker tracker) {
+
+        Tracker prev = null;
+        for (Tracker t = first; null != t; prev = t, t = t.next) {
+            if (null == buf ? t == tracker : t.get() == buf) {
+                t.isLeaked = null == buf;
+                if (null == prev) {
+                    return t.next;
+                }
+
+                prev.next = t.next;
+                break;
+            }
+        }
+
+        return first;
+    }
+
+    /**
+     * The free buffers cached by a thread.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Cache {
+
+        private final ByteBuffer[][] stacks = new ByteBuffer[CLASSES][];
+        private final int[] sizes = new int[CLASSES];
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Cache() {
+            for (int i = 0; i < CLASSES; i++) {
+                stacks[i] = new ByteBuffer[Math.max(2, Math.min(16,
+                        CACHE_BYTES >> (MIN_SHIFT + i)))];
+            }
+        }
+
+        /**
+         * Take the most recently cached buffer of a class.
+         *
+         * @param index a class
+         * @return a buffer or null if none is cached
+         * @since 1.1
+         */
+        private ByteBuffer poll(int index) {
+            if (0 == sizes[index]) {
+                return null;
+            }
+
+            ByteBuffer buf = stacks[index][--sizes[index]];
+            stacks[index][sizes[index]] = null;
+            return buf;
+        }
+
+        /**
+         * Cache a buffer unless its class is full.
+         *
+         * @param index the buffer's class
+         * @param buf a cleared buffer
+         * @return true if cached, false otherwise
+         * @since 1.1
+         */
+        private boolean offer(int index, ByteBuffer buf) {
+            if (sizes[index] == stacks[index].length) {
+                return false;
+            }
+
+            stacks[index][sizes[index]++] = buf;
+            return true;
+        }
+    }
+
+    /**
+     * A weak reference to an acquired buffer, recording where it was
+     * acquired.
+     *
+     * @author nn1211
+     * @since 1.1
+     */
+    private static final class Tracker extends WeakReference<ByteBuffer> {
+
+        private final int hash;
+        private final Throwable origin = new Throwable(
+                "A pooled buffer was never released, acquired");
+        private Tracker next;
+        private boolean isLeaked = false;
+
+        /**
+         *
+         * @since 1.1
+         */
+        private Tracker(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue) {
+            super(buf, queue);
+            hash = System.identityHashCode(buf);
+        }
+    }
+}
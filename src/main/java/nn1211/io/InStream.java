@@ -37,9 +37,7 @@ public final class InStream {
 
         while ((b = in.read()) != -1) {
             if (b == 32) {
-                byte[] method = new byte[read];
-                System.arraycopy(buf, 0, method, 0, read);
-                return new String(method);
+                return new String(buf, 0, read);
             }
 
             if (read < buf.length) {
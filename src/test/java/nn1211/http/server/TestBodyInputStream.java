@@ -0,0 +1,183 @@
+package nn1211.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * BodyInputStream's test cases.
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public class TestBodyInputStream {
+
+    @Test
+    public void testChunked() throws IOException {
+        String wire = "5\r\nhello\r\n"
+                + "6;name=value\r\n world\r\n"
+                + "1 \t\r\n!\r\n"
+                + "0\r\nTrailer: x\r\n\r\n"
+                + "GET";
+
+        // Every read size, from one byte at a time
+        for (int step = 1; step <= wire.length(); step++) {
+            ByteBuffer buf = ByteBuffer.allocate(64);
+            BodyInputStream.Source source = source(wire, step);
+            BodyInputStream in = new BodyInputStream(buf, source, -1, true);
+            assertEquals("hello world!", drain(in));
+            assertTrue(in.isEnd());
+            assertEquals(12, in.count());
+
+            assertTrue(in.finish(0));
+            assertEquals("GET", rest(buf, source));
+        }
+    }
+
+    @Test
+    public void testSingleByteRead() throws IOException {
+        BodyInputStream in = body(ByteBuffer.allocate(64),
+                "3\r\n\u00ffab\r\n0\r\n\r\n", 64);
+        assertEquals(0xff, in.read());
+        assertEquals('a', in.read());
+        assertEquals('b', in.read());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testInvalidChunkSize() {
+        String[] invalid = {
+            "\r\n",
+            "x\r\n",
+            "5x\r\nhello\r\n0\r\n\r\n",
+            "5 x\r\nhello\r\n0\r\n\r\n",
+            "-5\r\nhello\r\n0\r\n\r\n",
+            "+5\r\nhello\r\n0\r\n\r\n",
+            " 5\r\nhello\r\n0\r\n\r\n",
+            "1000000000000000\r\n"
+        };
+
+        for (String wire : invalid) {
+            assertInvalid(wire);
+        }
+    }
+
+    @Test
+    public void testBareLf() {
+        assertInvalid("5\nhello\r\n0\r\n\r\n");
+        assertInvalid("5\r\nhello\n0\r\n\r\n");
+        assertInvalid("5\r\nhello\r\n0\n\r\n");
+        assertInvalid("5\r\nhello\r\n0\r\n\n");
+        assertInvalid("5\r\nhello\r\n0\r\nTrailer: x\n\r\n");
+    }
+
+    @Test
+    public void testInvalidTerminator() {
+        assertInvalid("5\r\nhelloX\r\n0\r\n\r\n");
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        BodyInputStream.Source source = source("hello worldGET", 3);
+        BodyInputStream in = new BodyInputStream(buf, source, 11, false);
+        assertEquals("hello world", drain(in));
+        assertTrue(in.isEnd());
+
+        assertTrue(in.finish(0));
+        assertEquals("GET", rest(buf, source));
+    }
+
+    /**
+     * Assert that reading a chunked body fails.
+     *
+     * @param wire the body as received
+     */
+    private static void assertInvalid(String wire) {
+        try {
+            drain(body(ByteBuffer.allocate(64), wire, wire.length()));
+            fail(wire);
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Create a chunked body stream.
+     *
+     * @param buf an empty connection buffer
+     * @param wire the body as received
+     * @param step the number of bytes received per fill
+     * @return the body stream
+     */
+    private static BodyInputStream body(ByteBuffer buf, String wire,
+            int step) {
+
+        return new BodyInputStream(buf, source(wire, step), -1, true);
+    }
+
+    /**
+     * Create a source receiving bytes a few at a time.
+     *
+     * @param wire the bytes to receive
+     * @param step the number of bytes received per fill
+     * @return the source
+     */
+    private static BodyInputStream.Source source(String wire, int step) {
+        ByteBuffer src = ByteBuffer.wrap(
+                wire.getBytes(StandardCharsets.ISO_8859_1));
+
+        return buf -> {
+            if (!src.hasRemaining()) {
+                return -1;
+            }
+
+            int n = Math.min(Math.min(step, src.remaining()),
+                    buf.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            buf.put(part);
+            src.position(src.position() + n);
+            return n;
+        };
+    }
+
+    /**
+     * Get the bytes left in a connection buffer and its source.
+     *
+     * @param buf the connection buffer, holding the next request at index 0
+     * @param source the source
+     * @return the bytes after the body
+     * @throws IOException I/O exception
+     */
+    private static String rest(ByteBuffer buf, BodyInputStream.Source source)
+            throws IOException {
+
+        while (-1 != source.fill(buf)) {
+            // Receive the rest
+        }
+
+        return new String(buf.array(), 0, buf.position(),
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Read a body to the end.
+     *
+     * @param in the body stream
+     * @return the body
+     * @throws IOException I/O exception
+     */
+    private static String drain(BodyInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[5];
+        int read;
+        while (-1 != (read = in.read(b, 0, b.length))) {
+            out.write(b, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
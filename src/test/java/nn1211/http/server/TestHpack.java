@@ -0,0 +1,324 @@
+package nn1211.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Hpack's test cases, with the examples of RFC 7541 Appendix C.
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public class TestHpack {
+
+    private static final String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String LOCATION = "https://www.example.com";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU;"
+            + " max-age=3600; version=1";
+
+    @Test
+    public void testLiterals() throws IOException {
+        // C.2.1 to C.2.4, each on a new decoder
+        assertDecoded(new Hpack.Decoder(4096),
+                "400a637573746f6d2d6b65790d637573746f6d2d686561646572",
+                "custom-key", "custom-header");
+        assertDecoded(new Hpack.Decoder(4096),
+                "040c2f73616d706c652f70617468",
+                ":path", "/sample/path");
+        assertDecoded(new Hpack.Decoder(4096),
+                "100870617373776f726406736563726574",
+                "password", "secret");
+        assertDecoded(new Hpack.Decoder(4096), "82", ":method", "GET");
+
+        // The field of C.2.2 is not indexed
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        decode(decoder, "040c2f73616d706c652f70617468");
+        assertInvalid(decoder, "be");
+    }
+
+    @Test
+    public void testRequests() throws IOException {
+        // C.3, without Huffman
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertDecoded(decoder, "828684410f7777772e6578616d706c652e636f6d",
+                ":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com");
+        assertDecoded(decoder, "828684be58086e6f2d6361636865",
+                ":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertDecoded(decoder, "828785bf400a637573746f6d2d6b65790c637573"
+                + "746f6d2d76616c7565",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com",
+                "custom-key", "custom-value");
+    }
+
+    @Test
+    public void testHuffmanRequests() throws IOException {
+        // C.4, decoded and encoded
+        String[] blocks = {
+            "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+            "828684be5886a8eb10649cbf",
+            "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"
+        };
+        String[][] fields = {
+            {":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com"},
+            {":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com",
+                "cache-control", "no-cache"},
+            {":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com",
+                "custom-key", "custom-value"}
+        };
+
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        for (int i = 0; i < blocks.length; i++) {
+            assertDecoded(decoder, blocks[i], fields[i]);
+            assertEquals(blocks[i], hex(encode(encoder, fields[i])));
+        }
+    }
+
+    @Test
+    public void testResponses() throws IOException {
+        // C.5, without Huffman, in a table of 256 bytes
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertDecoded(decoder, "4803333032580770726976617465611d4d6f6e2c"
+                + "203231204f637420323031332032303a31333a323120474d546e"
+                + "1768747470733a2f2f7777772e6578616d706c652e636f6d",
+                ":status", "302", "cache-control", "private",
+                "date", DATE_1, "location", LOCATION);
+        assertDecoded(decoder, "4803333037c1c0bf",
+                ":status", "307", "cache-control", "private",
+                "date", DATE_1, "location", LOCATION);
+        assertDecoded(decoder, "88c1611d4d6f6e2c203231204f63742032303133"
+                + "2032303a31333a323220474d54c05a04677a69707738666f6f3d"
+                + "4153444a4b48514b425a584f5157454f50495541585157454f49"
+                + "553b206d61782d6167653d333630303b2076657273696f6e3d31",
+                ":status", "200", "cache-control", "private",
+                "date", DATE_2, "location", LOCATION,
+                "content-encoding", "gzip", "set-cookie", COOKIE);
+
+        // Only set-cookie, content-encoding and date are left
+        assertDecoded(decoder, "c0", "date", DATE_2);
+        assertInvalid(decoder, "c1");
+    }
+
+    @Test
+    public void testHuffmanResponses() throws IOException {
+        // C.6, in a table of 256 bytes
+        String[] blocks = {
+            "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166"
+                + "e082a62d1bff6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+            "4883640effc1c0bf",
+            "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a83"
+                + "9bd9ab77ad94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f36"
+                + "72c1ab270fb5291f9587316065c003ed4ee5b1063d5007"
+        };
+        String[][] fields = {
+            {":status", "302", "cache-control", "private",
+                "date", DATE_1, "location", LOCATION},
+            {":status", "307", "cache-control", "private",
+                "date", DATE_1, "location", LOCATION},
+            {":status", "200", "cache-control", "private",
+                "date", DATE_2, "location", LOCATION,
+                "content-encoding", "gzip", "set-cookie", COOKIE}
+        };
+
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        for (int i = 0; i < blocks.length; i++) {
+            assertDecoded(decoder, blocks[i], fields[i]);
+        }
+
+        // The encoder signals the smaller table ahead of the first block
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        encoder.maxTableSize(256);
+        assertEquals("3fe101" + blocks[0], hex(encode(encoder, fields[0])));
+
+        // Huffman is only used if shorter, unlike for "307" in the example
+        assertEquals("4803333037c1c0bf", hex(encode(encoder, fields[1])));
+
+        // Unlike the example, set-cookie is never indexed
+        byte[] block = encode(encoder, fields[2]);
+        String prefix = blocks[2].substring(0, blocks[2].indexOf("77ad"));
+        assertTrue(hex(block).startsWith(prefix + "1f28"));
+
+        Hpack.Decoder peer = new Hpack.Decoder(256);
+        decode(peer, "3fe101" + blocks[0]);
+        decode(peer, blocks[1]);
+        assertDecoded(peer, hex(block), fields[2]);
+    }
+
+    @Test
+    public void testTableSizeUpdate() throws IOException {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertDecoded(decoder, "3fe10182", ":method", "GET");
+        assertDecoded(decoder, "203fe10182", ":method", "GET");
+
+        // Only ahead of the first field, and at most the advertised size
+        assertInvalid(new Hpack.Decoder(256), "8220");
+        assertInvalid(new Hpack.Decoder(256), "82203fe10182");
+        assertInvalid(new Hpack.Decoder(256), "3fe201");
+
+        // A smaller table evicts, even back to zero
+        decoder = new Hpack.Decoder(4096);
+        decode(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572");
+        assertDecoded(decoder, "be", "custom-key", "custom-header");
+        decode(decoder, "203fe101");
+        assertInvalid(decoder, "be");
+    }
+
+    @Test
+    public void testHuffmanPadding() throws IOException {
+        assertDecoded(new Hpack.Decoder(4096), "01811f", ":authority", "a");
+
+        // Padding that is not the most significant bits of EOS
+        assertInvalid(new Hpack.Decoder(4096), "018118");
+
+        // Padding longer than 7 bits
+        assertInvalid(new Hpack.Decoder(4096), "0181ff");
+        assertInvalid(new Hpack.Decoder(4096), "01821fff");
+    }
+
+    @Test
+    public void testHuffmanEos() {
+        assertInvalid(new Hpack.Decoder(4096), "0184ffffffff");
+        assertInvalid(new Hpack.Decoder(4096), "01851fffffffff");
+    }
+
+    @Test
+    public void testIndex() {
+        assertInvalid(new Hpack.Decoder(4096), "80");
+        assertInvalid(new Hpack.Decoder(4096), "be");
+        assertInvalid(new Hpack.Decoder(4096), "41");
+    }
+
+    @Test
+    public void testInteger() throws IOException {
+        // Beyond 32 bits, truncated, or longer than the block
+        assertInvalid(new Hpack.Decoder(4096), "ffffffffff0f");
+        assertInvalid(new Hpack.Decoder(4096), "ff808080808001");
+        assertInvalid(new Hpack.Decoder(4096), "ff80");
+        assertInvalid(new Hpack.Decoder(4096), "017f");
+        assertInvalid(new Hpack.Decoder(4096), "0103ab");
+
+        // Integers on several bytes, such as a literal of 300 bytes
+        StringBuilder value = new StringBuilder();
+        StringBuilder block = new StringBuilder("017fad01");
+        for (int i = 0; i < 300; i++) {
+            value.append('~');
+            block.append("7e");
+        }
+
+        assertDecoded(new Hpack.Decoder(4096), block.toString(),
+                ":authority", value.toString());
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        assertEquals("417fad01", hex(encode(encoder,
+                ":authority", value.toString())).substring(0, 8));
+    }
+
+    /**
+     * Assert that a header block decodes to some fields.
+     *
+     * @param decoder the decoder
+     * @param block the block in hexadecimal
+     * @param fields the expected names and values
+     * @throws IOException if the block is malformed
+     */
+    private static void assertDecoded(Hpack.Decoder decoder, String block,
+            String... fields) throws IOException {
+
+        assertArrayEquals(fields, decode(decoder, block).toArray());
+    }
+
+    /**
+     * Assert that a header block is malformed.
+     *
+     * @param decoder the decoder
+     * @param block the block in hexadecimal
+     */
+    private static void assertInvalid(Hpack.Decoder decoder, String block) {
+        try {
+            decode(decoder, block);
+            fail(block);
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Decode a header block.
+     *
+     * @param decoder the decoder
+     * @param block the block in hexadecimal
+     * @return the names and values of the fields
+     * @throws IOException if the block is malformed
+     */
+    static List<String> decode(Hpack.Decoder decoder, String block)
+            throws IOException {
+
+        byte[] bytes = bytes(block);
+        List<String> fields = new ArrayList<>();
+        decoder.decode(bytes, 0, bytes.length, (name, value) -> {
+            fields.add(name);
+            fields.add(value);
+        });
+
+        return fields;
+    }
+
+    /**
+     * Encode a header block.
+     *
+     * @param encoder the encoder
+     * @param fields the names and values of the fields
+     * @return the block
+     */
+    static byte[] encode(Hpack.Encoder encoder, String... fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.start(out);
+        for (int i = 0; i < fields.length; i += 2) {
+            encoder.encode(out, fields[i], fields[i + 1]);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode hexadecimal digits.
+     *
+     * @param hex hexadecimal digits
+     * @return the bytes
+     */
+    static byte[] bytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(
+                    hex.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Encode bytes as hexadecimal digits.
+     *
+     * @param bytes the bytes
+     * @return hexadecimal digits
+     */
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit(b >>> 4 & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,339 @@
+package nn1211.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static nn1211.http.server.ServerResponse.*;
+import static org.junit.Assert.*;
+
+/**
+ * Http2Connection's test cases, over a connection upgraded to h2c.
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public class TestHttp2 {
+
+    private static final int DATA = 0x0, HEADERS = 0x1, RST_STREAM = 0x3,
+            SETTINGS = 0x4, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8;
+
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4;
+
+    private static final int CANCEL = 0x8;
+
+    /**
+     * The initial window of the streams, set by the client.
+     */
+    private static final int WINDOW = 1000;
+
+    /**
+     * A body several times larger than a frame and than the windows.
+     */
+    private static final String BIG;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 100000; i++) {
+            sb.append(i).append('\n');
+        }
+
+        BIG = sb.substring(0, 100000);
+    }
+
+    @Test
+    public void testUpgradeNio() throws IOException {
+        upgrade(HttpServer.Engine.NIO);
+    }
+
+    @Test
+    public void testUpgradeBlocking() throws IOException {
+        upgrade(HttpServer.Engine.BLOCKING);
+    }
+
+    /**
+     * Upgrade a connection to h2c with a HEAD request, then send a request
+     * whose body exceeds the window, one reset by the client and a last
+     * one.
+     *
+     * @param engine the server's engine
+     * @throws IOException I/O exception
+     */
+    private static void upgrade(HttpServer.Engine engine) throws IOException {
+        HttpServer server = new HttpServer()
+                .port(TestRequestParser.freePort())
+                .engine(engine)
+                .http2(true)
+                .registerHandler("GET /big", r -> ok(BIG))
+                .registerHandler("HEAD /big", r -> ok(BIG))
+                .registerHandler("GET /small", r -> ok("small"));
+        server.start();
+        try (Client client = new Client(server.port())) {
+            // Stream 1 is the upgrading request, its streams' window is
+            // set by HTTP2-Settings
+            String head = client.upgrade("HEAD /big HTTP/1.1\r\n"
+                    + "Host: test\r\n"
+                    + "Connection: Upgrade, HTTP2-Settings\r\n"
+                    + "Upgrade: h2c\r\n"
+                    + "HTTP2-Settings: AAQAAAPo\r\n\r\n");
+            assertTrue(head, head.startsWith("HTTP/1.1 101 "));
+
+            Frame frame = client.read();
+            assertEquals(HEADERS, frame.type);
+            assertEquals(1, frame.id);
+            assertEquals(END_STREAM, frame.flags & END_STREAM);
+            assertEquals(Arrays.asList(":status", "200"),
+                    client.fields(frame).subList(0, 2));
+
+            // A body larger than the window is sent up to the window only
+            client.request(3, "/big");
+            frame = client.read();
+            assertEquals(HEADERS, frame.type);
+            assertEquals(0, frame.flags & END_STREAM);
+            assertEquals("200", client.fields(frame).get(1));
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            client.receive(3, body, WINDOW, false);
+            assertEquals(WINDOW, body.size());
+            client.assertSilent();
+
+            // Opening the windows sends the rest
+            client.windowUpdate(3, BIG.length());
+            client.windowUpdate(0, BIG.length());
+            client.receive(3, body, BIG.length(), true);
+            assertEquals(BIG, new String(body.toByteArray(),
+                    StandardCharsets.ISO_8859_1));
+
+            // A stream reset by the client sends no more frames
+            client.request(5, "/big");
+            frame = client.read();
+            assertEquals(HEADERS, frame.type);
+            assertEquals("200", client.fields(frame).get(1));
+            body.reset();
+            client.receive(5, body, WINDOW, false);
+            client.frame(RST_STREAM, 0, 5, new byte[] {0, 0, 0, CANCEL});
+            client.windowUpdate(0, BIG.length());
+            client.frame(PING, 0, 0, new byte[8]);
+
+            frame = client.read();
+            assertEquals(PING, frame.type);
+            assertEquals(ACK, frame.flags);
+
+            // The connection serves the next streams
+            client.request(7, "/small");
+            frame = client.read();
+            assertEquals(HEADERS, frame.type);
+            assertEquals(7, frame.id);
+            assertEquals("200", client.fields(frame).get(1));
+            body.reset();
+            client.receive(7, body, 5, true);
+            assertEquals("small", new String(body.toByteArray(),
+                    StandardCharsets.ISO_8859_1));
+
+            client.frame(GOAWAY, 0, 0, new byte[8]);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * A frame received.
+     */
+    private static final class Frame {
+
+        private int type;
+        private int flags;
+        private int id;
+        private byte[] payload;
+    }
+
+    /**
+     * A HTTP/2 client connection.
+     */
+    private static final class Client implements AutoCloseable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Hpack.Encoder encoder = new Hpack.Encoder();
+        private final Hpack.Decoder decoder
+                = new Hpack.Decoder(Hpack.TABLE_SIZE);
+
+        /**
+         * Connect to a local server.
+         *
+         * @param port the server's port
+         * @throws IOException I/O exception
+         */
+        private Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        /**
+         * Send an upgrading request, and the client preface once switched.
+         *
+         * @param head the request's head
+         * @return the response's head
+         * @throws IOException I/O exception
+         */
+        private String upgrade(String head) throws IOException {
+            out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+
+            StringBuilder resp = new StringBuilder();
+            while (resp.indexOf("\r\n\r\n") < 0) {
+                resp.append((char) in.readUnsignedByte());
+            }
+
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            frame(SETTINGS, 0, 0, new byte[0]);
+            return resp.toString();
+        }
+
+        /**
+         * Send a GET request without body.
+         *
+         * @param id the stream
+         * @param path the path
+         * @throws IOException I/O exception
+         */
+        private void request(int id, String path) throws IOException {
+            frame(HEADERS, END_HEADERS | END_STREAM, id, TestHpack.encode(
+                    encoder, ":method", "GET", ":scheme", "http",
+                    ":path", path, ":authority", "test"));
+        }
+
+        /**
+         * Send a WINDOW_UPDATE frame.
+         *
+         * @param id the stream, or 0 for the connection
+         * @param increment the window's increment
+         * @throws IOException I/O exception
+         */
+        private void windowUpdate(int id, int increment) throws IOException {
+            frame(WINDOW_UPDATE, 0, id, new byte[] {(byte) (increment >>> 24),
+                (byte) (increment >>> 16), (byte) (increment >>> 8),
+                (byte) increment});
+        }
+
+        /**
+         * Send a frame.
+         *
+         * @param type the frame's type
+         * @param flags the frame's flags
+         * @param id the stream, or 0
+         * @param payload the payload
+         * @throws IOException I/O exception
+         */
+        private void frame(int type, int flags, int id, byte[] payload)
+                throws IOException {
+
+            int len = payload.length;
+            out.write(new byte[] {(byte) (len >>> 16), (byte) (len >>> 8),
+                (byte) len, (byte) type, (byte) flags, (byte) (id >>> 24),
+                (byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+            out.write(payload);
+            out.flush();
+        }
+
+        /**
+         * Receive the next frame, acknowledging the server's settings and
+         * skipping its window updates.
+         *
+         * @return the frame
+         * @throws IOException I/O exception
+         */
+        private Frame read() throws IOException {
+            while (true) {
+                Frame frame = new Frame();
+                int len = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                frame.type = in.readUnsignedByte();
+                frame.flags = in.readUnsignedByte();
+                frame.id = in.readInt() & Integer.MAX_VALUE;
+                frame.payload = new byte[len];
+                in.readFully(frame.payload);
+
+                if (SETTINGS == frame.type) {
+                    if (0 == (frame.flags & ACK)) {
+                        frame(SETTINGS, ACK, 0, new byte[0]);
+                    }
+                } else if (WINDOW_UPDATE != frame.type) {
+                    return frame;
+                }
+            }
+        }
+
+        /**
+         * Receive the DATA frames of a stream up to a total length.
+         *
+         * @param id the stream
+         * @param body receiver of the data
+         * @param total the expected total length of the data
+         * @param isWhole true to receive the end of the stream as well,
+         * possibly in an empty frame
+         * @throws IOException I/O exception
+         */
+        private void receive(int id, ByteArrayOutputStream body, int total,
+                boolean isWhole) throws IOException {
+
+            boolean isEnd = false;
+            while (!isEnd && (body.size() < total || isWhole)) {
+                Frame frame = read();
+                assertEquals(DATA, frame.type);
+                assertEquals(id, frame.id);
+                assertTrue(frame.payload.length <= 16384);
+                body.write(frame.payload);
+                isEnd = 0 != (frame.flags & END_STREAM);
+                assertTrue(!isEnd || isWhole && total == body.size());
+            }
+
+            assertEquals(total, body.size());
+        }
+
+        /**
+         * Assert that the server sends nothing for a while.
+         *
+         * @throws IOException I/O exception
+         */
+        private void assertSilent() throws IOException {
+            socket.setSoTimeout(300);
+            try {
+                fail("Frame " + read().type);
+            } catch (SocketTimeoutException expected) {
+            } finally {
+                socket.setSoTimeout(5000);
+            }
+        }
+
+        /**
+         * Decode the header block of a HEADERS frame.
+         *
+         * @param frame the frame, with END_HEADERS
+         * @return the names and values of the fields
+         * @throws IOException if the block is malformed
+         */
+        private List<String> fields(Frame frame) throws IOException {
+            assertEquals(END_HEADERS, frame.flags & END_HEADERS);
+            return TestHpack.decode(decoder, TestHpack.hex(frame.payload));
+        }
+
+        /**
+         * Close the connection.
+         *
+         * @throws IOException I/O exception
+         */
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
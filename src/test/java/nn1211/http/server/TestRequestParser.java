@@ -0,0 +1,295 @@
+package nn1211.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * RequestParser's test cases.
+ * <p>
+ * Every head is fed in two parts split at each byte boundary, and then one
+ * byte at a time, and must be parsed the same way each time.
+ * </p>
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public class TestRequestParser {
+
+    /**
+     * The buffer of the last head parsed by {@link #parse(String)}.
+     */
+    private ByteBuffer buf;
+
+    @Test
+    public void testValid() {
+        String head = "POST /a/b?c=d HTTP/1.1\r\n"
+                + "Host: test\r\n"
+                + "X-Empty:\r\n"
+                + "Content-Length:  5 \r\n"
+                + "\r\n";
+        RequestParser parser = parse(head + "hello");
+
+        assertFalse(parser.isError());
+        assertEquals(head.length(), parser.headLength());
+        assertEquals("POST", parser.method(buf));
+        assertEquals("/a/b?c=d", parser.target(buf));
+        assertTrue(parser.isHttp11());
+        assertTrue(parser.keepAlive());
+        assertFalse(parser.isChunked());
+        assertEquals(5, parser.contentLength());
+        assertEquals(3, parser.fieldCount());
+
+        int[] fields = parser.fields();
+        assertEquals("Content-Length", RequestParser.string(buf,
+                fields[8], fields[9]));
+        assertEquals("5", RequestParser.string(buf, fields[10], fields[11]));
+        assertEquals(fields[6], fields[7]);
+    }
+
+    @Test
+    public void testHttp10() {
+        RequestParser parser = parse("GET / HTTP/1.0\r\n\r\n");
+        assertFalse(parser.isHttp11());
+        assertFalse(parser.keepAlive());
+        assertEquals(-1, parser.contentLength());
+
+        parser = parse("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n");
+        assertTrue(parser.keepAlive());
+
+        parser = parse("GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertFalse(parser.keepAlive());
+    }
+
+    @Test
+    public void testVersions() {
+        assertInvalid("GET / HTTP/2.0\r\n\r\n");
+        assertInvalid("GET / HTTP/0.9\r\n\r\n");
+        assertInvalid("GET / HTTP/1.2\r\n\r\n");
+        assertInvalid("GET / HTTP/1.10\r\n\r\n");
+        assertInvalid("GET / http/1.1\r\n\r\n");
+        assertInvalid("GET /\r\n\r\n");
+    }
+
+    @Test
+    public void testChunked() {
+        RequestParser parser = parse("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: Chunked\r\n\r\n");
+        assertTrue(parser.isChunked());
+        assertEquals(-1, parser.contentLength());
+
+        parser = parse("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: , chunked ,\r\n\r\n");
+        assertTrue(parser.isChunked());
+    }
+
+    @Test
+    public void testUnsupportedCodings() {
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: identity\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: gzip, chunked\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: chunked, gzip\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nTransfer-Encoding:\r\n\r\n");
+    }
+
+    @Test
+    public void testChunkedAndContentLength() {
+        assertInvalid("POST / HTTP/1.1\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Content-Length: 5\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\n"
+                + "Content-Length: 5\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n");
+    }
+
+    @Test
+    public void testInvalidContentLength() {
+        assertInvalid("POST / HTTP/1.1\r\nContent-Length: 5\r\n"
+                + "Content-Length: 5\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nContent-Length: 0x5\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nContent-Length: 5, 5\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n");
+        assertInvalid("POST / HTTP/1.1\r\n"
+                + "Content-Length: 1234567890123456789\r\n\r\n");
+    }
+
+    @Test
+    public void testInvalidHead() {
+        assertInvalid(" GET / HTTP/1.1\r\n\r\n");
+        assertInvalid("GET  / HTTP/1.1\r\n\r\n");
+        assertInvalid("G(T / HTTP/1.1\r\n\r\n");
+        assertInvalid("GETGETGETGETGETGET / HTTP/1.1\r\n\r\n");
+        assertInvalid("GET /\u0001 HTTP/1.1\r\n\r\n");
+        assertInvalid("GET / HTTP/1.1\n\r\n");
+        assertInvalid("GET / HTTP/1.1\r\nHost: test\n\r\n");
+        assertInvalid("GET / HTTP/1.1\r\nHost: test\r\n\n");
+        assertInvalid("GET / HTTP/1.1\r\nHost test\r\n\r\n");
+        assertInvalid("GET / HTTP/1.1\r\n: test\r\n\r\n");
+        assertInvalid("GET / HTTP/1.1\r\nHost : test\r\n\r\n");
+        assertInvalid("GET / HTTP/1.1\r\n folded: test\r\n\r\n");
+        assertInvalid("GET / HTTP/1.1\r\nHost: te\u0000st\r\n\r\n");
+    }
+
+    @Test
+    public void testMaxHeaders() {
+        assertEquals(100, parse(headers(100)).fieldCount());
+        assertInvalid(headers(101));
+    }
+
+    @Test
+    public void testBadRequest() throws IOException {
+        for (HttpServer.Engine engine : HttpServer.Engine.values()) {
+            HttpServer server = new HttpServer()
+                    .port(freePort())
+                    .engine(engine);
+            server.start();
+            try (Socket socket = new Socket("127.0.0.1", server.port())) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET / HTTP/2.0\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1));
+
+                String resp = readAll(socket.getInputStream());
+                assertTrue(engine + ": " + resp,
+                        resp.startsWith("HTTP/1.1 400 "));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Parse a head fed in every possible way, checking that each gives the
+     * same result as the head fed at once.
+     *
+     * @param head a head
+     * @return the parser of the head fed at once, over {@link #buf}
+     */
+    private RequestParser parse(String head) {
+        byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+
+        buf = ByteBuffer.allocate(bytes.length);
+        buf.put(bytes);
+        RequestParser expected = new RequestParser();
+        boolean isDone = expected.parse(buf);
+        assertNotEquals(isDone, expected.isError());
+
+        for (int split = 0; split <= bytes.length; split++) {
+            ByteBuffer part = ByteBuffer.allocate(bytes.length);
+            RequestParser parser = new RequestParser();
+            part.put(bytes, 0, split);
+            parser.parse(part);
+            part.put(bytes, split, bytes.length - split);
+            assertEquals(isDone, parser.parse(part));
+            assertAgree(expected, parser, part, "split at " + split);
+        }
+
+        ByteBuffer part = ByteBuffer.allocate(bytes.length);
+        RequestParser parser = new RequestParser();
+        boolean isByteDone = false;
+        for (byte b : bytes) {
+            part.put(b);
+            isByteDone = parser.parse(part);
+        }
+
+        assertEquals(isDone, isByteDone);
+        assertAgree(expected, parser, part, "one byte at a time");
+        return expected;
+    }
+
+    /**
+     * Assert that two parsers agree on a head.
+     *
+     * @param expected the parser of the head fed at once
+     * @param actual a parser of the head fed in parts
+     * @param part the buffer of the actual parser
+     * @param message the assertion message
+     */
+    private void assertAgree(RequestParser expected, RequestParser actual,
+            ByteBuffer part, String message) {
+
+        assertEquals(message, expected.isError(), actual.isError());
+        if (expected.isError()) {
+            return;
+        }
+
+        assertEquals(message, expected.headLength(), actual.headLength());
+        assertEquals(message, expected.method(buf), actual.method(part));
+        assertEquals(message, expected.target(buf), actual.target(part));
+        assertEquals(message, expected.isHttp11(), actual.isHttp11());
+        assertEquals(message, expected.keepAlive(), actual.keepAlive());
+        assertEquals(message, expected.isChunked(), actual.isChunked());
+        assertEquals(message, expected.contentLength(),
+                actual.contentLength());
+        assertEquals(message, expected.fieldCount(), actual.fieldCount());
+        for (int i = 0; i < expected.fieldCount() * 4; i++) {
+            assertEquals(message, expected.fields()[i], actual.fields()[i]);
+        }
+    }
+
+    /**
+     * Assert that a head is invalid however it is fed.
+     *
+     * @param head a head
+     */
+    private void assertInvalid(String head) {
+        assertTrue(head, parse(head).isError());
+    }
+
+    /**
+     * Build a head with a number of header fields.
+     *
+     * @param count the number of header fields
+     * @return a head
+     */
+    private static String headers(int count) {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < count; i++) {
+            head.append("X-").append(i).append(": ").append(i).append("\r\n");
+        }
+
+        return head.append("\r\n").toString();
+    }
+
+    /**
+     * Find a free local port.
+     *
+     * @return a port
+     * @throws IOException I/O exception
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Read a stream to the end.
+     *
+     * @param in a stream
+     * @return the bytes read as ISO-8859-1
+     * @throws IOException I/O exception
+     */
+    static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        int read;
+        while (-1 != (read = in.read(b))) {
+            out.write(b, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,148 @@
+package nn1211.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static nn1211.http.HttpHeader.*;
+import static nn1211.http.server.ServerResponse.*;
+import static org.junit.Assert.*;
+
+/**
+ * Router's test cases.
+ *
+ * @author nn1211
+ * @since 1.1
+ */
+public class TestRouter {
+
+    @Test
+    public void testStaticOverParam() {
+        Router router = new Router();
+        router.add("GET", "/users/{id}", route());
+        router.add("GET", "/users/me", route());
+
+        ServerRequest me = request("GET", "/users/me");
+        assertEquals("GET /users/me", router.find(me).name());
+
+        ServerRequest other = request("GET", "/users/42");
+        assertEquals("GET /users/{id}", router.find(other).name());
+        assertEquals("42", other.param("id"));
+    }
+
+    @Test
+    public void testParamThenStatic() {
+        Router router = new Router();
+        router.add("GET", "/users/{id}/posts", route());
+        router.add("GET", "/users/me/settings", route());
+
+        // The literal "me" leads nowhere for posts, the parameter does
+        ServerRequest posts = request("GET", "/users/me/posts");
+        assertEquals("GET /users/{id}/posts", router.find(posts).name());
+        assertEquals("me", posts.param("id"));
+
+        ServerRequest settings = request("GET", "/users/me/settings");
+        assertEquals("GET /users/me/settings", router.find(settings).name());
+
+        assertNull(router.find(request("GET", "/users/42/settings")));
+        assertNull(router.find(request("GET", "/users//posts")));
+    }
+
+    @Test
+    public void testWildcard() {
+        Router router = new Router();
+        router.add("GET", "/files/*", route());
+
+        ServerRequest req = request("GET", "/files/a/b.txt");
+        assertEquals("GET /files/*", router.find(req).name());
+        assertEquals("a/b.txt", req.param(Router.WILDCARD));
+    }
+
+    @Test
+    public void testInvalidPatternLeavesNoRoute() {
+        Router router = new Router();
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < 17; i++) {
+            pattern.append("/{p").append(i).append('}');
+        }
+
+        try {
+            router.add("GET", pattern.toString(), route());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            router.add("GET", "/a/*/b", route());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertNull(router.find(request("GET", "/x")));
+        assertNull(router.find(request("GET", "/a/x/b")));
+        assertNull(router.allowed(request("POST", "/x")));
+    }
+
+    @Test
+    public void testMethodNotAllowed() throws IOException {
+        HttpServer server = new HttpServer()
+                .registerHandler("GET /items/{id}", r -> ok("get"))
+                .registerHandler("DELETE /items/{id}", r -> ok("delete"));
+
+        ServerResponse resp = server.dispatch(request("POST", "/items/1"));
+        assertEquals(405, resp.statusCode().asInt());
+        assertEquals("DELETE, GET", header(resp, ALLOW));
+
+        resp = server.dispatch(request("POST", "/other"));
+        assertEquals(404, resp.statusCode().asInt());
+        assertNull(header(resp, ALLOW));
+
+        resp = server.dispatch(request("GET", "/items/1"));
+        assertEquals(200, resp.statusCode().asInt());
+    }
+
+    /**
+     * Create a route to a handler.
+     *
+     * @return a route
+     */
+    static Router.Route route() {
+        Handler handler = r -> ok("");
+        return new Router.Route(handler);
+    }
+
+    /**
+     * Parse the head of a request without body.
+     *
+     * @param method the request method
+     * @param target the request target
+     * @return the request
+     */
+    static ServerRequest.BufferRequest request(String method, String target) {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        buf.put((method + " " + target + " HTTP/1.1\r\nHost: test\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+
+        RequestParser parser = new RequestParser();
+        assertTrue(parser.parse(buf));
+        return ServerRequest.from("127.0.0.1", buf, parser, new HeaderTable());
+    }
+
+    /**
+     * Get a header of a response.
+     *
+     * @param resp a response
+     * @param name the header's name
+     * @return the value or null
+     */
+    static String header(ServerResponse resp, String name) {
+        String[] value = {null};
+        resp.forEachHeader((k, v) -> {
+            if (name.equalsIgnoreCase(k)) {
+                value[0] = v;
+            }
+        });
+
+        return value[0];
+    }
+}